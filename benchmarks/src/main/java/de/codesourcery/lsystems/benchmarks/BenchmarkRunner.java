@@ -0,0 +1,45 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with GC / allocation profiling enabled.
+ * 
+ * <p>Accepts the same command-line options as <code>org.openjdk.jmh.Main</code>, e.g. 
+ * <code>java -jar target/benchmarks.jar DerivationBenchmark -p grammar=PLANT</code>.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class BenchmarkRunner 
+{
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException 
+	{
+		final CommandLineOptions cmdLine = new CommandLineOptions( args );
+		final Options options = new OptionsBuilder()
+			.parent( cmdLine )
+			.addProfiler( GCProfiler.class )
+			.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.benchmarks;
+
+import de.codesourcery.lsystems.lsystem.ExpressionLexer;
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.RewritingRule;
+import de.codesourcery.lsystems.lsystem.RuleGenerator;
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.rules.StochasticRule;
+
+/**
+ * Grammars used by the benchmarks.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public enum Grammar 
+{
+	/**
+	 * Quadratic Koch curve.
+	 */
+	KOCH("F",3,5,7) 
+	{
+		@Override
+		protected void addRules(LSystem system) {
+			system.addRule( RuleGenerator.replaceRule( "F" , "F+F-F-F+F" ) );
+		}
+	},
+	/**
+	 * Heighway dragon.
+	 */
+	DRAGON("FX",8,12,16) 
+	{
+		@Override
+		protected void addRules(LSystem system) 
+		{
+			system.addRule( RuleGenerator.replaceRule( "X" , "X+YF+" ) );
+			system.addRule( RuleGenerator.replaceRule( "Y" , "-FX-Y" ) );
+		}
+	},
+	/**
+	 * Bracketed plant.
+	 */
+	PLANT("X",3,5,7) 
+	{
+		@Override
+		protected void addRules(LSystem system) 
+		{
+			system.addRule( RuleGenerator.replaceRule( "X" , "F-[[X]+X]+F[+FX]-X" ) );
+			system.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		}
+	},
+	/**
+	 * Bracketed plant choosing among three rules at random.
+	 */
+	STOCHASTIC_PLANT("F",4,6,8) 
+	{
+		@Override
+		protected void addRules(LSystem system) 
+		{
+			system.addRule( new StochasticRule( TokenType.FORWARD , new RewritingRule[] {
+					RuleGenerator.replaceRule( TokenType.FORWARD , "F[+F]F[-F]F" ),
+					RuleGenerator.replaceRule( TokenType.FORWARD , "F[+F]F" ),
+					RuleGenerator.replaceRule( TokenType.FORWARD , "F[-F]F" ) } ) );
+			system.setSeed( 0xdeadbeef );
+		}
+	};
+	
+	/**
+	 * Derivation depths, the number of generations depends on how fast a grammar grows. 
+	 */
+	public static enum Depth {
+		SHALLOW,
+		MEDIUM,
+		DEEP;
+	}
+	
+	private final String axiom;
+	private final int[] generations;
+	
+	private Grammar(String axiom,int shallow,int medium,int deep) 
+	{
+		this.axiom = axiom;
+		this.generations = new int[] { shallow , medium , deep };
+	}
+	
+	/**
+	 * Returns the number of generations to derive for a given depth.
+	 * 
+	 * @param depth
+	 * @return
+	 */
+	public int getGenerations(Depth depth) {
+		return generations[ depth.ordinal() ];
+	}
+	
+	protected abstract void addRules(LSystem system);
+	
+	/**
+	 * Creates a new L-system using this grammar.
+	 * 
+	 * @param depth
+	 * @param compact whether to use compact state
+	 * @return
+	 */
+	public LSystem create(Depth depth,boolean compact) 
+	{
+		final LSystem result = new LSystem( ExpressionLexer.parse( axiom ) );
+		addRules( result );
+		result.setDesiredRecursionCount( getGenerations( depth ) );
+		result.setCompactState( compact );
+		return result;
+	}
+}
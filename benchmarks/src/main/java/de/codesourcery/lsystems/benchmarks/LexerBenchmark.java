@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.lsystems.benchmarks.Grammar.Depth;
+import de.codesourcery.lsystems.lsystem.ExpressionLexer;
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.Token;
+import de.codesourcery.lsystems.lsystem.TokenSeq;
+
+/**
+ * Measures {@link ExpressionLexer#parse(String)} on derived generations.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark 
+{
+	@Param({"KOCH","DRAGON","PLANT","STOCHASTIC_PLANT"})
+	public Grammar grammar;
+	
+	@Param({"SHALLOW","MEDIUM"})
+	public Depth depth;
+	
+	private String input;
+	
+	@Setup
+	public void setup() 
+	{
+		final LSystem system = grammar.create( depth , false );
+		system.rewriteRecursively();
+		
+		final StringBuilder buffer = new StringBuilder();
+		for ( Token tok : system.toTokenStream() ) {
+			buffer.append( tok );
+		}
+		input = buffer.toString();
+	}
+	
+	@Benchmark
+	public TokenSeq lex() {
+		return ExpressionLexer.parse( input );
+	}
+}
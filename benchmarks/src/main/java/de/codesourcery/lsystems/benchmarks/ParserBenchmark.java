@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.lsystems.dsl.nodes.AST;
+import de.codesourcery.lsystems.dsl.parsing.Parser;
+
+/**
+ * Measures parsing DSL programs with {@link Parser#parse(String)}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark 
+{
+	private static final String[] RULES = {
+		"rule: F -> F[+F]F[-F]F",
+		"rule: X -> F-[[X]+X]+F[+FX]-X",
+		"rule: F -> F+F-F-F+F",
+		"rule dragon: Y -> -FX-Y" };
+	
+	/**
+	 * Number of rules in the program.
+	 */
+	@Param({"1","10","100"})
+	public int ruleCount;
+	
+	private String program;
+	
+	@Setup
+	public void setup() 
+	{
+		// programs only consist of rule definitions, the parser does not handle multi-line 'set' statements yet
+		final StringBuilder buffer = new StringBuilder();
+		for ( int i = 0 ; i < ruleCount ; i++ ) {
+			buffer.append( RULES[ i % RULES.length ] ).append( "\n" );
+		}
+		program = buffer.toString();
+	}
+	
+	@Benchmark
+	public AST parse() {
+		return new Parser().parse( program );
+	}
+}
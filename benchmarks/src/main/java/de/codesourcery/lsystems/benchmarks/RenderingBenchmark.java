@@ -0,0 +1,138 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.lsystems.benchmarks.Grammar.Depth;
+import de.codesourcery.lsystems.Main.BasicRenderingContext2D;
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.rendering.GeometryBuffer;
+import de.codesourcery.lsystems.rendering.LSystemRenderer2D;
+import de.codesourcery.lsystems.rendering.MinMaxRenderingContext2D;
+import de.codesourcery.lsystems.rendering.Vec2;
+
+/**
+ * Measures {@link LSystemRenderer2D#render(LSystem, de.codesourcery.lsystems.rendering.RenderingContext2D)}
+ * on derived generations.
+ * 
+ * <p>{@link #render()} renders into a {@link MinMaxRenderingContext2D} so that only turtle interpretation is measured, not 
+ * rasterization. The <code>renderFitted*</code> benchmarks measure a complete auto-fitted frame, interpreting 
+ * twice (bounds, then drawing) versus once into a {@link GeometryBuffer}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderingBenchmark 
+{
+	@Param({"KOCH","DRAGON","PLANT","STOCHASTIC_PLANT"})
+	public Grammar grammar;
+	
+	@Param({"SHALLOW","MEDIUM","DEEP"})
+	public Depth depth;
+	
+	/**
+	 * Whether to run primitives through the peephole optimizer.
+	 */
+	@Param({"false","true"})
+	public boolean optimize;
+	
+	private LSystem system;
+	private LSystemRenderer2D renderer;
+	
+	private static final int IMAGE_SIZE = 512;
+	private BufferedImage image;
+	private final GeometryBuffer geometry = new GeometryBuffer();
+	
+	@Setup
+	public void setup() 
+	{
+		system = grammar.create( depth , false );
+		system.rewriteRecursively();
+		
+		renderer = new LSystemRenderer2D();
+		renderer.setAlphaInDegrees( grammar == Grammar.KOCH || grammar == Grammar.DRAGON ? 90 : 25 );
+		renderer.setOptimizePrimitives( optimize );
+		image = new BufferedImage( IMAGE_SIZE , IMAGE_SIZE , BufferedImage.TYPE_INT_ARGB );
+	}
+	
+	private BufferedImage drawFitted(Vec2 min,Vec2 max,GeometryBuffer replay) 
+	{
+		final Graphics2D g = image.createGraphics();
+		try 
+		{
+			final float scaleX = IMAGE_SIZE / ( max.x - min.x );
+			final float scaleY = IMAGE_SIZE / ( max.y - min.y );
+			final BasicRenderingContext2D ctx = new BasicRenderingContext2D( (max.x + min.x)/2f , (max.y + min.y)/2f , 
+					scaleX , scaleY , IMAGE_SIZE/2 , IMAGE_SIZE/2 , g );
+			if ( replay != null ) {
+				replay.replay( ctx );
+			} else {
+				renderer.render( system , ctx );
+			}
+		} 
+		finally {
+			g.dispose();
+		}
+		return image;
+	}
+	
+	@Benchmark
+	public MinMaxRenderingContext2D render() 
+	{
+		final MinMaxRenderingContext2D result = new MinMaxRenderingContext2D();
+		renderer.render( system , result );
+		return result;
+	}
+	
+	@Benchmark
+	public BufferedImage renderFittedTwoPass() 
+	{
+		final MinMaxRenderingContext2D bounds = new MinMaxRenderingContext2D();
+		renderer.render( system , bounds );
+		return drawFitted( bounds.min , bounds.max , null );
+	}
+	
+	@Benchmark
+	public BufferedImage renderFittedSinglePass() 
+	{
+		geometry.clear();
+		renderer.render( system , geometry );
+		final Vec2 min = new Vec2();
+		final Vec2 max = new Vec2();
+		geometry.getBounds( min , max );
+		return drawFitted( min , max , geometry );
+	}
+}
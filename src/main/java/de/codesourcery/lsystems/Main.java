@@ -22,13 +22,21 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Polygon;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyAdapter;
+import java.awt.image.BufferedImage;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.WindowConstants;
 
 import de.codesourcery.lsystems.dsl.exceptions.UnknownIdentifierException;
@@ -38,14 +46,19 @@ import de.codesourcery.lsystems.dsl.nodes.ASTNode;
 import de.codesourcery.lsystems.dsl.nodes.ExpressionContext;
 import de.codesourcery.lsystems.dsl.parsing.Parser;
 import de.codesourcery.lsystems.dsl.symbols.Identifier;
+import de.codesourcery.lsystems.lsystem.CancellationToken;
+import de.codesourcery.lsystems.lsystem.DerivationAbortedException;
+import de.codesourcery.lsystems.lsystem.DerivationAbortedException.Reason;
+import de.codesourcery.lsystems.lsystem.GenerationCache;
 import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.NumericParameterProvider;
 import de.codesourcery.lsystems.lsystem.ParameterProvider;
 import de.codesourcery.lsystems.lsystem.RuleGenerator;
 import de.codesourcery.lsystems.lsystem.Token;
 import de.codesourcery.lsystems.rendering.DefaultTokenTranslator;
+import de.codesourcery.lsystems.rendering.GeometryBuffer;
 import de.codesourcery.lsystems.rendering.HeartRenderer;
 import de.codesourcery.lsystems.rendering.LSystemRenderer2D;
-import de.codesourcery.lsystems.rendering.MinMaxRenderingContext2D;
 import de.codesourcery.lsystems.rendering.PrimitiveType;
 import de.codesourcery.lsystems.rendering.RenderingContext2D;
 import de.codesourcery.lsystems.rendering.TokenTranslator;
@@ -100,34 +113,106 @@ public class Main extends RuleGenerator
 
 		final LSystem result = new LSystemFactory().createLSystem( ast );
 
-        final ParameterProvider provider = new ParameterProvider()
+        final ParameterProvider provider = new NumericParameterProvider()
         {
             @Override
             public String getParameter(Token token, String identifier)
+            {
+                return Double.toString( getNumericParameter( token , identifier ) );
+            }
+
+            @Override
+            public double getNumericParameter(Token token, String identifier)
             {
                 switch(identifier)
                 {
                     case "angle":
-                        return Float.toString( 90 / (float) result.recursionCount );
+                        return 90 / (float) result.recursionCount;
                     case "len":
-                        return Float.toString( 10 / (float) result.recursionCount );
+                        return 10 / (float) result.recursionCount;
                     case "bigAngle":
-                        return "15";
+                        return 15;
                     case "smallAngle":
-                        return "7";
+                        return 7;
                     default:
                         throw new NoSuchElementException("Unknown parameter '"+identifier+"' in token "+token);
                 }
             }
         };
         result.setParameterProvider( provider );
+        result.setGenerationCache( new GenerationCache( 64*1024*1024 ) );
         return result;
 	}
 
+	/**
+	 * Immutable result of a background rendering pass.
+	 */
+	protected static final class RenderedFrame
+	{
+		public final BufferedImage image;
+		// model bounds of the rendered geometry
+		public final Vec2 min;
+		public final Vec2 max;
+		public final int generation;
+
+		public RenderedFrame(BufferedImage image, Vec2 min, Vec2 max, int generation)
+		{
+			this.image = image;
+			this.min = min;
+			this.max = max;
+			this.generation = generation;
+		}
+
+		public boolean hasSize(int width,int height) {
+			return image.getWidth() == width && image.getHeight() == height;
+		}
+	}
+
+	/**
+	 * Immutable parameters of a background rendering pass, captured on the EDT.
+	 */
+	protected static final class RenderRequest
+	{
+		public final int width;
+		public final int height;
+		public final long seed;
+		public final int generation;
+		public final boolean autoFit;
+
+		public RenderRequest(int width, int height, long seed, int generation, boolean autoFit)
+		{
+			this.width = width;
+			this.height = height;
+			this.seed = seed;
+			this.generation = generation;
+			this.autoFit = autoFit;
+		}
+	}
+
 	protected class MyPanel extends JPanel 
 	{
+		// delay before re-rendering after the last resize event
+		private static final int RESIZE_DELAY_MILLIS = 150;
+
+		// only accessed by workers while holding its lock
 		private final LSystem lSystem;
+
+		// only accessed on the EDT
+		private final int generation;
 		private boolean autoFit = true;
+		private RenderedFrame frame;
+		private RenderWorker worker;
+
+		// geometry of the last interpretation, only accessed while holding the lSystem lock
+		private final GeometryBuffer geometry = new GeometryBuffer();
+
+		private final Timer resizeTimer = new Timer( RESIZE_DELAY_MILLIS , new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				scheduleRender();
+			}
+		});
 		
 		public final KeyAdapter keyListener =  new KeyAdapter() 
 		{
@@ -139,7 +224,7 @@ public class Main extends RuleGenerator
 					public void run() 
 					{
 						seed = System.currentTimeMillis();
-						MyPanel.this.repaint();
+						scheduleRender();
 					}
 				});
 			}
@@ -151,59 +236,210 @@ public class Main extends RuleGenerator
 			setFocusable( true );
 			addKeyListener( keyListener );
 			this.lSystem = lSystem;
+			this.generation = lSystem.getDesiredRecursionCount();
+
+			resizeTimer.setRepeats( false );
+			addComponentListener( new ComponentAdapter() {
+
+				@Override
+				public void componentResized(ComponentEvent e) {
+					resizeTimer.restart();
+				}
+			});
 		}
 		
 		@Override
 		protected void paintComponent(Graphics g) 
 		{
 			super.paintComponent(g);
-			render((Graphics2D) g);
+
+			if ( frame != null ) {
+				g.drawImage( frame.image , 0 , 0 , null );
+			} 
+			if ( frame == null || ! frame.hasSize( getWidth() , getHeight() ) ) 
+			{
+				if ( worker == null && ! resizeTimer.isRunning() ) {
+					scheduleRender();
+				}
+			}
+		}
+
+		/**
+		 * Cancels any pending rendering and starts a new one for the current panel size.
+		 * 
+		 * Must be called on the EDT.
+		 */
+		protected void scheduleRender() 
+		{
+			resizeTimer.stop();
+			if ( worker != null ) {
+				worker.abort();
+			}
+			if ( getWidth() < 1 || getHeight() < 1 ) {
+				worker = null;
+				return;
+			}
+			worker = new RenderWorker( new RenderRequest( getWidth() , getHeight() , seed , generation , autoFit ) );
+			worker.execute();
+		}
+		
+		/**
+		 * Returns the most recently rendered frame.
+		 * 
+		 * Must be called on the EDT.
+		 * 
+		 * @return frame or <code>null</code>
+		 */
+		protected RenderedFrame getFrame() {
+			return frame;
+		}
+		
+		/**
+		 * Returns whether a rendering is in progress.
+		 * 
+		 * Must be called on the EDT.
+		 * 
+		 * @return
+		 */
+		protected boolean isRendering() {
+			return worker != null;
 		}
 
-		private void render(final Graphics2D g) 
+		/**
+		 * Derives and rasterizes the L-system off the EDT.
+		 * 
+		 * <p>The L-system is not thread-safe, workers synchronize on it so a cancelled
+		 * worker that is still running can't interfere with its successor. Everything else
+		 * a worker needs is passed in as an immutable {@link RenderRequest}, the EDT never touches the L-system.</p>
+		 */
+		protected final class RenderWorker extends SwingWorker<RenderedFrame,Void>
 		{
-			final float alphaInDegrees = 15f;
+			private final RenderRequest request;
+			// stops the derivation, cancel(false) alone would only be noticed once it has finished
+			private final CancellationToken cancellationToken = new CancellationToken();
+
+			public RenderWorker(RenderRequest request)
+			{
+				this.request = request;
+			}
 			
-			lSystem.reset();
+			/**
+			 * Cancels this worker, aborting a running derivation.
+			 */
+			public void abort() 
+			{
+				cancellationToken.cancel();
+				cancel( false );
+			}
 
-            lSystem.rewriteRecursively();
+			@Override
+			protected RenderedFrame doInBackground() 
+			{
+				synchronized( lSystem ) 
+				{
+					if ( isCancelled() ) {
+						return null;
+					}
+					lSystem.setCancellationToken( cancellationToken );
+					try {
+						lSystem.setSeed( request.seed );
+						lSystem.jumpToGeneration( request.generation );
+					} 
+					catch(DerivationAbortedException e) 
+					{
+						if ( e.getReason() == Reason.CANCELLED ) {
+							return null;
+						}
+						throw e;
+					} 
+					finally {
+						lSystem.setCancellationToken( null );
+					}
+					if ( isCancelled() ) {
+						return null;
+					}
+					return render( lSystem , 15f , request , this );
+				}
+			}
 
-			render( lSystem , alphaInDegrees ,g );
+			@Override
+			protected void done() 
+			{
+				if ( worker == this ) {
+					worker = null;
+				}
+				if ( isCancelled() ) {
+					return;
+				}
+				try 
+				{
+					final RenderedFrame result = get();
+					if ( result != null ) {
+						frame = result;
+						repaint();
+					}
+				} 
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				catch (ExecutionException e) {
+					throw new RuntimeException( e.getCause() );
+				}
+			}
 		}
 		
-		private void render(LSystem lSystem, float alphaInDegrees , Graphics2D g) 
+		private RenderedFrame render(LSystem lSystem, float alphaInDegrees , RenderRequest request, SwingWorker<?,?> worker) 
 		{
+			final int imageWidth = request.width;
+			final int imageHeight = request.height;
+			
 			final LSystemRenderer2D renderer = new HeartRenderer();
 			renderer.setTokenTranslator( myTranslator );
 			renderer.setAlphaInDegrees( alphaInDegrees );
 			
-			final float width = (getWidth()*0.98f);
-			final float height = (getHeight()*0.98f);
+			final float width = (imageWidth*0.98f);
+			final float height = (imageHeight*0.98f);
 			
-			final int screenCenterX = getWidth() / 2;
-			final int screenCenterY = getHeight() / 2;
+			final int screenCenterX = imageWidth / 2;
+			final int screenCenterY = imageHeight / 2;
 			
-			final RenderingContext2D ctx2;
-			if ( autoFit ) {
-				// 1st pass: determine min/max coordinates
-				final MinMaxRenderingContext2D ctx = new MinMaxRenderingContext2D();
-				renderer.render( lSystem , ctx );
-
-				float modelWidth = ctx.max.x - ctx.min.x ;
-				float modelHeight = ctx.max.y - ctx.min.y ;
-
-				float modelCenterX = (ctx.max.x + ctx.min.x)/2.0f;
-				float modelCenterY = (ctx.max.y + ctx.min.y)/2.0f;
-
-				float scaleX = width / modelWidth;
-				float scaleY = height / modelHeight;
+			// interpret once, recording geometry and bounds
+			geometry.clear();
+			renderer.render( lSystem , geometry );
+			if ( worker.isCancelled() ) {
+				return null;
+			}
+			final Vec2 min = new Vec2();
+			final Vec2 max = new Vec2();
+			geometry.getBounds( min , max );
 
-				// 2nd pass: render using scaled coordinates
-				ctx2 = new BasicRenderingContext2D( modelCenterX , modelCenterY , scaleX ,scaleY ,screenCenterX,screenCenterY, g );
-			} else {
-				ctx2 = new BasicRenderingContext2D( 0 , 0 , 1 , 1 ,screenCenterX,screenCenterY, g );				
+			final BufferedImage image = new BufferedImage( imageWidth , imageHeight , BufferedImage.TYPE_INT_ARGB );
+			final Graphics2D g = image.createGraphics();
+			try 
+			{
+				final RenderingContext2D ctx2;
+				if ( request.autoFit ) 
+				{
+					float modelWidth = max.x - min.x ;
+					float modelHeight = max.y - min.y ;
+	
+					float modelCenterX = (max.x + min.x)/2.0f;
+					float modelCenterY = (max.y + min.y)/2.0f;
+	
+					float scaleX = width / modelWidth;
+					float scaleY = height / modelHeight;
+	
+					ctx2 = new BasicRenderingContext2D( modelCenterX , modelCenterY , scaleX ,scaleY ,screenCenterX,screenCenterY, g );
+				} else {
+					ctx2 = new BasicRenderingContext2D( 0 , 0 , 1 , 1 ,screenCenterX,screenCenterY, g );				
+				}
+				// apply screen transform while replaying
+				geometry.replay( ctx2 );
+			} 
+			finally {
+				g.dispose();
 			}
-			renderer.render( lSystem , ctx2 );			
+			return new RenderedFrame( image , min , max , lSystem.getRecursionCount() );
 		} 
 	} 
 
@@ -237,10 +473,14 @@ public class Main extends RuleGenerator
 			point.y = screenCenterY + Math.round( ( modelY - cy ) * scaleY );
 		}
 		
+		// reused by toPolygon()
+		private final Polygon polygon = new Polygon();
+		private final Point screenCoords = new Point();
+		
 		protected Polygon toPolygon(FloatPolygon input) {
 			
-			final Polygon result = new Polygon();
-			final Point screenCoords = new Point();
+			final Polygon result = polygon;
+			result.reset();
 			
 			for ( int i = 0 ; i < input.npoints ; i++ ) 
 			{
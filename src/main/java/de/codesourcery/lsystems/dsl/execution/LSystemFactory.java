@@ -1,11 +1,17 @@
 package de.codesourcery.lsystems.dsl.execution;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 import de.codesourcery.lsystems.dsl.execution.ASTValidator.ValidationResult;
 import de.codesourcery.lsystems.dsl.nodes.AST;
 import de.codesourcery.lsystems.dsl.nodes.ExpressionContext;
 import de.codesourcery.lsystems.dsl.nodes.RuleDefinition;
 import de.codesourcery.lsystems.lsystem.ExpressionLexer;
 import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.RewritingRule;
 import de.codesourcery.lsystems.lsystem.TokenSeq;
 
 /**
@@ -23,6 +29,94 @@ public class LSystemFactory
 	 * @see ValidationResult#assertNoErrors()
 	 */
 	public LSystem createLSystem(AST ast)
+	{
+		final Definition definition = evaluate( ast );
+		
+		final LSystem result = new LSystem( definition.axiom );
+		result.setDesiredRecursionCount( definition.recursionCount );
+
+		for ( RewritingRule r : definition.rules ) {
+			result.addRule( r );
+		}
+		return result;
+	}
+	
+	/**
+	 * Updates an existing {@link LSystem} after its DSL {@link AST} has been edited.
+	 * 
+	 * <p>If the axiom did not change, rules that changed are swapped in using {@link LSystem#replaceRule(RewritingRule, RewritingRule)} 
+	 * and the system is brought to its desired recursion count using {@link LSystem#rederive()}, re-using all 
+	 * expansions not affected by the edit. Otherwise (or if rules were removed) a new system is created
+	 * that still needs to be derived. The new system takes over the existing system's parameter provider, seed, 
+	 * storage mode, generation cache, fork/join pool, derivation budget, cancellation token, listener and metrics, 
+	 * the existing system itself is left unchanged.</p>
+	 * 
+	 * @param existing system previously created from (an earlier version of) the AST
+	 * @param ast 
+	 * @return the updated system or a new one 
+	 * @throws IllegalStateException if the AST contained validation errors
+	 * @see #createLSystem(AST)
+	 */
+	public LSystem updateLSystem(LSystem existing,AST ast) 
+	{
+		if (existing == null) {
+			throw new IllegalArgumentException("existing must not be NULL");
+		}
+		final Definition definition = evaluate( ast );
+		
+		final List<RewritingRule> rules = existing.getRules();
+		if ( ! definition.axiom.getAsString( null , false ).equals( existing.getAxiom().getAsString( null , false ) ) || 
+				definition.rules.size() < rules.size() ) 
+		{
+			final LSystem result = createLSystem( ast );
+			copySettings( existing , result );
+			return result;
+		}
+		
+		existing.setDesiredRecursionCount( definition.recursionCount );
+		for ( int i = 0 ; i < definition.rules.size() ; i++ ) 
+		{
+			final RewritingRule rule = definition.rules.get(i);
+			if ( i >= rules.size() ) {
+				existing.addRule( rule );
+			} 
+			else if ( ! isSameRule( rules.get(i) , rule ) ) 
+			{
+				existing.replaceRule( rules.get(i) , rule );
+			}
+		}
+		existing.rederive();
+		return existing;
+	}
+	
+	private static void copySettings(LSystem source,LSystem target) 
+	{
+		target.setParameterProvider( source.getParameterProvider() );
+		target.setSeed( source.getSeed() );
+		if ( source.isOffHeapState() ) 
+		{
+			try {
+				target.setOffHeapStorage( source.getMappedSymbols().getFile().getParentFile() );
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to set up off-heap storage",e);
+			}
+		} else {
+			target.setCompactState( source.isCompactState() );
+		}
+		target.setGenerationCache( source.getGenerationCache() );
+		target.setForkJoinPool( source.getForkJoinPool() );
+		target.setDerivationBudget( source.getDerivationBudget() );
+		target.setCancellationToken( source.getCancellationToken() );
+		target.setDerivationListener( source.getDerivationListener() );
+		target.setMetrics( source.getMetrics() );
+	}
+	
+	private static boolean isSameRule(RewritingRule r1,RewritingRule r2) 
+	{
+		return r1.getClass() == r2.getClass() && Objects.equals( r1.getName() , r2.getName() ) && r1.toString().equals( r2.toString() );
+	}
+	
+	private Definition evaluate(AST ast) 
 	{
 		if (ast == null) {
 			throw new IllegalArgumentException("ast must not be NULL");
@@ -35,16 +129,20 @@ public class LSystemFactory
         engine.run();
 
 		final String axiomSymbols = engine.getStringValue(ASTValidator.AXIOM);
-        final int recursionCount = engine.getIntValue( ASTValidator.RECURSION_COUNT);
-
-        final TokenSeq axiom = ExpressionLexer.parse( axiomSymbols );
-
-        final LSystem result = new LSystem( axiom );
-        result.setDesiredRecursionCount( recursionCount );
-
+		
+		final Definition result = new Definition();
+		result.recursionCount = engine.getIntValue( ASTValidator.RECURSION_COUNT);
+		result.axiom = ExpressionLexer.parse( axiomSymbols );
 		for ( RuleDefinition r : ASTValidator.getRuleNodes( ast ) ) {
-			result.addRule( r.toRewritingRule() );
+			result.rules.add( r.toRewritingRule() );
 		}
 		return result;
 	}
+	
+	private static final class Definition 
+	{
+		public TokenSeq axiom;
+		public int recursionCount;
+		public final List<RewritingRule> rules = new ArrayList<>();
+	}
 }
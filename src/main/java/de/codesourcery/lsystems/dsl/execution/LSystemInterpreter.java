@@ -165,24 +165,47 @@ public class LSystemInterpreter {
             variables.put(identifier,value);
         }
 
+        /**
+         * Returns the symbol of a variable.
+         * 
+         * <p>Variables are keyed by {@link Symbol}, so looking them up by {@link Identifier} needs to compare names.</p>
+         * 
+         * @param identifier
+         * @return symbol or <code>null</code>
+         */
+        private Symbol find(Identifier identifier) 
+        {
+        	for ( Symbol symbol : variables.keySet() ) 
+        	{
+        		if ( symbol.getName().equals( identifier ) ) {
+        			return symbol;
+        		}
+        	}
+        	return null;
+        }
+        
         public MyObject get(Identifier identifier)
         {
             if (identifier == null) {
                 throw new IllegalArgumentException("identifier must not be null");
             }
-            final MyObject value = variables.get(identifier);
-            if ( value == null ) {
+            final Symbol symbol = find( identifier );
+            if ( symbol == null ) {
                 throw new UnknownIdentifierException( "Variable '"+identifier+"' is not defined" , identifier );
             }
-            return variables.get(identifier);
+            return variables.get( symbol );
         }
 
-        public void discard(Identifier identifier) {
-            variables.remove(identifier);
+        public void discard(Identifier identifier) 
+        {
+            final Symbol symbol = find( identifier );
+            if ( symbol != null ) {
+            	variables.remove( symbol );
+            }
         }
 
         public boolean isDefined(Identifier identifier) {
-            return variables.containsKey( identifier );
+            return find( identifier ) != null;
         }
 
         @Override
@@ -5,8 +5,11 @@ import de.codesourcery.lsystems.dsl.parsing.ParsedTokenType;
 import de.codesourcery.lsystems.dsl.symbols.Identifier;
 import de.codesourcery.lsystems.lsystem.ExpressionLexer;
 import de.codesourcery.lsystems.lsystem.RewritingRule;
+import de.codesourcery.lsystems.lsystem.Token;
 import de.codesourcery.lsystems.lsystem.Token.TokenType;
 import de.codesourcery.lsystems.lsystem.TokenSeq;
+import de.codesourcery.lsystems.lsystem.rules.ParametricRule;
+import de.codesourcery.lsystems.lsystem.rules.SequenceRule;
 import de.codesourcery.lsystems.lsystem.rules.SimpleRule;
 
 public class RuleDefinition extends AbstractASTNode {
@@ -30,6 +33,9 @@ public class RuleDefinition extends AbstractASTNode {
 		mergeRegion( context.next(ParsedTokenType.COLON ) );
 		
 		this.expectedExpression = parseStringAndMerge(context);
+		if ( isEmpty( this.expectedExpression ) ) {
+			context.fail("Expected at least one symbol to map from");
+		}
 		
 		mergeRegion( context.next(ParsedTokenType.ARROW) );		
 		this.replacementExpression = parseStringAndMerge(context); 
@@ -57,6 +63,10 @@ public class RuleDefinition extends AbstractASTNode {
 		}
 	}
 
+	private static boolean isEmpty(String expression) {
+		return expression == null || expression.trim().isEmpty() || ExpressionLexer.parse( expression ).toList().isEmpty();
+	}
+
 	@Override
 	public String toDebugString() {
 		return "rule";
@@ -74,8 +84,20 @@ public class RuleDefinition extends AbstractASTNode {
 
 	public RewritingRule toRewritingRule() 
 	{
+		if ( isEmpty( this.expectedExpression ) ) {
+			throw new IllegalArgumentException("Rule "+( ruleName != null ? ruleName+" " : "" )+"has no symbols to map from");
+		}
 		final TokenSeq replacement = ExpressionLexer.parse( this.replacementExpression );
 		
+		final TokenSeq expected = ExpressionLexer.parse( this.expectedExpression );
+		if ( expected.toList().size() > 1 ) {
+			return new SequenceRule( ruleName != null ? ruleName.toString() : null , expected , replacement );
+		}
+		final Token predecessor = expected.toList().get(0);
+		if ( predecessor.hasParameters() ) {
+			return new ParametricRule( ruleName != null ? ruleName.toString() : null , predecessor.value , predecessor.getParameters() , replacement );
+		}
+		
 		if ( ruleName != null ) 
 		{
 			return new SimpleRule( this.ruleName.toString() , TokenType.CHARACTERS , this.expectedExpression , replacement );
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.BitSet;
+import java.util.List;
+
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+
+/**
+ * Maps every {@link TokenType#PUSH_STATE} of a generation to the position of its matching 
+ * {@link TokenType#POP_STATE} and vice versa.
+ * 
+ * <p>The index is built in a single linear pass and allows skipping whole branches in constant time, 
+ * e.g. to find the neighbours of a symbol in the branching structure (see {@link #getLeftNeighbour(int)} and 
+ * {@link #getRightNeighbour(int)}) or to cull a branch without scanning it.</p>
+ * 
+ * <p>Unbalanced brackets are treated as ordinary brackets without a match.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see LSystem#getBracketIndex()
+ * @see PositionalRewritingContext#getBracketIndex()
+ */
+public final class BracketIndex 
+{
+	/**
+	 * Returned by {@link #getMatch(int)} for symbols that are not brackets or have no matching bracket.
+	 */
+	public static final int NONE = -1;
+	
+	private static final byte OTHER = 0;
+	private static final byte PUSH = 1;
+	private static final byte POP = 2;
+	
+	private final int size;
+	private final int[] matches;
+	private final BitSet pushes;
+	private final BitSet pops;
+	
+	private int[] stack = new int[16];
+	private int stackPtr;
+	
+	private BracketIndex(int size) 
+	{
+		this.size = size;
+		this.matches = new int[ size ];
+		this.pushes = new BitSet( size );
+		this.pops = new BitSet( size );
+	}
+	
+	private static byte kind(Token token) 
+	{
+		switch( token.type ) {
+			case PUSH_STATE:
+				return PUSH;
+			case POP_STATE:
+				return POP;
+			default:
+				return OTHER;
+		}
+	}
+	
+	/**
+	 * Indexes a generation stored as tokens.
+	 * 
+	 * @param tokens
+	 * @return
+	 */
+	public static BracketIndex create(List<Token> tokens) 
+	{
+		final BracketIndex result = new BracketIndex( tokens.size() );
+		for ( int i = 0 ; i < result.size ; i++ ) {
+			result.add( i , kind( tokens.get( i ) ) );
+		}
+		return result.finish();
+	}
+	
+	/**
+	 * Indexes a generation stored as symbol codes.
+	 * 
+	 * @param symbols
+	 * @param alphabet
+	 * @return
+	 */
+	public static BracketIndex create(SymbolBuffer symbols,TokenAlphabet alphabet) 
+	{
+		final byte[] kinds = new byte[ alphabet.size() ];
+		for ( int code = 0 ; code < kinds.length ; code++ ) {
+			kinds[ code ] = kind( alphabet.get( code ) );
+		}
+		final BracketIndex result = new BracketIndex( symbols.size() );
+		final int[] codes = symbols.array();
+		for ( int i = 0 ; i < result.size ; i++ ) {
+			result.add( i , kinds[ codes[i] ] );
+		}
+		return result.finish();
+	}
+	
+	private void add(int position,byte kind) 
+	{
+		matches[ position ] = NONE;
+		switch( kind ) 
+		{
+			case PUSH:
+				pushes.set( position );
+				if ( stackPtr == stack.length ) {
+					final int[] tmp = new int[ stack.length * 2 ];
+					System.arraycopy( stack , 0 , tmp , 0 , stackPtr );
+					stack = tmp;
+				}
+				stack[ stackPtr++ ] = position;
+				break;
+			case POP:
+				pops.set( position );
+				if ( stackPtr > 0 ) 
+				{
+					final int push = stack[ --stackPtr ];
+					matches[ push ] = position;
+					matches[ position ] = push;
+				}
+				break;
+			default:
+		}
+	}
+	
+	private BracketIndex finish() 
+	{
+		stack = null;
+		return this;
+	}
+	
+	/**
+	 * Returns the number of symbols in the indexed generation.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public boolean isPush(int position) {
+		return pushes.get( position );
+	}
+	
+	public boolean isPop(int position) {
+		return pops.get( position );
+	}
+	
+	/**
+	 * Returns the position of the matching bracket.
+	 * 
+	 * @param position
+	 * @return position or {@link #NONE}
+	 */
+	public int getMatch(int position) {
+		return matches[ position ];
+	}
+	
+	/**
+	 * Returns the position of the closest symbol to the left of a given 
+	 * symbol, skipping all branches and brackets.
+	 * 
+	 * <p>For a symbol at the start of a branch, this is the symbol the branch is attached to, 
+	 * e.g. the left neighbour of <code>C</code> in <code>A[B]C</code> and of <code>B</code> in <code>A[B]</code>
+	 * is <code>A</code>.</p>
+	 * 
+	 * @param position
+	 * @return position or {@link #NONE}
+	 */
+	public int getLeftNeighbour(int position) 
+	{
+		int i = position - 1;
+		while ( i >= 0 ) 
+		{
+			if ( pops.get( i ) ) 
+			{
+				if ( matches[i] == NONE ) {
+					return NONE;
+				}
+				i = matches[i] - 1;
+			} 
+			else if ( pushes.get( i ) ) {
+				i--;
+			} else {
+				return i;
+			}
+		}
+		return NONE;
+	}
+	
+	/**
+	 * Returns the position of the closest symbol to the right of a given 
+	 * symbol on the same branch, skipping all sub-branches.
+	 * 
+	 * <p>The right neighbour of <code>A</code> in <code>A[B]C</code> is <code>C</code>, the last 
+	 * symbol of a branch has no right neighbour.</p>
+	 * 
+	 * @param position
+	 * @return position or {@link #NONE}
+	 */
+	public int getRightNeighbour(int position) 
+	{
+		int i = position + 1;
+		while ( i < size ) 
+		{
+			if ( pushes.get( i ) ) 
+			{
+				if ( matches[i] == NONE ) {
+					return NONE;
+				}
+				i = matches[i] + 1;
+			} 
+			else if ( pops.get( i ) ) {
+				return NONE;
+			} else {
+				return i;
+			}
+		}
+		return NONE;
+	}
+}
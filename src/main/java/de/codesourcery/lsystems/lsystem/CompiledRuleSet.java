@@ -0,0 +1,286 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.Arrays;
+
+import de.codesourcery.lsystems.lsystem.rules.SimpleRule;
+import de.codesourcery.lsystems.lsystem.rules.StochasticRule;
+
+/**
+ * A context-free rule set compiled into a per-symbol expansion table.
+ *
+ * <p>For every symbol code of a {@link TokenAlphabet} this table holds the symbol codes
+ * the symbol gets replaced with in the next generation. Compilation only succeeds
+ * if the replacement of every symbol depends on nothing but the symbol itself, meaning
+ * that every symbol is either matched by a {@link SimpleRule} found through the {@link RuleIndex}
+ * or not matched by any rule at all.</p>
+ *
+ * <p>Rule sets compiled with stochastic rules allowed may also contain plain {@link StochasticRule}s whose
+ * alternatives are all {@link SimpleRule}s. The replacement of such a symbol depends on its location
+ * and is picked using {@link CounterRandom}, exactly like {@link StochasticRule#rewrite(RewritingContext, ParameterProvider)}
+ * would pick it.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class CompiledRuleSet
+{
+	private final int[][] expansions;
+	private final int[] lengths;
+	private final boolean[] identity;
+	// rule matching each symbol, NULL for identity symbols
+	private final RewritingRule[] rules;
+
+	// stochastic symbols only, NULL if there are none
+	private final StochasticRule[] stochasticRules;
+	private final int[][][] alternatives;
+	private final int[] ruleKeys;
+
+	private CompiledRuleSet(int[][] expansions,boolean[] identity,RewritingRule[] rules,StochasticRule[] stochasticRules,int[][][] alternatives,int[] ruleKeys)
+	{
+		this.expansions = expansions;
+		this.identity = identity;
+		this.rules = rules;
+		this.stochasticRules = stochasticRules;
+		this.alternatives = alternatives;
+		this.ruleKeys = ruleKeys;
+		this.lengths = new int[ expansions.length ];
+		for ( int i = 0 ; i < expansions.length ; i++ ) {
+			lengths[i] = expansions[i] != null ? expansions[i].length : -1;
+		}
+	}
+
+	/**
+	 * Compiles a deterministic rule set.
+	 *
+	 * <p>Replacement tokens not yet part of the alphabet are interned, the
+	 * resulting table covers all symbols of the alphabet after compilation.</p>
+	 *
+	 * @param alphabet
+	 * @param index
+	 * @return compiled rules or <code>null</code> if the rule set is not deterministic and context-free
+	 */
+	public static CompiledRuleSet compile(TokenAlphabet alphabet,RuleIndex index) {
+		return compile( alphabet , index , false );
+	}
+
+	/**
+	 * Compiles a rule set.
+	 *
+	 * <p>Replacement tokens not yet part of the alphabet are interned, the
+	 * resulting table covers all symbols of the alphabet after compilation.</p>
+	 *
+	 * @param alphabet
+	 * @param index
+	 * @param allowStochastic whether stochastic rules may be compiled
+	 * @return compiled rules or <code>null</code> if the rule set is not context-free
+	 * (or not deterministic while <code>allowStochastic</code> is <code>false</code>)
+	 */
+	public static CompiledRuleSet compile(TokenAlphabet alphabet,RuleIndex index,boolean allowStochastic)
+	{
+		int[][] expansions = new int[ alphabet.size() ][];
+		boolean[] identity = new boolean[ alphabet.size() ];
+		RewritingRule[] rules = new RewritingRule[ alphabet.size() ];
+		StochasticRule[] stochastic = null;
+		int[][][] alternatives = null;
+		int[] ruleKeys = null;
+
+		// note that alphabet.size() may grow while we're iterating
+		for ( int code = 0 ; code < alphabet.size() ; code++ )
+		{
+			if ( code >= expansions.length )
+			{
+				final int newSize = Math.max( alphabet.size() , expansions.length*2 );
+				expansions = grow( expansions , newSize );
+				rules = grow( rules , newSize );
+				final boolean[] tmp2 = new boolean[ newSize ];
+				System.arraycopy( identity , 0 , tmp2 , 0 , identity.length );
+				identity = tmp2;
+			}
+
+			final Token token = alphabet.get( code );
+			if ( ! index.isIndexed( token ) ) {
+				return null;
+			}
+			final RewritingRule rule = index.getIndexedRule( token );
+			rules[code] = rule;
+			if ( rule == null ) {
+				expansions[code] = new int[] { code };
+				identity[code] = true;
+			} else if ( rule instanceof SimpleRule ) {
+				expansions[code] = alphabet.intern( ((SimpleRule) rule).getReplacement().toList() );
+			} 
+			else if ( allowStochastic && isCompilable( rule ) ) 
+			{
+				if ( stochastic == null || code >= stochastic.length ) 
+				{
+					final int newSize = Math.max( alphabet.size() , expansions.length );
+					stochastic = stochastic == null ? new StochasticRule[ newSize ] : grow( stochastic , newSize );
+					alternatives = alternatives == null ? new int[ newSize ][][] : grow( alternatives , newSize );
+					final int[] tmp = new int[ newSize ];
+					if ( ruleKeys != null ) {
+						System.arraycopy( ruleKeys , 0 , tmp , 0 , ruleKeys.length );
+					}
+					ruleKeys = tmp;
+				}
+				final RewritingRule[] choices = ((StochasticRule) rule).getAlternatives();
+				final int[][] choiceExpansions = new int[ choices.length ][];
+				for ( int i = 0 ; i < choices.length ; i++ ) {
+					choiceExpansions[i] = alphabet.intern( ((SimpleRule) choices[i]).getReplacement().toList() );
+				}
+				stochastic[code] = (StochasticRule) rule;
+				alternatives[code] = choiceExpansions;
+				ruleKeys[code] = index.getPrecedence( rule );
+			} else {
+				return null;
+			}
+		}
+
+		final int size = alphabet.size();
+		if ( expansions.length != size )
+		{
+			expansions = grow( expansions , size );
+			rules = grow( rules , size );
+			final boolean[] tmp2 = new boolean[ size ];
+			System.arraycopy( identity , 0 , tmp2 , 0 , tmp2.length );
+			identity = tmp2;
+		}
+		if ( stochastic != null && stochastic.length != size ) 
+		{
+			stochastic = grow( stochastic , size );
+			alternatives = grow( alternatives , size );
+			final int[] tmp = new int[ size ];
+			System.arraycopy( ruleKeys , 0 , tmp , 0 , Math.min( size , ruleKeys.length ) );
+			ruleKeys = tmp;
+		}
+		return new CompiledRuleSet( expansions , identity , rules , stochastic , alternatives , ruleKeys );
+	}
+
+	private static <T> T[] grow(T[] array,int newSize) {
+		return Arrays.copyOf( array , newSize );
+	}
+
+	/**
+	 * Returns whether a stochastic rule picks its alternatives using nothing but
+	 * {@link CounterRandom} and all alternatives are {@link SimpleRule}s.
+	 */
+	private static boolean isCompilable(RewritingRule rule)
+	{
+		if ( rule.getClass() != StochasticRule.class ) {
+			return false;
+		}
+		for ( RewritingRule choice : ((StochasticRule) rule).getAlternatives() )
+		{
+			if ( ! ( choice instanceof SimpleRule ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of symbols covered by this table.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return expansions.length;
+	}
+
+	/**
+	 * Returns whether this rule set contains any stochastic rules.
+	 *
+	 * @return
+	 */
+	public boolean isStochastic() {
+		return stochasticRules != null;
+	}
+
+	/**
+	 * Returns whether the replacement of a symbol is picked randomly.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public boolean isStochastic(int code) {
+		return stochasticRules != null && stochasticRules[code] != null;
+	}
+
+	/**
+	 * Returns the symbols a symbol gets replaced with.
+	 *
+	 * @param code
+	 * @return replacement symbols, the caller must not modify the returned array
+	 * @throws IllegalStateException if the symbol is matched by a stochastic rule
+	 */
+	public int[] getExpansion(int code)
+	{
+		final int[] result = expansions[code];
+		if ( result == null ) {
+			throw new IllegalStateException("Symbol "+code+" is matched by a stochastic rule");
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the symbols a symbol at a given location gets replaced with.
+	 *
+	 * @param code
+	 * @param seed
+	 * @param generation generation being rewritten
+	 * @param position position of the symbol within this generation
+	 * @return replacement symbols, the caller must not modify the returned array
+	 */
+	public int[] getExpansion(int code,long seed,int generation,long position)
+	{
+		final int[] result = expansions[code];
+		if ( result != null ) {
+			return result;
+		}
+		final float value = CounterRandom.nextFloat( seed , generation , position , ruleKeys[code] );
+		return alternatives[code][ stochasticRules[code].chooseIndex( value ) ];
+	}
+
+	/**
+	 * Returns the rule that replaces a symbol.
+	 *
+	 * @param code
+	 * @return rule or <code>null</code> if the symbol is not matched by any rule
+	 */
+	public RewritingRule getRule(int code) {
+		return rules[code];
+	}
+
+	/**
+	 * Returns the number of symbols a symbol gets replaced with.
+	 *
+	 * @param code
+	 * @return number of symbols or -1 if the symbol is matched by a stochastic rule
+	 */
+	public int getExpansionLength(int code) {
+		return lengths[code];
+	}
+
+	/**
+	 * Returns whether no rule matches a given symbol.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public boolean isIdentity(int code) {
+		return identity[code];
+	}
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+/**
+ * A rule that looks at symbols other than the one being rewritten, using
+ * {@link PositionalRewritingContext#get(long)} or {@link PositionalRewritingContext#getBracketIndex()}.
+ *
+ * <p>This is a marker interface. Derivation strategies that only provide access to the symbol 
+ * being rewritten (like {@link DerivationCursor}) reject such rules up front.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface ContextSensitiveRule extends RewritingRule
+{
+}
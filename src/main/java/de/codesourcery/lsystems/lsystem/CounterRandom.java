@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+/**
+ * Counter-based random number generator.
+ *
+ * <p>Random numbers are not drawn from a stateful generator but computed by hashing
+ * <code>(seed, generation, position, rule)</code>, so every stochastic decision made while rewriting
+ * is a pure function of where it is made. Any part of any generation can be derived independently
+ * (in parallel, lazily or again later) and yields exactly the same result as a sequential derivation.</p>
+ *
+ * <p>Hashing uses the SplitMix64 finalizer.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see PositionalRewritingContext#random(RewritingRule)
+ */
+public final class CounterRandom
+{
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private CounterRandom() {
+	}
+
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns a 64-bit hash of a rewriting location.
+	 *
+	 * @param seed
+	 * @param generation generation being rewritten
+	 * @param position position of the rewritten symbol within this generation
+	 * @param rule identifies the rule making the decision
+	 * @return
+	 */
+	public static long hash(long seed,int generation,long position,int rule)
+	{
+		long h = mix( seed + GOLDEN_GAMMA );
+		h = mix( h + GOLDEN_GAMMA * ( generation + 1L ) );
+		h = mix( h + GOLDEN_GAMMA * ( position + 1L ) );
+		return mix( h + GOLDEN_GAMMA * ( rule + 1L ) );
+	}
+
+	/**
+	 * Returns a uniformly distributed random number in [0,1[ for a rewriting location.
+	 *
+	 * @param seed
+	 * @param generation generation being rewritten
+	 * @param position position of the rewritten symbol within this generation
+	 * @param rule identifies the rule making the decision
+	 * @return
+	 */
+	public static float nextFloat(long seed,int generation,long position,int rule) {
+		return ( hash( seed , generation , position , rule ) >>> 40 ) * 0x1.0p-24f;
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+/**
+ * Thrown when deriving a generation exceeds the {@link DerivationBudget} or has been cancelled.
+ * 
+ * <p>The L-system is left at the last generation that was derived completely.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class DerivationAbortedException extends RuntimeException 
+{
+	private static final long serialVersionUID = 1L;
+
+	public static enum Reason 
+	{
+		CANCELLED,
+		MAX_SYMBOLS_EXCEEDED,
+		MAX_BYTES_EXCEEDED,
+		DEADLINE_EXCEEDED
+	}
+	
+	private final Reason reason;
+	private final int generation;
+	
+	public DerivationAbortedException(Reason reason,int generation,String message) 
+	{
+		super( message );
+		this.reason = reason;
+		this.generation = generation;
+	}
+	
+	public Reason getReason() {
+		return reason;
+	}
+	
+	/**
+	 * Returns the generation that was being derived.
+	 * 
+	 * @return
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+}
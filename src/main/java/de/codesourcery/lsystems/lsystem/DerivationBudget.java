@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits for deriving generations of an L-system.
+ * 
+ * <p>Instances are immutable, use the <code>with...()</code> methods to derive budgets with different limits.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see LSystem#setDerivationBudget(DerivationBudget)
+ */
+public final class DerivationBudget 
+{
+	/**
+	 * A budget without any limits.
+	 */
+	public static final DerivationBudget UNLIMITED = new DerivationBudget( Long.MAX_VALUE , Long.MAX_VALUE , Long.MAX_VALUE );
+	
+	private final long maxSymbols;
+	private final long maxBytes;
+	private final long deadlineMillis;
+	
+	/**
+	 * Creates a budget.
+	 * 
+	 * @param maxSymbols max. number of symbols a generation may have
+	 * @param maxBytes max. estimated memory used to store a generation
+	 * @param deadlineMillis point in time (as returned by {@link System#currentTimeMillis()}) after which 
+	 * derivation is aborted, {@link Long#MAX_VALUE} for no deadline
+	 */
+	public DerivationBudget(long maxSymbols,long maxBytes,long deadlineMillis) 
+	{
+		if ( maxSymbols < 1 ) {
+			throw new IllegalArgumentException("Invalid symbol limit: "+maxSymbols);
+		}
+		if ( maxBytes < 1 ) {
+			throw new IllegalArgumentException("Invalid memory limit: "+maxBytes);
+		}
+		this.maxSymbols = maxSymbols;
+		this.maxBytes = maxBytes;
+		this.deadlineMillis = deadlineMillis;
+	}
+	
+	public DerivationBudget withMaxSymbols(long maxSymbols) {
+		return new DerivationBudget( maxSymbols , maxBytes , deadlineMillis );
+	}
+	
+	public DerivationBudget withMaxBytes(long maxBytes) {
+		return new DerivationBudget( maxSymbols , maxBytes , deadlineMillis );
+	}
+	
+	public DerivationBudget withDeadline(long deadlineMillis) {
+		return new DerivationBudget( maxSymbols , maxBytes , deadlineMillis );
+	}
+	
+	/**
+	 * Returns a copy of this budget with a deadline relative to the current time.
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public DerivationBudget withTimeout(long timeout,TimeUnit unit) {
+		return withDeadline( System.currentTimeMillis() + unit.toMillis( timeout ) );
+	}
+	
+	public long getMaxSymbols() {
+		return maxSymbols;
+	}
+	
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	public long getDeadlineMillis() {
+		return deadlineMillis;
+	}
+	
+	@Override
+	public String toString() {
+		return "DerivationBudget[ maxSymbols="+maxSymbols+", maxBytes="+maxBytes+", deadline="+deadlineMillis+" ]";
+	}
+}
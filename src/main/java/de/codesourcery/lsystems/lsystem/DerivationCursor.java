@@ -0,0 +1,322 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.rules.SimpleRule;
+
+/**
+ * A {@link TokenStream} that lazily derives generation N of an L-system.
+ *
+ * <p>Instead of materializing every intermediate generation, the axiom is expanded
+ * depth-first on demand. The cursor keeps an explicit stack with one frame per generation,
+ * each frame holding a replacement sequence and the current position within it, so memory
+ * usage is O(N * max. replacement length) instead of O(size of generation N).</p>
+ *
+ * <p>Rules are expected to be context-free, each rule must consume exactly the symbol it matched.
+ * The cursor tracks the position of every expanded symbol within its generation, so stochastic
+ * rules using {@link PositionalRewritingContext#random(RewritingRule)} yield the same result as {@link LSystem#rewriteRecursively()}
+ * with the same seed.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class DerivationCursor implements TokenStream
+{
+	private final RuleIndex rules;
+	private final ParameterProvider provider;
+	private final int generation;
+
+	// frame stack, frame #i holds symbols of generation i
+	private final List<List<Token>> sequences;
+	private final int[] positions;
+	// number of symbols of generation i taken so far
+	private final long[] counters;
+	private int top;
+
+	private final ExpansionContext context;
+
+	private Token current;
+
+	/**
+	 * Create instance.
+	 *
+	 * @param axiom
+	 * @param rules
+	 * @param provider
+	 * @param generation number of times the axiom should be rewritten
+	 * @throws IllegalArgumentException if any rule has a multi-symbol predecessor or is a {@link ContextSensitiveRule}
+	 */
+	public DerivationCursor(List<Token> axiom,RuleIndex rules,ParameterProvider provider,int generation)
+	{
+		this(axiom,rules,provider,generation,0);
+	}
+
+	/**
+	 * Create instance.
+	 *
+	 * @param axiom
+	 * @param rules
+	 * @param provider
+	 * @param generation number of times the axiom should be rewritten
+	 * @param seed seed used by stochastic rules
+	 * @throws IllegalArgumentException if any rule has a multi-symbol predecessor or is a {@link ContextSensitiveRule}
+	 */
+	public DerivationCursor(List<Token> axiom,RuleIndex rules,ParameterProvider provider,int generation,long seed)
+	{
+		if ( generation < 0 ) {
+			throw new IllegalArgumentException("Invalid generation: "+generation);
+		}
+		if ( rules.getAutomaton() != null ) {
+			throw new IllegalArgumentException("Rules with multi-symbol predecessors are not supported");
+		}
+		for ( RewritingRule rule : rules.getRules() ) 
+		{
+			if ( rule instanceof ContextSensitiveRule ) {
+				throw new IllegalArgumentException("Context-sensitive rules are not supported: "+rule);
+			}
+		}
+		this.rules = rules;
+		this.provider = provider;
+		this.generation = generation;
+		this.sequences = new ArrayList<>( Collections.<List<Token>>nCopies( generation+1 , null ) );
+		this.positions = new int[ generation+1 ];
+		this.counters = new long[ generation+1 ];
+		this.context = new ExpansionContext( rules , seed );
+		this.sequences.set( 0 , axiom );
+		this.top = 0;
+		this.current = advance();
+	}
+
+	/**
+	 * Returns the generation this cursor derives.
+	 *
+	 * @return
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	private Token advance()
+	{
+		while ( top >= 0 )
+		{
+			final List<Token> seq = sequences.get( top );
+			if ( positions[top] >= seq.size() )
+			{
+				sequences.set( top , null );
+				top--;
+				continue;
+			}
+			final Token tok = seq.get( positions[top]++ );
+			final long position = counters[top]++;
+			if ( top == generation ) {
+				return tok;
+			}
+
+			final List<Token> expansion = expand( tok , top , position );
+			if ( expansion == null ) 
+			{
+				// no rule matches and none ever will, symbol stays the same in all further generations
+				for ( int i = top+1 ; i <= generation ; i++ ) {
+					counters[i]++;
+				}
+				return tok;
+			}
+			top++;
+			sequences.set( top , expansion );
+			positions[top] = 0;
+		}
+		return null;
+	}
+
+	private List<Token> expand(Token tok,int recursionCount,long position)
+	{
+		context.reset( tok , recursionCount , position );
+		final RewritingRule rule = rules.findMatch( context , provider );
+		if ( rule == null ) {
+			return rules.isIndexed( tok ) ? null : Collections.singletonList( tok );
+		}
+		if ( rule instanceof SimpleRule ) {
+			return ((SimpleRule) rule).getReplacement().toList();
+		}
+		rule.rewrite( context , provider );
+		if ( ! context.eof() ) {
+			throw new IllegalStateException("Rule "+rule+" did not consume symbol "+tok);
+		}
+		return context.output;
+	}
+
+	@Override
+	public boolean eof() {
+		return current == null;
+	}
+
+	@Override
+	public Token next()
+	{
+		if ( eof() ) {
+			throw new IllegalStateException("Already at EOF");
+		}
+		final Token result = current;
+		current = advance();
+		return result;
+	}
+
+	@Override
+	public Token peek()
+	{
+		if ( eof() ) {
+			throw new IllegalStateException("Already at EOF");
+		}
+		return current;
+	}
+
+	@Override
+	public Iterator<Token> iterator()
+	{
+		return new Iterator<Token>() {
+
+			@Override
+			public boolean hasNext() {
+				return ! eof();
+			}
+
+			@Override
+			public Token next()
+			{
+				if ( eof() ) {
+					throw new NoSuchElementException();
+				}
+				return DerivationCursor.this.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("remove()");
+			}
+		};
+	}
+
+	/**
+	 * Context used to apply a rule to a single symbol.
+	 */
+	protected static final class ExpansionContext implements PositionalRewritingContext
+	{
+		private final RuleIndex rules;
+		private final long seed;
+		private Token token;
+		private boolean consumed;
+		private int recursionCount;
+		private long position;
+		public List<Token> output;
+
+		public ExpansionContext(RuleIndex rules,long seed) {
+			this.rules = rules;
+			this.seed = seed;
+		}
+
+		public void reset(Token token,int recursionCount,long position)
+		{
+			this.token = token;
+			this.consumed = false;
+			this.recursionCount = recursionCount;
+			this.position = position;
+			this.output = new ArrayList<>();
+		}
+
+		@Override
+		public long getPosition() {
+			return position;
+		}
+
+		@Override
+		public float random(RewritingRule rule) {
+			return CounterRandom.nextFloat( seed , recursionCount , position , rules.getPrecedence( rule ) );
+		}
+
+		@Override
+		public boolean eof() {
+			return consumed;
+		}
+
+		@Override
+		public Token peek()
+		{
+			if ( consumed ) {
+				throw new IllegalStateException("Already at EOF");
+			}
+			return token;
+		}
+
+		@Override
+		public boolean peek(TokenType type) {
+			return type.equals( peek().type );
+		}
+
+		@Override
+		public Token next()
+		{
+			final Token result = peek();
+			consumed = true;
+			return result;
+		}
+
+		@Override
+		public Token next(TokenType type)
+		{
+			if ( ! peek(type) ) {
+				throw new RuntimeException("Unexpected token "+peek()+", expected: "+type);
+			}
+			return next();
+		}
+
+		@Override
+		public void write(TokenSeq s) {
+			output.addAll( s.toList() );
+		}
+
+		@Override
+		public void write(Token s) {
+			output.add( s );
+		}
+
+		@Override
+		public int getRecursionCount() {
+			return recursionCount;
+		}
+
+		@Override
+		public Token get(long position) throws UnsupportedOperationException
+		{
+			if ( position != this.position ) {
+				// context-sensitive rules are rejected by the constructor
+				throw new UnsupportedOperationException("Lazy derivation only provides access to the symbol being rewritten");
+			}
+			return token;
+		}
+
+		@Override
+		public BracketIndex getBracketIndex() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Represents a generation of a deterministic, context-free L-system as a directed acyclic graph.
+ *
+ * <p>Every (symbol,depth) expansion is stored exactly once as a shared node that references the nodes
+ * of its replacement symbols at depth-1, so memory usage is O(symbols * generation) no matter how
+ * large the generation itself is. The flat sequence of symbols is never materialized but can
+ * be iterated and randomly accessed.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CompiledRuleSet
+ */
+public final class DerivationDag
+{
+	private final TokenAlphabet alphabet;
+	private final CompiledRuleSet rules;
+	private final int generation;
+	private final int[] axiom;
+	private final Node root;
+
+	// nodes[depth][symbol], hash-consed expansions
+	private final Node[][] nodes;
+	private int nodeCount;
+	private int reusedNodeCount;
+
+	protected static final class Node
+	{
+		public final int symbol; // only valid for leaves
+		public final Node[] children; // NULL for leaves
+		public final long[] offsets; // offsets[i] = index of first symbol of children[i]
+		public final long length;
+
+		public Node(int symbol)
+		{
+			this.symbol = symbol;
+			this.children = null;
+			this.offsets = null;
+			this.length = 1;
+		}
+
+		public Node(Node[] children) throws ArithmeticException
+		{
+			this.symbol = -1;
+			this.children = children;
+			this.offsets = new long[ children.length ];
+			long len = 0;
+			for ( int i = 0 ; i < children.length ; i++ )
+			{
+				offsets[i] = len;
+				final long childLen = children[i].length;
+				if ( len > Long.MAX_VALUE - childLen ) {
+					throw new ArithmeticException("Generation too large, more than "+Long.MAX_VALUE+" symbols");
+				}
+				len += childLen;
+			}
+			this.length = len;
+		}
+
+		public boolean isLeaf() {
+			return children == null;
+		}
+	}
+
+	private DerivationDag(TokenAlphabet alphabet,CompiledRuleSet rules,int[] axiom,int generation,DerivationDag previous,BitSet affectedSymbols)
+	{
+		this.alphabet = alphabet;
+		this.rules = rules;
+		this.generation = generation;
+		this.axiom = axiom;
+		this.nodes = new Node[ generation+1 ][];
+		for ( int i = 0 ; i <= generation ; i++ ) {
+			nodes[i] = new Node[ rules.size() ];
+		}
+		
+		if ( previous != null ) 
+		{
+			// re-use expansions of all symbols whose derivation did not change
+			final int maxDepth = Math.min( generation , previous.generation );
+			for ( int depth = 0 ; depth <= maxDepth ; depth++ ) 
+			{
+				final Node[] src = previous.nodes[depth];
+				final Node[] dst = nodes[depth];
+				for ( int symbol = 0 , len = Math.min( src.length , dst.length ) ; symbol < len ; symbol++ ) 
+				{
+					if ( src[symbol] != null && ! affectedSymbols.get( symbol ) ) {
+						dst[symbol] = src[symbol];
+						nodeCount++;
+						reusedNodeCount++;
+					}
+				}
+			}
+		}
+		
+		final Node[] children = new Node[ axiom.length ];
+		for ( int i = 0 ; i < axiom.length ; i++ ) {
+			children[i] = node( axiom[i] , generation );
+		}
+		this.root = new Node( children );
+	}
+
+	/**
+	 * Derives a generation.
+	 *
+	 * @param axiom
+	 * @param index
+	 * @param generation
+	 * @return DAG or <code>null</code> if the rules are not deterministic and context-free
+	 * @throws ArithmeticException if the generation has more than {@link Long#MAX_VALUE} symbols
+	 */
+	public static DerivationDag create(List<Token> axiom,RuleIndex index,int generation) throws ArithmeticException
+	{
+		if ( generation < 0 ) {
+			throw new IllegalArgumentException("Invalid generation: "+generation);
+		}
+		final TokenAlphabet alphabet = new TokenAlphabet();
+		final int[] symbols = alphabet.intern( axiom );
+		final CompiledRuleSet rules = CompiledRuleSet.compile( alphabet , index );
+		if ( rules == null ) {
+			return null;
+		}
+		return new DerivationDag( alphabet , rules , symbols , generation , null , null );
+	}
+
+	/**
+	 * Derives a generation using a modified rule set, re-using all expansions
+	 * from this DAG that are not affected by the modifications.
+	 * 
+	 * <p>Rule changes are detected by comparing the compiled replacement of every symbol, a
+	 * {@link RuleDependencyGraph} then yields the symbols whose derivation depends on any of the changed
+	 * symbols. Only expansions of these symbols are derived again.</p>
+	 *
+	 * @param index modified rules
+	 * @param generation generation to derive, may differ from this DAG's generation
+	 * @return DAG or <code>null</code> if the modified rules are not deterministic and context-free
+	 * @throws ArithmeticException if the generation has more than {@link Long#MAX_VALUE} symbols
+	 */
+	public DerivationDag rederive(RuleIndex index,int generation) throws ArithmeticException
+	{
+		if ( generation < 0 ) {
+			throw new IllegalArgumentException("Invalid generation: "+generation);
+		}
+		final CompiledRuleSet newRules = CompiledRuleSet.compile( alphabet , index );
+		if ( newRules == null ) {
+			return null;
+		}
+		final BitSet changed = RuleDependencyGraph.getChangedSymbols( rules , newRules );
+		if ( changed.isEmpty() && generation == this.generation ) {
+			return this;
+		}
+		final BitSet affected = new RuleDependencyGraph( newRules ).getAffectedSymbols( changed );
+		return new DerivationDag( alphabet , newRules , axiom , generation , this , affected );
+	}
+
+	/**
+	 * Returns the node representing a symbol expanded <code>depth</code> times.
+	 */
+	private Node node(int symbol,int depth)
+	{
+		Node result = nodes[depth][symbol];
+		if ( result == null )
+		{
+			if ( depth == 0 || rules.isIdentity( symbol ) ) {
+				result = depth == 0 ? new Node( symbol ) : node( symbol , 0 );
+			}
+			else
+			{
+				final int[] expansion = rules.getExpansion( symbol );
+				final Node[] children = new Node[ expansion.length ];
+				for ( int i = 0 ; i < expansion.length ; i++ ) {
+					children[i] = node( expansion[i] , depth-1 );
+				}
+				result = new Node( children );
+			}
+			nodes[depth][symbol] = result;
+			nodeCount++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the generation represented by this DAG.
+	 *
+	 * @return
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the number of (symbol,depth) expansions held by this DAG.
+	 *
+	 * @return
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns how many of this DAG's expansions were taken over from the DAG 
+	 * it was derived from.
+	 *
+	 * @return
+	 * @see #rederive(RuleIndex, int)
+	 */
+	public int getReusedNodeCount() {
+		return reusedNodeCount;
+	}
+
+	/**
+	 * Returns the total number of symbols in this generation.
+	 *
+	 * @return
+	 */
+	public long length() {
+		return root.length;
+	}
+
+	/**
+	 * Returns the symbol at a given position.
+	 *
+	 * <p>Runs in O(generation * log(max. replacement length)).</p>
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Token get(long index)
+	{
+		if ( index < 0 || index >= root.length ) {
+			throw new IndexOutOfBoundsException("Index "+index+" out of range [0,"+root.length+"[");
+		}
+		Node current = root;
+		long offset = index;
+		while ( ! current.isLeaf() )
+		{
+			int child = Arrays.binarySearch( current.offsets , offset );
+			if ( child < 0 ) {
+				child = -child - 2; // insertion point - 1
+			}
+			// skip zero-length children sharing the same offset
+			while ( current.children[child].length == 0 ) {
+				child++;
+			}
+			offset -= current.offsets[child];
+			current = current.children[child];
+		}
+		return alphabet.get( current.symbol );
+	}
+
+	/**
+	 * Returns a stream over this generation's symbols, starting at the first symbol.
+	 *
+	 * @return
+	 */
+	public TokenStream toTokenStream() {
+		return new DagStream();
+	}
+
+	protected final class DagStream implements TokenStream
+	{
+		private final Node[] stack = new Node[ generation+2 ];
+		private final int[] positions = new int[ generation+2 ];
+		private int top;
+		private Token current;
+
+		public DagStream()
+		{
+			stack[0] = root;
+			positions[0] = 0;
+			top = 0;
+			current = advance();
+		}
+
+		private Token advance()
+		{
+			while ( top >= 0 )
+			{
+				final Node node = stack[top];
+				if ( positions[top] >= node.children.length ) {
+					top--;
+					continue;
+				}
+				final Node child = node.children[ positions[top]++ ];
+				if ( child.isLeaf() ) {
+					return alphabet.get( child.symbol );
+				}
+				top++;
+				stack[top] = child;
+				positions[top] = 0;
+			}
+			return null;
+		}
+
+		@Override
+		public boolean eof() {
+			return current == null;
+		}
+
+		@Override
+		public Token next()
+		{
+			if ( eof() ) {
+				throw new IllegalStateException("Already at EOF");
+			}
+			final Token result = current;
+			current = advance();
+			return result;
+		}
+
+		@Override
+		public Token peek()
+		{
+			if ( eof() ) {
+				throw new IllegalStateException("Already at EOF");
+			}
+			return current;
+		}
+
+		@Override
+		public Iterator<Token> iterator()
+		{
+			return new Iterator<Token>() {
+
+				@Override
+				public boolean hasNext() {
+					return ! eof();
+				}
+
+				@Override
+				public Token next()
+				{
+					if ( eof() ) {
+						throw new NoSuchElementException();
+					}
+					return DagStream.this.next();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("remove()");
+				}
+			};
+		}
+	}
+}
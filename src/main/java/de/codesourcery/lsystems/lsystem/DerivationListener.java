@@ -0,0 +1,48 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+/**
+ * Receives progress notifications while an L-system is being rewritten.
+ * 
+ * <p>Listeners are invoked by the thread that rewrites the L-system and should return quickly. While a generation 
+ * is rewritten {@link LSystem#setForkJoinPool(java.util.concurrent.ForkJoinPool) in parallel}, progress is reported
+ * by the pool's threads instead (never by two threads at the same time) and counts symbols as the size of the next
+ * generation is determined, before they are written.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see LSystem#setDerivationListener(DerivationListener)
+ */
+public interface DerivationListener 
+{
+	/**
+	 * Invoked periodically while a generation is being derived.
+	 * 
+	 * @param generation the generation being derived
+	 * @param symbolsProduced number of symbols of this generation derived so far
+	 * @param symbolsPerSecond throughput since derivation of this generation started
+	 */
+	public void progress(int generation,long symbolsProduced,double symbolsPerSecond);
+	
+	/**
+	 * Invoked after a generation has been derived.
+	 * 
+	 * @param generation
+	 * @param size number of symbols
+	 * @param elapsedNanos time it took to derive the generation
+	 */
+	public void generationFinished(int generation,long size,long elapsedNanos);
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects statistics about rewriting an L-system.
+ * 
+ * <p>Records how often each rule was applied and the size, duration and growth factor of every
+ * derived generation. Rules are counted while rewriting symbol-by-symbol only, generations rewritten 
+ * using {@link CompiledRuleSet compiled rules} (in parallel or off-heap) only contribute their size and duration.</p>
+ * 
+ * <p>Rule matches are counted in a per-generation {@link Recorder} that is merged into this object when the generation
+ * is complete, so metrics may safely be polled by other threads (e.g. through JMX, see {@link #registerMBean(String)})
+ * while derivation is running.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see LSystem#setMetrics(DerivationMetrics)
+ */
+public final class DerivationMetrics implements DerivationMetricsMBean
+{
+	/**
+	 * Max. number of generations whose statistics are kept.
+	 */
+	public static final int MAX_HISTORY = 256;
+	
+	private final ArrayDeque<GenerationStats> history = new ArrayDeque<>();
+	private final Map<RewritingRule,long[]> ruleMatches = new IdentityHashMap<>();
+	private long generationsDerived;
+	private long totalNanos;
+	private long totalRuleMatches;
+	
+	/**
+	 * Statistics of a single generation.
+	 */
+	public static final class GenerationStats 
+	{
+		public final int generation;
+		public final long size;
+		public final long durationNanos;
+		public final double growthFactor;
+		public final long estimatedBytes;
+		
+		public GenerationStats(int generation, long size, long durationNanos,double growthFactor, long estimatedBytes) 
+		{
+			this.generation = generation;
+			this.size = size;
+			this.durationNanos = durationNanos;
+			this.growthFactor = growthFactor;
+			this.estimatedBytes = estimatedBytes;
+		}
+		
+		@Override
+		public String toString() {
+			return "generation "+generation+": "+size+" symbols, "+(durationNanos/1000000d)+" ms, growth "+growthFactor+", ~"+estimatedBytes+" bytes";
+		}
+	}
+	
+	/**
+	 * Immutable copy of all metrics.
+	 */
+	public static final class Snapshot 
+	{
+		public final List<GenerationStats> generations;
+		public final Map<RewritingRule,Long> ruleMatches;
+		public final long generationsDerived;
+		public final long totalNanos;
+		
+		protected Snapshot(List<GenerationStats> generations, Map<RewritingRule, Long> ruleMatches, long generationsDerived,long totalNanos) 
+		{
+			this.generations = Collections.unmodifiableList( generations );
+			this.ruleMatches = Collections.unmodifiableMap( ruleMatches );
+			this.generationsDerived = generationsDerived;
+			this.totalNanos = totalNanos;
+		}
+		
+		/**
+		 * Returns the statistics of the most recently derived generation.
+		 * 
+		 * @return statistics or <code>null</code>
+		 */
+		public GenerationStats getLastGeneration() {
+			return generations.isEmpty() ? null : generations.get( generations.size() - 1 );
+		}
+	}
+	
+	/**
+	 * Collects metrics while a single generation is derived.
+	 * 
+	 * <p>Not thread-safe.</p>
+	 */
+	public final class Recorder 
+	{
+		private final int generation;
+		private final long inputSize;
+		private final long startNanos = System.nanoTime();
+		private final Map<RewritingRule,long[]> matches = new IdentityHashMap<>();
+		
+		protected Recorder(int generation,long inputSize) 
+		{
+			this.generation = generation;
+			this.inputSize = inputSize;
+		}
+		
+		/**
+		 * Records that a rule has been applied.
+		 * 
+		 * @param rule
+		 */
+		public void ruleApplied(RewritingRule rule) 
+		{
+			final long[] counter = matches.get( rule );
+			if ( counter == null ) {
+				matches.put( rule , new long[] { 1 } );
+			} else {
+				counter[0]++;
+			}
+		}
+		
+		/**
+		 * Records that a rule has been applied a number of times.
+		 * 
+		 * @param rule
+		 * @param count
+		 */
+		public void ruleApplied(RewritingRule rule,long count) 
+		{
+			final long[] counter = matches.get( rule );
+			if ( counter == null ) {
+				matches.put( rule , new long[] { count } );
+			} else {
+				counter[0] += count;
+			}
+		}
+		
+		/**
+		 * Merges this recorder into its metrics.
+		 * 
+		 * @param size size of the derived generation
+		 * @param bytesPerSymbol estimated memory needed to store one symbol
+		 */
+		public void finished(long size,int bytesPerSymbol) {
+			merge( this , size , bytesPerSymbol );
+		}
+	}
+	
+	/**
+	 * Starts recording a generation.
+	 * 
+	 * @param generation generation being derived
+	 * @param inputSize size of the previous generation
+	 * @return
+	 */
+	public Recorder startGeneration(int generation,long inputSize) {
+		return new Recorder( generation , inputSize );
+	}
+	
+	private synchronized void merge(Recorder recorder,long size,int bytesPerSymbol) 
+	{
+		final long nanos = System.nanoTime() - recorder.startNanos;
+		for ( Map.Entry<RewritingRule,long[]> entry : recorder.matches.entrySet() ) 
+		{
+			final long count = entry.getValue()[0];
+			final long[] counter = ruleMatches.get( entry.getKey() );
+			if ( counter == null ) {
+				ruleMatches.put( entry.getKey() , new long[] { count } );
+			} else {
+				counter[0] += count;
+			}
+			totalRuleMatches += count;
+		}
+		final double growth = recorder.inputSize > 0 ? size / (double) recorder.inputSize : Double.NaN;
+		if ( history.size() == MAX_HISTORY ) {
+			history.removeFirst();
+		}
+		history.addLast( new GenerationStats( recorder.generation , size , nanos , growth , size * bytesPerSymbol ) );
+		generationsDerived++;
+		totalNanos += nanos;
+	}
+	
+	/**
+	 * Returns a consistent copy of all metrics.
+	 * 
+	 * @return
+	 */
+	public synchronized Snapshot snapshot() 
+	{
+		final Map<RewritingRule,Long> matches = new LinkedHashMap<>();
+		for ( Map.Entry<RewritingRule,long[]> entry : ruleMatches.entrySet() ) {
+			matches.put( entry.getKey() , entry.getValue()[0] );
+		}
+		return new Snapshot( new ArrayList<>( history ) , matches , generationsDerived , totalNanos );
+	}
+	
+	@Override
+	public synchronized void reset() 
+	{
+		history.clear();
+		ruleMatches.clear();
+		generationsDerived = 0;
+		totalNanos = 0;
+		totalRuleMatches = 0;
+	}
+	
+	/**
+	 * Registers this object with the platform MBean server.
+	 * 
+	 * @param name name to use for the <code>name</code> key property
+	 * @return object name this object was registered under
+	 * @throws RuntimeException if registration failed
+	 */
+	public ObjectName registerMBean(String name) 
+	{
+		try 
+		{
+			final ObjectName objectName = new ObjectName( "de.codesourcery.lsystems:type=DerivationMetrics,name="+ObjectName.quote( name ) );
+			ManagementFactory.getPlatformMBeanServer().registerMBean( this , objectName );
+			return objectName;
+		} 
+		catch (JMException e) {
+			throw new RuntimeException("Failed to register MBean '"+name+"'",e);
+		}
+	}
+	
+	@Override
+	public synchronized long getGenerationsDerived() {
+		return generationsDerived;
+	}
+	
+	@Override
+	public synchronized long getLastGenerationSize() {
+		return history.isEmpty() ? 0 : history.getLast().size;
+	}
+	
+	@Override
+	public synchronized double getLastGenerationMillis() {
+		return history.isEmpty() ? 0 : history.getLast().durationNanos / 1000000d;
+	}
+	
+	@Override
+	public synchronized double getLastGrowthFactor() {
+		return history.isEmpty() ? Double.NaN : history.getLast().growthFactor;
+	}
+	
+	@Override
+	public synchronized long getLastGenerationBytes() {
+		return history.isEmpty() ? 0 : history.getLast().estimatedBytes;
+	}
+	
+	@Override
+	public synchronized double getTotalMillis() {
+		return totalNanos / 1000000d;
+	}
+	
+	@Override
+	public synchronized long getTotalRuleMatches() {
+		return totalRuleMatches;
+	}
+	
+	@Override
+	public synchronized String[] getRuleMatchCounts() 
+	{
+		final String[] result = new String[ ruleMatches.size() ];
+		int i = 0;
+		for ( Map.Entry<RewritingRule,long[]> entry : ruleMatches.entrySet() ) 
+		{
+			final RewritingRule rule = entry.getKey();
+			result[i++] = ( rule.getName() != null ? rule.getName() : rule.toString() )+"="+entry.getValue()[0];
+		}
+		return result;
+	}
+}
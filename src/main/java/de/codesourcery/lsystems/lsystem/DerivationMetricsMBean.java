@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+/**
+ * JMX view of {@link DerivationMetrics}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface DerivationMetricsMBean 
+{
+	/**
+	 * Returns the number of generations derived since the last reset.
+	 * 
+	 * @return
+	 */
+	public long getGenerationsDerived();
+	
+	public long getLastGenerationSize();
+	
+	public double getLastGenerationMillis();
+	
+	/**
+	 * Returns the ratio between the size of the last generation and its predecessor.
+	 * 
+	 * @return
+	 */
+	public double getLastGrowthFactor();
+	
+	/**
+	 * Returns the estimated memory needed to store the last generation.
+	 * 
+	 * @return
+	 */
+	public long getLastGenerationBytes();
+	
+	public double getTotalMillis();
+	
+	public long getTotalRuleMatches();
+	
+	/**
+	 * Returns the number of times each rule was applied, formatted as <code>rule=count</code>.
+	 * 
+	 * @return
+	 */
+	public String[] getRuleMatchCounts();
+	
+	public void reset();
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.codesourcery.lsystems.lsystem.DerivationAbortedException.Reason;
+
+/**
+ * Enforces a {@link DerivationBudget} and reports progress while a single generation is derived.
+ * 
+ * <p>Rewriting loops call {@link #isDue(long)} for every input position and {@link #check(long, long)}
+ * whenever it returns <code>true</code>, which happens once every {@link #CHECK_INTERVAL} input symbols.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class DerivationMonitor 
+{
+	/**
+	 * Number of input symbols between two checks.
+	 */
+	public static final int CHECK_INTERVAL = 4096;
+	
+	private final DerivationBudget budget;
+	private final CancellationToken cancellationToken;
+	private final DerivationListener listener;
+	private final int generation;
+	private final int bytesPerSymbol;
+	private final long startNanos = System.nanoTime();
+	
+	private long nextCheck = CHECK_INTERVAL;
+	
+	// see checkConcurrently()
+	private final AtomicLong nextConcurrentReport = new AtomicLong( CHECK_INTERVAL );
+	private final AtomicBoolean reporting = new AtomicBoolean();
+	
+	/**
+	 * Creates a monitor.
+	 * 
+	 * @param budget budget, may be <code>null</code>
+	 * @param cancellationToken may be <code>null</code>
+	 * @param listener may be <code>null</code>
+	 * @param generation generation being derived
+	 * @param bytesPerSymbol estimated memory needed to store one symbol
+	 */
+	public DerivationMonitor(DerivationBudget budget, CancellationToken cancellationToken,DerivationListener listener,int generation,int bytesPerSymbol) 
+	{
+		this.budget = budget != null ? budget : DerivationBudget.UNLIMITED;
+		this.cancellationToken = cancellationToken;
+		this.listener = listener;
+		this.generation = generation;
+		this.bytesPerSymbol = bytesPerSymbol;
+	}
+	
+	public boolean isDue(long position) {
+		return position >= nextCheck;
+	}
+	
+	/**
+	 * Checks the budget and reports progress.
+	 * 
+	 * @param position current input position
+	 * @param produced number of symbols produced so far
+	 * @throws DerivationAbortedException
+	 */
+	public void check(long position,long produced) throws DerivationAbortedException
+	{
+		nextCheck = position + CHECK_INTERVAL;
+		checkLimits( produced );
+		if ( listener != null && produced > 0 ) {
+			reportProgress( produced );
+		}
+	}
+	
+	private void reportProgress(long produced) {
+		listener.progress( generation , produced , produced / ( ( System.nanoTime() - startNanos + 1 ) / 1e9d ) );
+	}
+	
+	/**
+	 * Checks the budget and reports progress, may be called by multiple threads at once.
+	 * 
+	 * <p>Progress is reported at most once per {@link #CHECK_INTERVAL} symbols produced (the same rate as
+	 * {@link #check(long, long)} reports at for a growth factor of one) by whichever thread crosses the next 
+	 * threshold, and never by two threads at the same time.</p>
+	 * 
+	 * @param produced total number of symbols produced so far (by all threads)
+	 * @throws DerivationAbortedException
+	 */
+	public void checkConcurrently(long produced) throws DerivationAbortedException 
+	{
+		checkLimits( produced );
+		if ( listener != null ) 
+		{
+			final long threshold = nextConcurrentReport.get();
+			if ( produced >= threshold && nextConcurrentReport.compareAndSet( threshold , produced + CHECK_INTERVAL ) && 
+					reporting.compareAndSet( false , true ) ) 
+			{
+				try {
+					reportProgress( produced );
+				} finally {
+					reporting.set( false );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks the budget without reporting progress.
+	 * 
+	 * <p>Unlike {@link #check(long, long)} this method may be called by multiple threads at once.</p>
+	 * 
+	 * @param produced total number of symbols produced so far (by all threads)
+	 * @throws DerivationAbortedException
+	 */
+	public void checkLimits(long produced) throws DerivationAbortedException 
+	{
+		checkSize( budget , generation , produced , bytesPerSymbol );
+		if ( cancellationToken != null && cancellationToken.isCancelled() ) {
+			throw new DerivationAbortedException( Reason.CANCELLED , generation , "Derivation of generation "+generation+" was cancelled" );
+		}
+		if ( budget.getDeadlineMillis() != Long.MAX_VALUE && System.currentTimeMillis() > budget.getDeadlineMillis() ) {
+			throw new DerivationAbortedException( Reason.DEADLINE_EXCEEDED , generation , "Deadline exceeded while deriving generation "+generation );
+		}
+	}
+	
+	/**
+	 * Checks the budget before deriving a generation of known size.
+	 * 
+	 * @param expectedSize expected number of symbols, <code>null</code> if unknown
+	 * @throws DerivationAbortedException
+	 */
+	public void checkExpected(BigInteger expectedSize) throws DerivationAbortedException
+	{
+		checkExpected( budget , generation , expectedSize , bytesPerSymbol );
+		check( 0 , 0 );
+	}
+	
+	/**
+	 * Reports that the generation has been derived.
+	 * 
+	 * @param size number of symbols
+	 */
+	public void finished(long size) 
+	{
+		if ( listener != null ) {
+			listener.generationFinished( generation , size , System.nanoTime() - startNanos );
+		}
+	}
+	
+	/**
+	 * Checks whether a generation of known size would exceed a budget.
+	 * 
+	 * @param budget
+	 * @param generation
+	 * @param expectedSize expected number of symbols, <code>null</code> if unknown
+	 * @param bytesPerSymbol estimated memory needed to store one symbol
+	 * @throws DerivationAbortedException
+	 */
+	public static void checkExpected(DerivationBudget budget,int generation,BigInteger expectedSize,int bytesPerSymbol) throws DerivationAbortedException 
+	{
+		if ( expectedSize != null ) {
+			final long size = expectedSize.bitLength() < 63 ? expectedSize.longValue() : Long.MAX_VALUE;
+			checkSize( budget , generation , size , bytesPerSymbol );
+		}
+	}
+	
+	private static void checkSize(DerivationBudget budget,int generation,long size,int bytesPerSymbol) 
+	{
+		if ( size > budget.getMaxSymbols() ) {
+			throw new DerivationAbortedException( Reason.MAX_SYMBOLS_EXCEEDED , generation , 
+					"Generation "+generation+" exceeds the limit of "+budget.getMaxSymbols()+" symbols");
+		}
+		if ( size > budget.getMaxBytes() / bytesPerSymbol ) {
+			throw new DerivationAbortedException( Reason.MAX_BYTES_EXCEEDED , generation , 
+					"Generation "+generation+" exceeds the limit of "+budget.getMaxBytes()+" bytes");
+		}
+	}
+}
@@ -13,7 +13,6 @@ public class ExpressionLexer implements TokenStream
 	private final List<Token> tokens = new ArrayList<>();
 	
 	private final Scanner scanner;
-	private final StringBuilder buffer = new StringBuilder();
 
 	public static TokenSeq parse(String s) {
 		ExpressionLexer lexer = new ExpressionLexer(s);
@@ -95,7 +94,6 @@ public class ExpressionLexer implements TokenStream
 			return;
 		}		
 		
-		// careful , the cases in this switch need to be in line with the switch in parseToken()
 		if ( DEBUG ) {
 			System.out.println("Peek(): "+scanner.peek());
 		}
@@ -140,41 +138,10 @@ public class ExpressionLexer implements TokenStream
 		}
 	}
 	
-	private boolean isKnownSymbol(char c) 
-	{
-		// careful , the cases in this switch need to be in line with the switch in parseTokens()
-		switch(c) 
-		{
-			case '[':
-			case ']':
-			case 'g':
-			case 'b':
-			case 'r':
-			case 'c':
-			case 'C':
-			case 'f':
-			case 'F':
-			case '+':
-			case '-':
-				return true;
-			default:
-				return false;
-		}
-	}
-
 	private Token parseToken(TokenType tokenType) 
 	{
-		final String literal;
-		if ( TokenType.CHARACTERS.equals(tokenType) ) 
-		{
-			buffer.setLength( 0 );			
-			while ( ! scanner.eof() && ! isKnownSymbol( scanner.peek() ) ) {
-				buffer.append( scanner.next() );
-			}
-			literal = buffer.toString();
-		} else {
-			literal = Character.toString( scanner.next() );
-		}
+		// every character is a symbol on its own, "AB" needs to lex as two tokens so that sequence rules can match it inside "AAB"
+		final String literal = Character.toString( scanner.next() );
 		
 		List<String> params = null;
 		if ( !scanner.eof() && tokenType.supportsParameters() && scanner.peek() == '(' ) 
@@ -184,19 +151,25 @@ public class ExpressionLexer implements TokenStream
 			
 			params = new ArrayList<>();
 			final StringBuilder currentParam = new StringBuilder();
-			while ( ! scanner.eof() && scanner.peek() != ')' ) 
+			int depth = 0; // nesting depth of parentheses inside parameter expression
+			while ( ! scanner.eof() && ( scanner.peek() != ')' || depth > 0 ) ) 
 			{
 				if ( Character.isWhitespace( scanner.peek() ) ) {
 					scanner.next();
 					continue;
 				}
-				if ( scanner.peek() == ',' && ! currentParam.toString().isEmpty() ) 
+				if ( scanner.peek() == ',' && depth == 0 && ! currentParam.toString().isEmpty() ) 
 				{
 					scanner.next(',');
 					params.add( currentParam.toString() );
 					currentParam.setLength(0);
 					continue;
 				}
+				if ( scanner.peek() == '(' ) {
+					depth++;
+				} else if ( scanner.peek() == ')' ) {
+					depth--;
+				}
 				currentParam.append( scanner.next() );
 			}
 			
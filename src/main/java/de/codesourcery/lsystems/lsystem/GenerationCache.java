@@ -0,0 +1,451 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Memory-bounded cache of previously derived generations.
+ *
+ * <p>Generations are grouped into lineages keyed by grammar fingerprint (see {@link LSystem#getFingerprint()}) and seed.
+ * All generations of a lineage are encoded using the same {@link TokenAlphabet} and stored as fixed-size chunks
+ * of symbol codes. The cache never shares its alphabets with L-systems. Chunks are hash-consed per lineage, so chunks that are equal between generations (or within
+ * a generation) are stored only once.</p>
+ *
+ * <p>The cache keeps the total size of all chunks below a configurable limit by evicting
+ * the least-recently used generations.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see LSystem#setGenerationCache(GenerationCache)
+ */
+public final class GenerationCache
+{
+	/**
+	 * Number of symbols per chunk.
+	 */
+	public static final int CHUNK_SIZE = 4096;
+
+	// estimated heap usage of a chunk on top of its symbols
+	private static final long CHUNK_OVERHEAD = 64;
+
+	private final long maxBytes;
+	private long usedBytes;
+
+	private final Map<LineageKey,Lineage> lineages = new HashMap<>();
+	// all cached generations, in access order
+	private final LinkedHashMap<Generation,Generation> lru = new LinkedHashMap<>(16,0.75f,true);
+
+	protected static final class LineageKey
+	{
+		public final String fingerprint;
+		public final long seed;
+
+		public LineageKey(String fingerprint, long seed)
+		{
+			if ( fingerprint == null ) {
+				throw new IllegalArgumentException("fingerprint must not be NULL");
+			}
+			this.fingerprint = fingerprint;
+			this.seed = seed;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * fingerprint.hashCode() + (int) (seed ^ (seed >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if ( obj instanceof LineageKey ) {
+				final LineageKey other = (LineageKey) obj;
+				return seed == other.seed && fingerprint.equals( other.fingerprint );
+			}
+			return false;
+		}
+	}
+
+	protected static final class Chunk
+	{
+		public final int[] symbols;
+		private final int hash;
+		public int refCount;
+
+		public Chunk(int[] symbols)
+		{
+			this.symbols = symbols;
+			this.hash = Arrays.hashCode( symbols );
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Chunk && hash == ((Chunk) obj).hash && Arrays.equals( symbols , ((Chunk) obj).symbols );
+		}
+	}
+
+	protected final class Lineage
+	{
+		public final LineageKey key;
+		private TokenAlphabet alphabet;
+		private final Map<Chunk,Chunk> chunks = new HashMap<>();
+		private final TreeMap<Integer,Generation> generations = new TreeMap<>();
+
+		public Lineage(LineageKey key) {
+			this.key = key;
+		}
+
+		private Chunk intern(int[] symbols,int offset,int len)
+		{
+			final Chunk chunk = new Chunk( Arrays.copyOfRange( symbols , offset , offset+len ) );
+			Chunk existing = chunks.get( chunk );
+			if ( existing == null )
+			{
+				existing = chunk;
+				chunks.put( chunk , chunk );
+				usedBytes += chunkBytes( chunk );
+			}
+			existing.refCount++;
+			return existing;
+		}
+
+		private void release(Chunk chunk)
+		{
+			if ( --chunk.refCount == 0 ) {
+				chunks.remove( chunk );
+				usedBytes -= chunkBytes( chunk );
+			}
+		}
+	}
+
+	/**
+	 * A cached generation.
+	 */
+	public final class Generation
+	{
+		private final Lineage lineage;
+		private final int generation;
+		private final Chunk[] chunks;
+		private final int size;
+
+		protected Generation(Lineage lineage,int generation,Chunk[] chunks,int size)
+		{
+			this.lineage = lineage;
+			this.generation = generation;
+			this.chunks = chunks;
+			this.size = size;
+		}
+
+		public int getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * Returns the number of symbols in this generation.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the alphabet this generation's symbols are encoded with.
+		 *
+		 * <p>The alphabet is owned by the cache and must not be modified, use {@link TokenAlphabet#copy()}
+		 * to continue encoding symbols.</p>
+		 *
+		 * @return
+		 */
+		public TokenAlphabet getAlphabet() {
+			return lineage.alphabet;
+		}
+
+		/**
+		 * Returns a copy of this generation's symbols.
+		 *
+		 * @return
+		 */
+		public SymbolBuffer toSymbolBuffer()
+		{
+			final int[] result = new int[ size ];
+			int offset = 0;
+			for ( Chunk chunk : chunks )
+			{
+				System.arraycopy( chunk.symbols , 0 , result , offset , chunk.symbols.length );
+				offset += chunk.symbols.length;
+			}
+			return new SymbolBuffer( result );
+		}
+
+		/**
+		 * Returns this generation's symbols as a new, modifiable list.
+		 *
+		 * @return
+		 */
+		public List<Token> toList()
+		{
+			final TokenAlphabet alphabet = lineage.alphabet;
+			final List<Token> result = new ArrayList<>( size );
+			for ( Chunk chunk : chunks )
+			{
+				for ( int code : chunk.symbols ) {
+					result.add( alphabet.get( code ) );
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxBytes upper bound for the estimated heap usage of all cached generations
+	 */
+	public GenerationCache(long maxBytes)
+	{
+		if ( maxBytes < 1 ) {
+			throw new IllegalArgumentException("Invalid memory limit: "+maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	private static long chunkBytes(Chunk chunk) {
+		return CHUNK_OVERHEAD + 4L * chunk.symbols.length;
+	}
+
+	private Lineage getLineage(String fingerprint,long seed,boolean create)
+	{
+		final LineageKey key = new LineageKey( fingerprint , seed );
+		Lineage result = lineages.get( key );
+		if ( result == null && create ) {
+			result = new Lineage( key );
+			lineages.put( key , result );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the alphabet used to encode generations of a lineage.
+	 *
+	 * <p>The alphabet is owned by the cache and must not be modified.</p>
+	 *
+	 * @param fingerprint
+	 * @param seed
+	 * @return alphabet or <code>null</code> if no generation of this lineage has been cached
+	 */
+	public TokenAlphabet getAlphabet(String fingerprint,long seed)
+	{
+		final Lineage lineage = getLineage( fingerprint , seed , false );
+		return lineage != null ? lineage.alphabet : null;
+	}
+
+	/**
+	 * Returns a cached generation.
+	 *
+	 * @param fingerprint
+	 * @param seed
+	 * @param generation
+	 * @return generation or <code>null</code>
+	 */
+	public Generation get(String fingerprint,long seed,int generation)
+	{
+		final Lineage lineage = getLineage( fingerprint , seed , false );
+		if ( lineage == null ) {
+			return null;
+		}
+		final Generation result = lineage.generations.get( generation );
+		if ( result != null ) {
+			lru.get( result );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the latest cached generation that is not after a given generation.
+	 *
+	 * @param fingerprint
+	 * @param seed
+	 * @param generation
+	 * @return generation or <code>null</code>
+	 */
+	public Generation getClosest(String fingerprint,long seed,int generation)
+	{
+		final Lineage lineage = getLineage( fingerprint , seed , false );
+		if ( lineage == null ) {
+			return null;
+		}
+		final Map.Entry<Integer,Generation> entry = lineage.generations.floorEntry( generation );
+		if ( entry == null ) {
+			return null;
+		}
+		lru.get( entry.getValue() );
+		return entry.getValue();
+	}
+
+	/**
+	 * Caches a generation stored as symbol codes.
+	 *
+	 * <p>If this is the first generation cached for the lineage, the lineage adopts a copy of the given
+	 * alphabet, so storing further generations encoded with an alphabet that assigns the same codes 
+	 * (like one {@link TokenAlphabet#copy() copied} from a cached generation) only needs to copy symbol codes. 
+	 * Other symbols are translated once per distinct code.</p>
+	 *
+	 * @param fingerprint
+	 * @param seed
+	 * @param generation
+	 * @param symbols
+	 * @param alphabet alphabet the symbols are encoded with
+	 */
+	public void put(String fingerprint,long seed,int generation,SymbolBuffer symbols,TokenAlphabet alphabet)
+	{
+		final Lineage lineage = getLineage( fingerprint , seed , true );
+		if ( lineage.alphabet == null ) {
+			lineage.alphabet = alphabet.copy();
+		}
+		
+		// translation[ code ] = code in the lineage's alphabet + 1, 0 if not looked up yet
+		final int[] translation = new int[ alphabet.size() ];
+		final int[] input = symbols.array();
+		final int size = symbols.size();
+		int[] codes = input;
+		for ( int i = 0 ; i < size ; i++ ) 
+		{
+			final int code = input[i];
+			int translated = translation[ code ] - 1;
+			if ( translated < 0 ) 
+			{
+				translated = lineage.alphabet.intern( alphabet.get( code ) );
+				translation[ code ] = translated + 1;
+			}
+			if ( translated != code && codes == input ) 
+			{
+				codes = new int[ size ];
+				System.arraycopy( input , 0 , codes , 0 , i );
+			}
+			if ( codes != input ) {
+				codes[i] = translated;
+			}
+		}
+		put( lineage , generation , codes , size );
+	}
+
+	/**
+	 * Caches a generation stored as tokens.
+	 *
+	 * @param fingerprint
+	 * @param seed
+	 * @param generation
+	 * @param tokens
+	 */
+	public void put(String fingerprint,long seed,int generation,List<Token> tokens)
+	{
+		final Lineage lineage = getLineage( fingerprint , seed , true );
+		if ( lineage.alphabet == null ) {
+			lineage.alphabet = new TokenAlphabet();
+		}
+		put( lineage , generation , lineage.alphabet.intern( tokens ) , tokens.size() );
+	}
+
+	private void put(Lineage lineage,int generation,int[] codes,int size)
+	{
+		final Generation existing = lineage.generations.get( generation );
+		if ( existing != null ) {
+			remove( existing );
+		}
+
+		final Chunk[] chunks = new Chunk[ (size + CHUNK_SIZE - 1) / CHUNK_SIZE ];
+		for ( int i = 0 ; i < chunks.length ; i++ )
+		{
+			final int offset = i * CHUNK_SIZE;
+			chunks[i] = lineage.intern( codes , offset , Math.min( CHUNK_SIZE , size - offset ) );
+		}
+		final Generation result = new Generation( lineage , generation , chunks , size );
+		lineage.generations.put( generation , result );
+		lru.put( result , result );
+
+		final Iterator<Generation> it = lru.keySet().iterator();
+		while ( usedBytes > maxBytes && it.hasNext() )
+		{
+			final Generation eldest = it.next();
+			it.remove();
+			release( eldest );
+		}
+	}
+
+	private void remove(Generation generation)
+	{
+		lru.remove( generation );
+		release( generation );
+	}
+
+	private void release(Generation generation)
+	{
+		final Lineage lineage = generation.lineage;
+		lineage.generations.remove( generation.generation );
+		for ( Chunk chunk : generation.chunks ) {
+			lineage.release( chunk );
+		}
+		if ( lineage.generations.isEmpty() ) {
+			lineages.remove( lineage.key );
+		}
+	}
+
+	/**
+	 * Discards all cached generations.
+	 */
+	public void clear()
+	{
+		lineages.clear();
+		lru.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * Returns the number of cached generations.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return lru.size();
+	}
+
+	/**
+	 * Returns the estimated heap usage of all cached generations.
+	 *
+	 * @return
+	 */
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Predicts the exact size of any generation of a deterministic, context-free L-system.
+ *
+ * <p>The rules are turned into a growth matrix <code>M</code> where <code>M[i][j]</code> is the number
+ * of times symbol <code>j</code> occurs in the replacement of symbol <code>i</code>. The symbol counts of
+ * generation <code>n</code> are then given by <code>v(n) = v(0) * M^n</code> with <code>v(0)</code> being the
+ * symbol counts of the axiom. Small generations are computed by iterating the rules, large generations
+ * by matrix exponentiation.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CompiledRuleSet
+ */
+public final class GrowthAnalyzer
+{
+	/**
+	 * Generations up to this number are computed by iterating instead of using matrix exponentiation.
+	 */
+	private static final int MAX_ITERATIONS = 256;
+
+	private static final BigInteger MAX_LONG = BigInteger.valueOf( Long.MAX_VALUE );
+
+	private final TokenAlphabet alphabet;
+	private final CompiledRuleSet rules;
+	private final int symbolCount;
+
+	// symbol counts per generation, element #n holds generation n
+	private final List<BigInteger[]> generations = new ArrayList<>();
+
+	private BigInteger[][] growthMatrix;
+
+	private GrowthAnalyzer(TokenAlphabet alphabet,CompiledRuleSet rules,BigInteger[] axiomCounts)
+	{
+		this.alphabet = alphabet;
+		this.rules = rules;
+		this.symbolCount = rules.size();
+		this.generations.add( axiomCounts );
+	}
+
+	/**
+	 * Creates an analyzer.
+	 *
+	 * @param axiom
+	 * @param index
+	 * @return analyzer or <code>null</code> if the rules are not deterministic and context-free
+	 */
+	public static GrowthAnalyzer create(List<Token> axiom,RuleIndex index)
+	{
+		final TokenAlphabet alphabet = new TokenAlphabet();
+		final int[] symbols = alphabet.intern( axiom );
+		final CompiledRuleSet rules = CompiledRuleSet.compile( alphabet , index );
+		if ( rules == null ) {
+			return null;
+		}
+		final BigInteger[] counts = zeros( rules.size() );
+		for ( int code : symbols ) {
+			counts[code] = counts[code].add( BigInteger.ONE );
+		}
+		return new GrowthAnalyzer( alphabet , rules , counts );
+	}
+
+	private static BigInteger[] zeros(int size)
+	{
+		final BigInteger[] result = new BigInteger[size];
+		Arrays.fill( result , BigInteger.ZERO );
+		return result;
+	}
+
+	/**
+	 * Returns the alphabet whose symbol codes index the arrays returned by {@link #getSymbolCounts(int)}.
+	 *
+	 * @return
+	 */
+	public TokenAlphabet getAlphabet() {
+		return alphabet;
+	}
+
+	/**
+	 * Returns how many times each symbol occurs in a given generation.
+	 *
+	 * @param generation
+	 * @return symbol counts indexed by symbol code
+	 * @see #getAlphabet()
+	 */
+	public BigInteger[] getSymbolCounts(int generation)
+	{
+		if ( generation < 0 ) {
+			throw new IllegalArgumentException("Invalid generation: "+generation);
+		}
+		if ( generation < generations.size() ) {
+			return generations.get( generation ).clone();
+		}
+		if ( generation <= MAX_ITERATIONS )
+		{
+			while ( generations.size() <= generation ) {
+				generations.add( step( generations.get( generations.size()-1 ) ) );
+			}
+			return generations.get( generation ).clone();
+		}
+		return multiply( generations.get(0) , power( getGrowthMatrix() , generation ) );
+	}
+
+	/**
+	 * Returns how many times a token occurs in a given generation.
+	 *
+	 * @param token
+	 * @param generation
+	 * @return
+	 */
+	public BigInteger getSymbolCount(Token token,int generation)
+	{
+		final int code = alphabet.getCode( token );
+		return code == -1 ? BigInteger.ZERO : getSymbolCounts( generation )[code];
+	}
+
+	/**
+	 * Returns the total number of symbols in a given generation.
+	 *
+	 * @param generation
+	 * @return
+	 */
+	public BigInteger getLength(int generation)
+	{
+		BigInteger result = BigInteger.ZERO;
+		for ( BigInteger count : getSymbolCounts( generation ) ) {
+			result = result.add( count );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the total number of symbols in a given generation.
+	 *
+	 * @param generation
+	 * @return
+	 * @throws ArithmeticException if the length does not fit into a <code>long</code>
+	 */
+	public long getLengthAsLong(int generation) throws ArithmeticException
+	{
+		final BigInteger result = getLength( generation );
+		if ( result.compareTo( MAX_LONG ) > 0 ) {
+			throw new ArithmeticException("Generation "+generation+" has "+result+" symbols, too large for a long");
+		}
+		return result.longValue();
+	}
+
+	private BigInteger[] step(BigInteger[] counts)
+	{
+		final BigInteger[] result = zeros( symbolCount );
+		for ( int i = 0 ; i < symbolCount ; i++ )
+		{
+			final BigInteger count = counts[i];
+			if ( count.signum() != 0 )
+			{
+				for ( int code : rules.getExpansion( i ) ) {
+					result[code] = result[code].add( count );
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the growth matrix.
+	 *
+	 * @return matrix where element <code>[i][j]</code> holds the number of times symbol <code>j</code>
+	 * occurs in the replacement of symbol <code>i</code>
+	 */
+	public BigInteger[][] getGrowthMatrix()
+	{
+		if ( growthMatrix == null )
+		{
+			final BigInteger[][] m = new BigInteger[ symbolCount ][];
+			for ( int i = 0 ; i < symbolCount ; i++ )
+			{
+				m[i] = zeros( symbolCount );
+				for ( int code : rules.getExpansion( i ) ) {
+					m[i][code] = m[i][code].add( BigInteger.ONE );
+				}
+			}
+			growthMatrix = m;
+		}
+		return growthMatrix;
+	}
+
+	private BigInteger[][] power(BigInteger[][] m,int exponent)
+	{
+		BigInteger[][] result = identity( symbolCount );
+		BigInteger[][] base = m;
+		int e = exponent;
+		while ( e > 0 )
+		{
+			if ( (e & 1) != 0 ) {
+				result = multiply( result , base );
+			}
+			e >>>= 1;
+			if ( e > 0 ) {
+				base = multiply( base , base );
+			}
+		}
+		return result;
+	}
+
+	private static BigInteger[][] identity(int size)
+	{
+		final BigInteger[][] result = new BigInteger[size][];
+		for ( int i = 0 ; i < size ; i++ ) {
+			result[i] = zeros( size );
+			result[i][i] = BigInteger.ONE;
+		}
+		return result;
+	}
+
+	private static BigInteger[][] multiply(BigInteger[][] a,BigInteger[][] b)
+	{
+		final int size = a.length;
+		final BigInteger[][] result = new BigInteger[size][];
+		for ( int i = 0 ; i < size ; i++ )
+		{
+			result[i] = zeros( size );
+			for ( int k = 0 ; k < size ; k++ )
+			{
+				final BigInteger aik = a[i][k];
+				if ( aik.signum() == 0 ) {
+					continue;
+				}
+				for ( int j = 0 ; j < size ; j++ )
+				{
+					if ( b[k][j].signum() != 0 ) {
+						result[i][j] = result[i][j].add( aik.multiply( b[k][j] ) );
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static BigInteger[] multiply(BigInteger[] v,BigInteger[][] m)
+	{
+		final int size = v.length;
+		final BigInteger[] result = zeros( size );
+		for ( int i = 0 ; i < size ; i++ )
+		{
+			if ( v[i].signum() == 0 ) {
+				continue;
+			}
+			for ( int j = 0 ; j < size ; j++ )
+			{
+				if ( m[i][j].signum() != 0 ) {
+					result[j] = result[j].add( v[i].multiply( m[i][j] ) );
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -15,11 +15,20 @@
  */
 package de.codesourcery.lsystems.lsystem;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.rules.ParametricRule;
+import de.codesourcery.lsystems.lsystem.rules.StochasticRule;
 
 /**
  * Lindenmayer-System.
@@ -31,10 +40,43 @@ public class LSystem
 	private final TokenSeq axiom;
 	public List<Token> state;
 	private final List<RewritingRule> rules = new ArrayList<>();
+	private RuleIndex ruleIndex;
+	private CompiledRuleSet compiledRules;
+	private boolean rulesCompiled;
+	// compiled rules including stochastic rules, only used if compiledRules == null
+	private CompiledRuleSet stochasticRules;
+	private boolean stochasticRulesCompiled;
+	private long seed;
+	// whether the current state was derived from the axiom using the current rules and seed
+	private boolean stateValid;
+	private GenerationCache generationCache;
+	private String fingerprint;
+	private GrowthAnalyzer growthAnalyzer;
+	private boolean growthAnalyzed;
+	// DAG returned by the last call to createDerivationDag()
+	private DerivationDag lastDag;
+	private ForkJoinPool forkJoinPool;
+	
+	private DerivationBudget budget;
+	private CancellationToken cancellationToken;
+	private DerivationListener derivationListener;
+	private DerivationMetrics metrics;
+	
+	private BracketIndex bracketIndex;
+	// state the bracket index was built for
+	private Object bracketIndexSource;
 	
 	public int desiredRecursionCount=5;
 	public int recursionCount=0;
 	
+	// compact state representation, only used if alphabet != null
+	private TokenAlphabet alphabet;
+	private SymbolBuffer symbols;
+	// off-heap state representation, only used if mappedState != null
+	private MappedSymbolBuffer mappedState;
+	private MappedSymbolBuffer mappedNext;
+	private final Map<TokenSeq,int[]> encodedSequences = new IdentityHashMap<>();
+	
 	private ParameterProvider parameterProvider = new ParameterProvider() {
         @Override
         public String getParameter(Token token, String identifier) {
@@ -46,8 +88,13 @@ public class LSystem
 	{
 		this.axiom = axiom;
 		this.state = new ArrayList<>( axiom.toList() );
+		this.stateValid = true;
     }
 
+	public final TokenSeq getAxiom() {
+		return axiom;
+	}
+	
 	public ParameterProvider getParameterProvider() {
 		return parameterProvider;
 	}
@@ -59,8 +106,25 @@ public class LSystem
 	 */
 	public final LSystem reset() 
 	{
-		this.state = new ArrayList<>( axiom.toList() );
+		if ( mappedState != null ) 
+		{
+			try {
+				mappedState.clear();
+				mappedState.addAll( alphabet.intern( axiom.toList() ) );
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write off-heap state",e);
+			}
+			this.state = mappedState.asList( alphabet );
+		}
+		else if ( alphabet != null ) 
+		{
+			this.symbols = new SymbolBuffer( alphabet.intern( axiom.toList() ) );
+			this.state = alphabet.asList( symbols );
+		} else {
+			this.state = new ArrayList<>( axiom.toList() );
+		}
 		this.recursionCount = 0;
+		this.stateValid = true;
 		resetHook();
 		return this;
 	}
@@ -86,6 +150,180 @@ public class LSystem
 		return desiredRecursionCount;
 	}
 	
+	/**
+	 * Switches between storing this system's state as a list of {@link Token} references
+	 * or as an array of symbol codes.
+	 * 
+	 * <p>In compact mode every distinct token is interned once into a {@link TokenAlphabet}
+	 * and the current generation is kept in a {@link SymbolBuffer}, {@link #state} then
+	 * becomes a read-only view that decodes symbols on the fly. Changing the mode resets this system.</p>
+	 * 
+	 * <p>Systems with {@link ParametricRule}s always keep their state as a list of tokens, because every
+	 * distinct computed parameter value would become a new symbol of the alphabet. Compact mode is ignored
+	 * while such rules are present, adding one to a system in compact mode switches it back to list mode
+	 * (keeping the current generation).</p>
+	 * 
+	 * @param compact
+	 * @return
+	 * @see #reset()
+	 */
+	public final LSystem setCompactState(boolean compact) 
+	{
+		final boolean effective = compact && ! hasParametricRules();
+		if ( effective != isCompactState() ) 
+		{
+			if ( ! effective ) {
+				closeOffHeapStorage();
+			}
+			this.alphabet = effective ? new TokenAlphabet() : null;
+			this.symbols = null;
+			this.compiledRules = null;
+			this.rulesCompiled = false;
+			this.stochasticRules = null;
+			this.stochasticRulesCompiled = false;
+			this.encodedSequences.clear();
+			reset();
+		}
+		return this;
+	}
+	
+	/**
+	 * Moves this system's state to memory-mapped files.
+	 * 
+	 * <p>Off-heap storage implies compact mode. Symbol codes are stored in two temporary, memory-mapped 
+	 * files that are used as double buffers: {@link #rewrite()} streams the current generation from one file
+	 * into the other and then swaps them. This allows deriving generations much larger than the Java heap.</p>
+	 * 
+	 * <p>Changing the storage resets this system. Like compact mode, off-heap storage is ignored
+	 * for systems with {@link ParametricRule}s.</p>
+	 * 
+	 * @param directory directory to create the files in, <code>null</code> to release the files and
+	 * go back to in-memory compact storage
+	 * @return
+	 * @throws IOException
+	 * @see #setCompactState(boolean)
+	 */
+	public final LSystem setOffHeapStorage(File directory) throws IOException 
+	{
+		closeOffHeapStorage();
+		if ( directory != null && ! hasParametricRules() ) 
+		{
+			if ( alphabet == null ) {
+				this.alphabet = new TokenAlphabet();
+				this.compiledRules = null;
+				this.rulesCompiled = false;
+				this.stochasticRules = null;
+				this.stochasticRulesCompiled = false;
+				this.encodedSequences.clear();
+			}
+			this.symbols = null;
+			this.mappedState = new MappedSymbolBuffer( directory );
+			this.mappedNext = new MappedSymbolBuffer( directory );
+		}
+		reset();
+		return this;
+	}
+	
+	public final boolean isOffHeapState() {
+		return mappedState != null;
+	}
+	
+	private void closeOffHeapStorage() 
+	{
+		if ( mappedState != null ) 
+		{
+			try {
+				mappedState.close();
+				mappedNext.close();
+			} catch(IOException e) {
+				// ignored, files are deleted on exit anyway
+			} finally {
+				mappedState = mappedNext = null;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the memory-mapped symbol codes of the current generation.
+	 * 
+	 * @return symbols or <code>null</code> if this system does not use off-heap storage
+	 * @see #setOffHeapStorage(File)
+	 */
+	public final MappedSymbolBuffer getMappedSymbols() {
+		return mappedState;
+	}
+	
+	public final boolean isCompactState() {
+		return alphabet != null;
+	}
+	
+	/**
+	 * Returns the alphabet used to encode this system's state.
+	 * 
+	 * @return alphabet or <code>null</code> if this system is not in compact mode
+	 * @see #setCompactState(boolean)
+	 */
+	public final TokenAlphabet getAlphabet() {
+		return alphabet;
+	}
+	
+	/**
+	 * Returns the symbol codes of the current generation.
+	 * 
+	 * @return symbols or <code>null</code> if this system is not in compact mode or uses off-heap storage
+	 * @see #setCompactState(boolean)
+	 */
+	public final SymbolBuffer getSymbols() {
+		return symbols;
+	}
+	
+	/**
+	 * Returns the number of symbols in the current generation.
+	 * 
+	 * @return
+	 */
+	public final int getStateSize() 
+	{
+		final long result = getStateSizeAsLong();
+		if ( result > Integer.MAX_VALUE ) {
+			throw new IllegalStateException("Current generation has "+result+" symbols, use getStateSizeAsLong()");
+		}
+		return (int) result;
+	}
+	
+	/**
+	 * Returns the number of symbols in the current generation.
+	 * 
+	 * <p>Only off-heap storage can hold more than {@link Integer#MAX_VALUE} symbols.</p>
+	 * 
+	 * @return
+	 * @see #setOffHeapStorage(File)
+	 */
+	public final long getStateSizeAsLong() 
+	{
+		if ( mappedState != null ) {
+			return mappedState.size();
+		}
+		return alphabet != null ? symbols.size() : state.size();
+	}
+	
+	/**
+	 * Returns a stream over the current generation, reading
+	 * symbol codes directly when in compact mode.
+	 * 
+	 * @return
+	 */
+	public final TokenStream toTokenStream() 
+	{
+		if ( mappedState != null ) {
+			return mappedState.toTokenStream( alphabet );
+		}
+		if ( alphabet != null ) {
+			return symbols.toTokenStream( alphabet );
+		}
+		return TokenSeq.toTokenStream( state );
+	}
+	
 	protected void resetHook() {
 	}
 	
@@ -101,9 +339,44 @@ public class LSystem
 			throw new IllegalArgumentException("rule must not be null");
 		}
 		this.rules.add(rule);
+		rulesChanged();
+		return this;
+	}
+	
+	/**
+	 * Replaces a rewriting rule.
+	 * 
+	 * <p>The replacement takes the position (and thus the precedence) of the rule it replaces.</p>
+	 * 
+	 * @param existing
+	 * @param replacement
+	 * @return
+	 * @throws IllegalArgumentException if <code>existing</code> is not part of this system
+	 * @see #rederive()
+	 */
+	public final LSystem replaceRule(RewritingRule existing,RewritingRule replacement) 
+	{
+		if (replacement == null) {
+			throw new IllegalArgumentException("replacement must not be null");
+		}
+		final int idx = rules.indexOf( existing );
+		if ( idx == -1 ) {
+			throw new IllegalArgumentException("Unknown rule: "+existing);
+		}
+		rules.set( idx , replacement );
+		rulesChanged();
 		return this;
 	}
 	
+	/**
+	 * Returns this system's rules in order of precedence.
+	 * 
+	 * @return
+	 */
+	public final List<RewritingRule> getRules() {
+		return Collections.unmodifiableList( rules );
+	}
+	
 	public final LSystem addRules(RewritingRule rule,RewritingRule... moreRules ) 
 	{
 		if (rule == null) {
@@ -114,6 +387,7 @@ public class LSystem
         {
             Collections.addAll(rules,moreRules);
 		}
+		rulesChanged();
 		return this;
 	}	
 	
@@ -139,11 +413,260 @@ public class LSystem
      */
     public final void rewriteRecursively()
     {
+    	// rewriting continues from the current state, so unless that is the axiom the 
+    	// generations derived here are not generations 1..n of this system, must not be cached
+    	// and their sizes cannot be predicted
+    	this.stateValid &= recursionCount == 0;
+    	if ( stateValid ) {
+    		checkBudget( desiredRecursionCount );
+    	}
     	this.recursionCount = 0;
         for ( int i = desiredRecursionCount; i > 0 ; i-- ) {
             rewrite();
         }
     }
+    
+	/**
+	 * Makes a given generation this system's current state.
+	 * 
+	 * <p>Rewriting starts from the closest generation available: the current state (if it was derived using 
+	 * the current rules and seed), a generation from the {@link #setGenerationCache(GenerationCache) generation cache}
+	 * or the axiom. Nothing is rewritten at all if the generation is cached.</p>
+	 * 
+	 * <p>The generation cache is not used while off-heap storage is enabled.</p>
+	 * 
+	 * @param generation
+	 */
+	public final void jumpToGeneration(int generation) 
+	{
+		if ( generation < 0 ) {
+			throw new IllegalArgumentException("Invalid generation: "+generation);
+		}
+		checkBudget( generation );
+		if ( generationCache != null && mappedState == null && ! ( stateValid && recursionCount == generation ) ) 
+		{
+			final GenerationCache.Generation cached = generationCache.getClosest( getFingerprint() , seed , generation );
+			if ( cached != null && ( ! stateValid || recursionCount > generation || cached.getGeneration() > recursionCount ) ) {
+				restore( cached );
+			}
+		}
+		if ( ! stateValid || recursionCount > generation ) {
+			reset();
+		}
+		while ( recursionCount < generation ) {
+			rewrite();
+		}
+	}
+	
+	private void restore(GenerationCache.Generation cached) 
+	{
+		if ( alphabet != null ) 
+		{
+			// adopt a copy of the cache's alphabet, the cached symbols can then be used as-is
+			// and further generations can be cached without re-encoding
+			this.alphabet = cached.getAlphabet().copy();
+			this.compiledRules = null;
+			this.rulesCompiled = false;
+			this.stochasticRules = null;
+			this.stochasticRulesCompiled = false;
+			this.encodedSequences.clear();
+			this.symbols = cached.toSymbolBuffer();
+			this.state = alphabet.asList( symbols );
+		} else {
+			this.state = cached.toList();
+		}
+		this.recursionCount = cached.getGeneration();
+		this.stateValid = true;
+		resetHook();
+	}
+	
+	/**
+	 * Sets the cache used to retain generations derived by {@link #rewrite()}.
+	 * 
+	 * <p>Every generation derived from the axiom using the current rules and seed is
+	 * put into the cache, {@link #jumpToGeneration(int)} then restores cached generations instead of
+	 * deriving them again. A cache may be shared by multiple systems, generations are keyed by
+	 * {@link #getFingerprint() fingerprint} and seed.</p>
+	 * 
+	 * @param cache cache to use, <code>null</code> to disable caching
+	 */
+	public final void setGenerationCache(GenerationCache cache) {
+		this.generationCache = cache;
+	}
+	
+	public final GenerationCache getGenerationCache() {
+		return generationCache;
+	}
+	
+	/**
+	 * Returns a string that identifies this system's axiom and rules.
+	 * 
+	 * <p>Rules are identified by class, name and string representation, so two systems with equal
+	 * fingerprints (and equal seeds and parameter providers) derive the same generations.</p>
+	 * 
+	 * @return
+	 */
+	public final String getFingerprint() 
+	{
+		if ( fingerprint == null ) 
+		{
+			final StringBuilder result = new StringBuilder( axiom.getAsString( null , false ) );
+			for ( RewritingRule rule : rules ) {
+				result.append('\n').append( rule.getClass().getName() ).append(':').append( rule.getName() ).append(':').append( rule );
+			}
+			fingerprint = result.toString();
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Returns a stream that lazily derives generation {@link #getDesiredRecursionCount()} 
+	 * from the axiom without materializing any generation.
+	 * 
+	 * <p>This system's current state is neither used nor changed.</p>
+	 * 
+	 * @return
+	 * @throws IllegalArgumentException if any rule has a multi-symbol predecessor
+	 * @see DerivationCursor
+	 */
+	public final DerivationCursor createDerivationCursor() {
+		return new DerivationCursor( axiom.toList() , getRuleIndex() , parameterProvider , desiredRecursionCount , seed );
+	}
+
+	/**
+	 * Derives generation {@link #getDesiredRecursionCount()} as a directed acyclic graph
+	 * of shared expansions, without materializing any generation.
+	 * 
+	 * <p>This system's current state is neither used nor changed.</p>
+	 * 
+	 * @return DAG or <code>null</code> if this system's rules are not deterministic and context-free
+	 * @throws ArithmeticException if the generation has more than {@link Long#MAX_VALUE} symbols
+	 * @see DerivationDag
+	 */
+	public final DerivationDag createDerivationDag() throws ArithmeticException 
+	{
+		if ( lastDag != null ) {
+			lastDag = lastDag.rederive( getRuleIndex() , desiredRecursionCount );
+		} else {
+			lastDag = DerivationDag.create( axiom.toList() , getRuleIndex() , desiredRecursionCount );
+		}
+		return lastDag;
+	}
+	
+	/**
+	 * Derives generation {@link #getDesiredRecursionCount()}, re-using all expansions from the previous
+	 * derivation that were not affected by rules changed since then.
+	 * 
+	 * <p>After this method returns, this system's state is the same as after calling {@link #reset()} and {@link #rewriteRecursively()}. 
+	 * Falls back to exactly that if this system's rules are not deterministic and context-free.</p>
+	 * 
+	 * <p>Like {@link #rewrite()}, the derived generation is put into the {@link #setGenerationCache(GenerationCache) generation cache}
+	 * and recorded in the {@link #setMetrics(DerivationMetrics) metrics} (without rule matches, expansions shared 
+	 * by the DAG are not applied individually). A generation that is already cached is restored instead.</p>
+	 * 
+	 * <p>The {@link #setDerivationBudget(DerivationBudget) budget} is checked against the exact size of the new generation 
+	 * before anything is allocated, budget, {@link #setCancellationToken(CancellationToken) cancellation} and 
+	 * {@link #setDerivationListener(DerivationListener) progress} are also checked while the generation is materialized. 
+	 * An aborted derivation leaves the current state unchanged.</p>
+	 * 
+	 * @throws DerivationAbortedException
+	 * @see #replaceRule(RewritingRule, RewritingRule)
+	 * @see DerivationDag#rederive(RuleIndex, int)
+	 */
+	public final void rederive() throws DerivationAbortedException
+	{
+		if ( generationCache != null && mappedState == null ) 
+		{
+			final GenerationCache.Generation cached = generationCache.getClosest( getFingerprint() , seed , desiredRecursionCount );
+			if ( cached != null && cached.getGeneration() == desiredRecursionCount ) {
+				restore( cached );
+				return;
+			}
+		}
+		
+		checkBudget( desiredRecursionCount );
+		final DerivationDag dag = createDerivationDag();
+		if ( dag == null || ( dag.length() > Integer.MAX_VALUE - 8 && mappedState == null ) ) 
+		{
+			reset();
+			rewriteRecursively();
+			return;
+		}
+		
+		// the DAG knows the exact size, reject it before allocating anything
+		final DerivationMonitor monitor = createMonitor( dag.getGeneration() );
+		if ( monitor != null ) {
+			monitor.checkExpected( BigInteger.valueOf( dag.length() ) );
+		}
+		
+		// the size of the previous generation is unknown, metrics will not report a growth factor for this one
+		final DerivationMetrics.Recorder recorder = metrics != null ? metrics.startGeneration( dag.getGeneration() , 0 ) : null;
+		final TokenStream stream = dag.toTokenStream();
+		long position = 0;
+		if ( mappedState != null ) 
+		{
+			// like rewriteOffHeap(), keep the current state intact until the new one is complete
+			final MappedSymbolBuffer output = mappedNext;
+			output.clear();
+			try 
+			{
+				for ( ; ! stream.eof() ; position++ ) 
+				{
+					if ( monitor != null && monitor.isDue( position ) ) {
+						monitor.check( position , position );
+					}
+					output.add( alphabet.intern( stream.next() ) );
+				}
+			} catch(IOException e) {
+				throw new RuntimeException("Failed to write off-heap state",e);
+			}
+			this.mappedNext = mappedState;
+			this.mappedState = output;
+			this.state = output.asList( alphabet );
+		} 
+		else if ( alphabet != null ) 
+		{
+			final SymbolBuffer buffer = new SymbolBuffer( (int) dag.length() );
+			for ( ; ! stream.eof() ; position++ ) 
+			{
+				if ( monitor != null && monitor.isDue( position ) ) {
+					monitor.check( position , position );
+				}
+				buffer.add( alphabet.intern( stream.next() ) );
+			}
+			this.symbols = buffer;
+			this.state = alphabet.asList( symbols );
+		} 
+		else 
+		{
+			final List<Token> list = new ArrayList<>( (int) dag.length() );
+			for ( ; ! stream.eof() ; position++ ) 
+			{
+				if ( monitor != null && monitor.isDue( position ) ) {
+					monitor.check( position , position );
+				}
+				list.add( stream.next() );
+			}
+			this.state = list;
+		}
+		if ( monitor != null ) {
+			monitor.finished( position );
+		}
+		this.recursionCount = dag.getGeneration();
+		this.stateValid = true;
+		resetHook();
+		if ( recorder != null ) {
+			recorder.finished( getStateSizeAsLong() , getBytesPerSymbol() );
+		}
+		if ( generationCache != null && mappedState == null ) 
+		{
+			if ( alphabet != null ) {
+				generationCache.put( getFingerprint() , seed , recursionCount , symbols , alphabet );
+			} else {
+				generationCache.put( getFingerprint() , seed , recursionCount , state );
+			}
+		}
+	}
 
 	/**
 	 * Transforms this L-System by applying all matching rules.
@@ -152,47 +675,782 @@ public class LSystem
 	 * 
 	 * @see #getRecursionCount()
 	 */
-	public final void rewrite()
+	public final void rewrite() throws DerivationAbortedException
+	{
+		final DerivationMonitor monitor = createMonitor( recursionCount+1 );
+		if ( monitor != null ) {
+			final GrowthAnalyzer analyzer = stateValid ? getGrowthAnalyzer() : null;
+			monitor.checkExpected( analyzer != null ? analyzer.getLength( recursionCount+1 ) : null );
+		}
+		final DerivationMetrics.Recorder recorder = metrics != null ? metrics.startGeneration( recursionCount+1 , getStateSizeAsLong() ) : null;
+		if ( mappedState != null ) {
+			rewriteOffHeap( monitor , recorder );
+		} else if ( alphabet != null ) {
+			rewriteSymbols( monitor , recorder );
+		} else {
+			rewriteTokens( monitor , recorder );
+		}
+		if ( recorder != null ) {
+			recorder.finished( getStateSizeAsLong() , getBytesPerSymbol() );
+		}
+		if ( monitor != null ) {
+			monitor.finished( getStateSizeAsLong() );
+		}
+		if ( generationCache != null && stateValid && mappedState == null ) 
+		{
+			if ( alphabet != null ) {
+				generationCache.put( getFingerprint() , seed , recursionCount , symbols , alphabet );
+			} else {
+				generationCache.put( getFingerprint() , seed , recursionCount , state );
+			}
+		}
+	}
+	
+	private void rewriteTokens(DerivationMonitor monitor,DerivationMetrics.Recorder recorder) 
 	{
-		final MyContext ctx = new MyContext( this.state );
-outer:		
+		final RuleIndex index = getRuleIndex();
+		final MyContext ctx = new MyContext( this.state , predictNextStateSize() );
+		final RuleAutomaton.Matcher matcher = index.getAutomaton() != null ? index.getAutomaton().matcher( ctx ) : null;
 		while( ! ctx.eof() ) 
 		{
-			for ( RewritingRule r : rules ) {
-				if ( r.matches( ctx , parameterProvider ) ) 
-				{
-					r.rewrite( ctx , parameterProvider );
-					continue outer;
+			if ( monitor != null && monitor.isDue( ctx.getPosition() ) ) {
+				monitor.check( ctx.getPosition() , ctx.buffer.size() );
+			}
+			RewritingRule r = index.findMatch( ctx , parameterProvider );
+			if ( matcher != null ) {
+				r = index.select( r , matcher.getMatch( ctx.getPosition() ) );
+			}
+			if ( r != null ) {
+				if ( recorder != null ) {
+					recorder.ruleApplied( r );
 				}
+				r.rewrite( ctx , parameterProvider );
+			} else {
+				ctx.write( ctx.next() );
 			}
-			ctx.write( ctx.next() );
+		}
+		if ( monitor != null ) {
+			monitor.check( ctx.getPosition() , ctx.buffer.size() );
 		}
 		this.state = ctx.buffer;
 		recursionCount++;
 	}
 
-    public void setParameterProvider(ParameterProvider provider) {
-        this.parameterProvider = provider;
-    }
-
-    protected final class MyContext implements RewritingContext
+	private void rewriteSymbols(DerivationMonitor monitor,DerivationMetrics.Recorder recorder)
 	{
-		private List<Token> lexer;
-		private int index=0;
-		public final List<Token> buffer = new ArrayList<>();
-		
-		public MyContext(List<Token> lexer) {
-			this.lexer = lexer;
+		if ( forkJoinPool != null && symbols.size() >= ParallelRewriter.DEFAULT_CHUNK_SIZE ) 
+		{
+			final CompiledRuleSet compiled = getRewriteRules();
+			if ( compiled != null ) 
+			{
+				final AtomicLongArray ruleCounts = recorder != null ? new AtomicLongArray( compiled.size() ) : null;
+				final SymbolBuffer result = new ParallelRewriter( forkJoinPool ).rewrite( symbols , compiled , seed , recursionCount , monitor , ruleCounts );
+				if ( recorder != null ) 
+				{
+					for ( int code = 0 , len = ruleCounts.length() ; code < len ; code++ ) 
+					{
+						final long count = ruleCounts.get( code );
+						if ( count != 0 ) {
+							recorder.ruleApplied( compiled.getRule( code ) , count );
+						}
+					}
+				}
+				if ( monitor != null ) {
+					monitor.check( symbols.size() , result.size() );
+				}
+				this.symbols = result;
+				this.state = alphabet.asList( symbols );
+				recursionCount++;
+				return;
+			}
 		}
 		
-		@Override
-		public boolean eof() {
-			return index>=lexer.size();
+		final RuleIndex index = getRuleIndex();
+		final SymbolContext ctx = new SymbolContext( this.symbols , predictNextStateSize() );
+		final RuleAutomaton.Matcher matcher = index.getAutomaton() != null ? index.getAutomaton().matcher( ctx ) : null;
+		while( ! ctx.eof() ) 
+		{
+			if ( monitor != null && monitor.isDue( ctx.getPosition() ) ) {
+				monitor.check( ctx.getPosition() , ctx.buffer.size() );
+			}
+			RewritingRule r = index.findMatch( ctx.peekSymbol() , alphabet , ctx , parameterProvider );
+			if ( matcher != null ) {
+				r = index.select( r , matcher.getMatch( ctx.getPosition() ) );
+			}
+			if ( r != null ) {
+				if ( recorder != null ) {
+					recorder.ruleApplied( r );
+				}
+				r.rewrite( ctx , parameterProvider );
+			} else {
+				ctx.copy();
+			}
+		}
+		if ( monitor != null ) {
+			monitor.check( ctx.getPosition() , ctx.buffer.size() );
 		}
+		this.symbols = ctx.buffer;
+		this.state = alphabet.asList( symbols );
+		recursionCount++;
+	}
 
-		@Override
-		public Token peek() {
-			return lexer.get(index);
+	/**
+	 * Returns the bracket index of this system's current state.
+	 * 
+	 * <p>The index is built lazily on first access in a single pass over the state and 
+	 * kept until the state changes.</p>
+	 * 
+	 * @return index or <code>null</code> if off-heap storage is enabled
+	 */
+	public final BracketIndex getBracketIndex() 
+	{
+		if ( mappedState != null ) {
+			return null;
+		}
+		final Object source = alphabet != null ? symbols : state;
+		if ( bracketIndex == null || bracketIndexSource != source ) 
+		{
+			bracketIndex = alphabet != null ? BracketIndex.create( symbols , alphabet ) : BracketIndex.create( state );
+			bracketIndexSource = source;
+		}
+		return bracketIndex;
+	}
+	
+	/**
+	 * Returns the lookup table used to find the rule that matches a symbol.
+	 * 
+	 * <p>The index is rebuilt lazily whenever rules are added.</p>
+	 * @return
+	 */
+	public final RuleIndex getRuleIndex() 
+	{
+		if ( ruleIndex == null ) {
+			ruleIndex = new RuleIndex( rules );
+		}
+		return ruleIndex;
+	}
+
+	private void rewriteOffHeap(DerivationMonitor monitor,DerivationMetrics.Recorder recorder)
+	{
+		final MappedSymbolBuffer input = mappedState;
+		final MappedSymbolBuffer output = mappedNext;
+		output.clear();
+		try 
+		{
+			final CompiledRuleSet compiled = getRewriteRules();
+			if ( compiled != null ) 
+			{
+				final long[] ruleCounts = recorder != null ? new long[ compiled.size() ] : null;
+				for ( long i = 0 , len = input.size() ; i < len ; i++ ) 
+				{
+					if ( monitor != null && monitor.isDue( i ) ) {
+						monitor.check( i , output.size() );
+					}
+					final int code = input.get( i );
+					if ( compiled.isIdentity( code ) ) {
+						output.add( code );
+					} else {
+						output.addAll( compiled.getExpansion( code , seed , recursionCount , i ) );
+						if ( ruleCounts != null ) {
+							ruleCounts[code]++;
+						}
+					}
+				}
+				if ( recorder != null ) 
+				{
+					for ( int code = 0 ; code < ruleCounts.length ; code++ ) 
+					{
+						if ( ruleCounts[code] != 0 ) {
+							recorder.ruleApplied( compiled.getRule( code ) , ruleCounts[code] );
+						}
+					}
+				}
+			} 
+			else 
+			{
+				final RuleIndex index = getRuleIndex();
+				final MappedContext ctx = new MappedContext( input , output );
+				final RuleAutomaton.Matcher matcher = index.getAutomaton() != null ? index.getAutomaton().matcher( ctx ) : null;
+				while( ! ctx.eof() ) 
+				{
+					if ( monitor != null && monitor.isDue( ctx.getPosition() ) ) {
+						monitor.check( ctx.getPosition() , output.size() );
+					}
+					RewritingRule r = index.findMatch( ctx.peekSymbol() , alphabet , ctx , parameterProvider );
+					if ( matcher != null ) {
+						r = index.select( r , matcher.getMatch( ctx.getPosition() ) );
+					}
+					if ( r != null ) {
+						if ( recorder != null ) {
+							recorder.ruleApplied( r );
+						}
+						r.rewrite( ctx , parameterProvider );
+					} else {
+						ctx.copy();
+					}
+				}
+			}
+		} 
+		catch(IOException e) {
+			throw new RuntimeException("Failed to write off-heap state",e);
+		}
+		if ( monitor != null ) {
+			monitor.check( input.size() , output.size() );
+		}
+		this.mappedState = output;
+		this.mappedNext = input;
+		this.state = output.asList( alphabet );
+		recursionCount++;
+	}
+	
+	private void rulesChanged() {
+		if ( alphabet != null && hasParametricRules() ) {
+			leaveCompactState();
+		}
+		this.stateValid &= recursionCount == 0;
+		this.fingerprint = null;
+		this.ruleIndex = null;
+		this.compiledRules = null;
+		this.rulesCompiled = false;
+		this.stochasticRules = null;
+		this.stochasticRulesCompiled = false;
+		this.growthAnalyzer = null;
+		this.growthAnalyzed = false;
+	}
+	
+	private boolean hasParametricRules() 
+	{
+		for ( RewritingRule rule : rules ) 
+		{
+			if ( isParametric( rule ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isParametric(RewritingRule rule) 
+	{
+		if ( rule instanceof ParametricRule ) {
+			return true;
+		}
+		if ( rule instanceof StochasticRule ) 
+		{
+			for ( RewritingRule alternative : ((StochasticRule) rule).getAlternatives() ) 
+			{
+				if ( isParametric( alternative ) ) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Switches to list mode, keeping the current generation.
+	 */
+	private void leaveCompactState() 
+	{
+		final List<Token> tokens = new ArrayList<>( state );
+		closeOffHeapStorage();
+		this.alphabet = null;
+		this.symbols = null;
+		this.encodedSequences.clear();
+		this.state = tokens;
+	}
+	
+	/**
+	 * Returns this system's rules compiled into a per-symbol expansion table.
+	 * 
+	 * @return compiled rules or <code>null</code> if this system is not in compact mode
+	 * or its rules are not deterministic and context-free
+	 * @see #setCompactState(boolean)
+	 */
+	public final CompiledRuleSet getCompiledRules() 
+	{
+		if ( alphabet == null ) {
+			return null;
+		}
+		if ( ! rulesCompiled || ( compiledRules != null && compiledRules.size() < alphabet.size() ) ) 
+		{
+			compiledRules = CompiledRuleSet.compile( alphabet , getRuleIndex() );
+			rulesCompiled = true;
+		}
+		return compiledRules;
+	}
+	
+	/**
+	 * Returns the compiled rules used for rewriting, these may contain stochastic rules.
+	 * 
+	 * @return compiled rules or <code>null</code> if this system is not in compact mode
+	 * or its rules are not context-free
+	 */
+	private CompiledRuleSet getRewriteRules() 
+	{
+		final CompiledRuleSet deterministic = getCompiledRules();
+		if ( deterministic != null || alphabet == null ) {
+			return deterministic;
+		}
+		if ( ! stochasticRulesCompiled || ( stochasticRules != null && stochasticRules.size() < alphabet.size() ) ) 
+		{
+			stochasticRules = CompiledRuleSet.compile( alphabet , getRuleIndex() , true );
+			stochasticRulesCompiled = true;
+		}
+		return stochasticRules;
+	}
+	
+	/**
+	 * Sets the seed used by stochastic rules.
+	 * 
+	 * <p>Rules using {@link PositionalRewritingContext#random(RewritingRule)} yield the same result for the same seed, 
+	 * no matter whether the system is rewritten sequentially, in parallel or lazily.</p>
+	 * 
+	 * @param seed
+	 * @see CounterRandom
+	 */
+	public final void setSeed(long seed) 
+	{
+		if ( seed != this.seed ) {
+			this.seed = seed;
+			this.stateValid &= recursionCount == 0;
+		}
+	}
+	
+	public final long getSeed() {
+		return seed;
+	}
+	
+	/**
+	 * Returns an analyzer that predicts the exact size of any generation.
+	 * 
+	 * @return analyzer or <code>null</code> if this system's rules are not deterministic and context-free
+	 */
+	public final GrowthAnalyzer getGrowthAnalyzer() 
+	{
+		if ( ! growthAnalyzed ) 
+		{
+			growthAnalyzer = GrowthAnalyzer.create( axiom.toList() , getRuleIndex() );
+			growthAnalyzed = true;
+		}
+		return growthAnalyzer;
+	}
+	
+	/**
+	 * Returns the number of symbols a given generation will have.
+	 * 
+	 * @param generation
+	 * @return
+	 * @throws IllegalStateException if this system's rules are not deterministic and context-free
+	 * @throws ArithmeticException if the generation has more than {@link Long#MAX_VALUE} symbols
+	 * @see #getGrowthAnalyzer()
+	 */
+	public final long predictStateSize(int generation) throws IllegalStateException,ArithmeticException
+	{
+		final GrowthAnalyzer analyzer = getGrowthAnalyzer();
+		if ( analyzer == null ) {
+			throw new IllegalStateException("Rules are not deterministic and context-free, cannot predict size");
+		}
+		return analyzer.getLengthAsLong( generation );
+	}
+	
+	/**
+	 * Returns the size of the next generation if it is known in advance.
+	 * 
+	 * <p>Predictions are derived from the axiom, so they are only available if the current state is a generation 
+	 * of the axiom under the current rules.</p>
+	 * 
+	 * @return size or -1 
+	 */
+	private int predictNextStateSize() 
+	{
+		final GrowthAnalyzer analyzer = stateValid ? getGrowthAnalyzer() : null;
+		if ( analyzer != null ) 
+		{
+			final BigInteger size = analyzer.getLength( recursionCount+1 );
+			if ( size.bitLength() < 31 ) {
+				return size.intValue();
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Sets the thread pool used to rewrite large generations in parallel.
+	 * 
+	 * <p>Parallel rewriting is only used in compact mode and only if all rules
+	 * are deterministic and context-free (see {@link #getCompiledRules()}) or plain 
+	 * {@link de.codesourcery.lsystems.lsystem.rules.StochasticRule}s choosing among such rules, otherwise 
+	 * {@link #rewrite()} silently falls back to sequential rewriting. The result is identical in both cases.</p>
+	 * 
+	 * @param pool pool to use, <code>null</code> to always rewrite sequentially
+	 * @see #setCompactState(boolean)
+	 */
+	public void setForkJoinPool(ForkJoinPool pool) {
+		this.forkJoinPool = pool;
+	}
+	
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+
+	/**
+	 * Sets the limits for deriving generations.
+	 * 
+	 * <p>The budget is checked up-front (using the {@link #getGrowthAnalyzer() growth analyzer} if 
+	 * available and the current state is a generation of the axiom under the current rules) and every few thousand 
+	 * input symbols while rewriting. Exceeding it aborts 
+	 * the derivation with a {@link DerivationAbortedException}, leaving this system at the last generation 
+	 * that was derived completely.</p>
+	 * 
+	 * <p>Memory usage is estimated as 4 bytes per symbol in compact or off-heap mode and 8 bytes (one reference) 
+	 * per symbol otherwise.</p>
+	 * 
+	 * @param budget budget, <code>null</code> for no limits
+	 */
+	public final void setDerivationBudget(DerivationBudget budget) {
+		this.budget = budget;
+	}
+	
+	public final DerivationBudget getDerivationBudget() {
+		return budget;
+	}
+	
+	/**
+	 * Sets the token used to cancel derivations from another thread.
+	 * 
+	 * <p>Cancellation is checked at the same points as the {@link #setDerivationBudget(DerivationBudget) budget}.</p>
+	 * 
+	 * @param token token, may be <code>null</code>
+	 */
+	public final void setCancellationToken(CancellationToken token) {
+		this.cancellationToken = token;
+	}
+	
+	public final CancellationToken getCancellationToken() {
+		return cancellationToken;
+	}
+	
+	/**
+	 * Sets the listener to notify about derivation progress.
+	 * 
+	 * @param listener listener, may be <code>null</code>
+	 */
+	public final void setDerivationListener(DerivationListener listener) {
+		this.derivationListener = listener;
+	}
+	
+	public final DerivationListener getDerivationListener() {
+		return derivationListener;
+	}
+	
+	/**
+	 * Sets the object to collect rewriting statistics in.
+	 * 
+	 * <p>Metrics may be shared by several L-systems.</p>
+	 * 
+	 * @param metrics metrics, <code>null</code> to disable collecting statistics
+	 */
+	public final void setMetrics(DerivationMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public final DerivationMetrics getMetrics() {
+		return metrics;
+	}
+	
+	private int getBytesPerSymbol() {
+		return alphabet != null ? 4 : 8;
+	}
+	
+	private DerivationMonitor createMonitor(int generation) 
+	{
+		if ( budget == null && cancellationToken == null && derivationListener == null ) {
+			return null;
+		}
+		return new DerivationMonitor( budget , cancellationToken , derivationListener , generation , getBytesPerSymbol() );
+	}
+	
+	/**
+	 * Rejects deriving a generation up-front if its size is known to exceed the budget.
+	 * 
+	 * @param generation
+	 */
+	private void checkBudget(int generation) 
+	{
+		if ( budget != null ) 
+		{
+			final GrowthAnalyzer analyzer = getGrowthAnalyzer();
+			if ( analyzer != null ) {
+				DerivationMonitor.checkExpected( budget , generation , analyzer.getLength( generation ) , getBytesPerSymbol() );
+			}
+		}
+	}
+
+    public void setParameterProvider(ParameterProvider provider) {
+        this.parameterProvider = provider;
+    }
+    
+    private int[] encode(TokenSeq seq) 
+    {
+    	int[] result = encodedSequences.get( seq );
+    	if ( result == null ) {
+    		result = alphabet.intern( seq.toList() );
+    		encodedSequences.put( seq , result );
+    	}
+    	return result;
+    }
+    
+    /**
+     * Rewriting context that streams symbol codes between memory-mapped buffers.
+     */
+    protected final class MappedContext implements PositionalRewritingContext, RuleAutomaton.Input
+	{
+		private final MappedSymbolBuffer input;
+		private final MappedSymbolBuffer output;
+		private final long size;
+		private long index=0;
+		
+		public MappedContext(MappedSymbolBuffer input,MappedSymbolBuffer output) 
+		{
+			this.input = input;
+			this.output = output;
+			this.size = input.size();
+		}
+		
+		@Override
+		public boolean eof() {
+			return index>=size;
+		}
+		
+		public int peekSymbol() {
+			return input.get( index );
+		}
+		
+		@Override
+		public long getPosition() {
+			return index;
+		}
+		
+		@Override
+		public float random(RewritingRule rule) {
+			return CounterRandom.nextFloat( seed , recursionCount , index , getRuleIndex().getPrecedence( rule ) );
+		}
+		
+		@Override
+		public BracketIndex getBracketIndex() {
+			return LSystem.this.getBracketIndex();
+		}
+		
+		@Override
+		public long size() {
+			return size;
+		}
+		
+		@Override
+		public Token get(long position) {
+			return alphabet.get( input.get( position ) );
+		}
+		
+		public void copy() throws IOException {
+			output.add( input.get( index++ ) );
+		}
+
+		@Override
+		public Token peek() {
+			return alphabet.get( input.get( index ) );
+		}
+
+		@Override
+		public Token next() {
+			return alphabet.get( input.get( index++ ) );
+		}
+		
+		@Override
+		public Token next(TokenType type) 
+		{
+			if ( ! peek().type.equals( type ) ) {
+				throw new RuntimeException("Unexpected token "+peek()+", expected: "+type);
+			}
+			return next();
+		}		
+
+		@Override
+		public void write(TokenSeq s) 
+		{
+			try {
+				output.addAll( encode( s ) );
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write off-heap state",e);
+			}
+		}
+		
+		@Override
+		public void write(Token s) 
+		{
+			try {
+				output.add( alphabet.intern( s ) );
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write off-heap state",e);
+			}
+		}		
+		
+		@Override
+		public boolean peek(TokenType type) {
+			return type.equals( peek().type );
+		}
+
+		@Override
+		public int getRecursionCount() {
+			return recursionCount;
+		}
+	}
+    
+    /**
+     * Rewriting context that reads and writes symbol codes. 
+     */
+    protected final class SymbolContext implements PositionalRewritingContext, RuleAutomaton.Input
+	{
+		private final int[] input;
+		private final int size;
+		private int index=0;
+		public final SymbolBuffer buffer;
+		
+		public SymbolContext(SymbolBuffer input,int expectedSize) 
+		{
+			this.input = input.array();
+			this.size = input.size();
+			this.buffer = new SymbolBuffer( expectedSize > 0 ? expectedSize : size );
+		}
+		
+		@Override
+		public boolean eof() {
+			return index>=size;
+		}
+
+		@Override
+		public Token peek() {
+			return alphabet.get( input[index] );
+		}
+
+		@Override
+		public Token next() {
+			return alphabet.get( input[index++] );
+		}
+		
+		/**
+		 * Returns the code of the symbol at the current cursor position.
+		 * @return
+		 */
+		public int peekSymbol() {
+			return input[index];
+		}
+		
+		@Override
+		public long getPosition() {
+			return index;
+		}
+		
+		@Override
+		public float random(RewritingRule rule) {
+			return CounterRandom.nextFloat( seed , recursionCount , index , getRuleIndex().getPrecedence( rule ) );
+		}
+		
+		@Override
+		public BracketIndex getBracketIndex() {
+			return LSystem.this.getBracketIndex();
+		}
+		
+		@Override
+		public long size() {
+			return size;
+		}
+		
+		@Override
+		public Token get(long position) {
+			return alphabet.get( input[ (int) position ] );
+		}
+		
+		/**
+		 * Copies the current symbol to the output without decoding it.
+		 */
+		public void copy() {
+			buffer.add( input[index++] );
+		}
+		
+		@Override
+		public Token next(TokenType type) 
+		{
+			if ( ! peek().type.equals( type ) ) {
+				throw new RuntimeException("Unexpected token "+peek()+", expected: "+type);
+			}
+			return next();
+		}		
+
+		@Override
+		public void write(TokenSeq s) {
+			buffer.addAll( encode( s ) );
+		}
+		
+		@Override
+		public void write(Token s) {
+			buffer.add( alphabet.intern( s ) );
+		}		
+		
+		@Override
+		public boolean peek(TokenType type) {
+			return type.equals( peek().type );
+		}
+
+		@Override
+		public int getRecursionCount() {
+			return recursionCount;
+		}
+	}
+
+    protected final class MyContext implements PositionalRewritingContext, RuleAutomaton.Input
+	{
+		private List<Token> lexer;
+		private int index=0;
+		public final List<Token> buffer;
+		
+		public MyContext(List<Token> lexer,int expectedSize) {
+			this.lexer = lexer;
+			this.buffer = new ArrayList<>( expectedSize > 0 ? expectedSize : lexer.size() );
+		}
+		
+		@Override
+		public boolean eof() {
+			return index>=lexer.size();
+		}
+
+		@Override
+		public Token peek() {
+			return lexer.get(index);
+		}
+		
+		@Override
+		public long getPosition() {
+			return index;
+		}
+		
+		@Override
+		public float random(RewritingRule rule) {
+			return CounterRandom.nextFloat( seed , recursionCount , index , getRuleIndex().getPrecedence( rule ) );
+		}
+		
+		@Override
+		public BracketIndex getBracketIndex() {
+			return LSystem.this.getBracketIndex();
+		}
+		
+		@Override
+		public long size() {
+			return lexer.size();
+		}
+		
+		@Override
+		public Token get(long position) {
+			return lexer.get( (int) position );
 		}
 
 		@Override
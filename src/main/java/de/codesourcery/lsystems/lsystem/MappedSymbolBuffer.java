@@ -0,0 +1,290 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A growable sequence of symbol codes stored in a memory-mapped file.
+ *
+ * <p>The file is mapped in segments of 2^26 symbols, so the sequence may hold
+ * more than {@link Integer#MAX_VALUE} symbols and its size is only limited by
+ * available disk space/address space, not by the Java heap.</p>
+ *
+ * <p>The last segment is mapped with a capacity of 2^16 symbols first and remapped with twice
+ * its capacity whenever it is full, so the file grows with the data and is never more than
+ * twice as large as needed (or 256 KB, whichever is larger).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see SymbolBuffer
+ */
+public final class MappedSymbolBuffer implements Closeable
+{
+	/**
+	 * log2 of the number of symbols per mapped segment.
+	 */
+	private static final int SEGMENT_SHIFT = 26;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE-1;
+	/**
+	 * Number of symbols a segment is mapped with initially.
+	 */
+	private static final int MIN_SEGMENT_CAPACITY = 1 << 16;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final List<IntBuffer> segments = new ArrayList<>();
+
+	private long size;
+
+	/**
+	 * Creates a buffer backed by a new temporary file.
+	 *
+	 * @param directory directory to create the file in
+	 * @throws IOException
+	 */
+	public MappedSymbolBuffer(File directory) throws IOException
+	{
+		this.file = File.createTempFile( "lsystem" , ".symbols" , directory );
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile( file , "rw" );
+		this.channel = raf.getChannel();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns a segment, mapping it or remapping it with a larger capacity if needed.
+	 *
+	 * @param index
+	 * @param capacity number of symbols the segment needs to hold
+	 * @return
+	 * @throws IOException
+	 */
+	private IntBuffer segment(int index,int capacity) throws IOException
+	{
+		while ( index >= segments.size() ) {
+			segments.add( map( segments.size() , segments.size() < index ? SEGMENT_SIZE : MIN_SEGMENT_CAPACITY ) );
+		}
+		final IntBuffer segment = segments.get( index );
+		if ( segment.capacity() >= capacity ) {
+			return segment;
+		}
+		int newCapacity = segment.capacity();
+		while ( newCapacity < capacity ) {
+			newCapacity *= 2;
+		}
+		final IntBuffer result = map( index , newCapacity );
+		segments.set( index , result );
+		return result;
+	}
+
+	private IntBuffer map(int index,int capacity) throws IOException
+	{
+		final long position = (long) index * SEGMENT_SIZE * 4;
+		final MappedByteBuffer mapped = channel.map( MapMode.READ_WRITE , position , capacity * 4L );
+		mapped.order( ByteOrder.nativeOrder() );
+		return mapped.asIntBuffer();
+	}
+
+	public void add(int symbol) throws IOException
+	{
+		final int position = (int) (size & SEGMENT_MASK);
+		segment( (int) (size >>> SEGMENT_SHIFT) , position+1 ).put( position , symbol );
+		size++;
+	}
+
+	public void addAll(int[] symbols) throws IOException
+	{
+		int offset = 0;
+		int remaining = symbols.length;
+		while ( remaining > 0 )
+		{
+			final int position = (int) (size & SEGMENT_MASK);
+			final int len = Math.min( remaining , SEGMENT_SIZE - position );
+			final IntBuffer segment = segment( (int) (size >>> SEGMENT_SHIFT) , position+len );
+			segment.position( position );
+			segment.put( symbols , offset , len );
+			offset += len;
+			remaining -= len;
+			size += len;
+		}
+	}
+
+	public int get(long index)
+	{
+		if ( index < 0 || index >= size ) {
+			throw new IndexOutOfBoundsException("Index "+index+" out of range [0,"+size+"[");
+		}
+		return segments.get( (int) (index >>> SEGMENT_SHIFT) ).get( (int) (index & SEGMENT_MASK) );
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Discards all symbols, keeping the file and its mappings for reuse.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Closes this buffer and deletes its file.
+	 *
+	 * @throws IOException if closing failed or the file could not be deleted (it is then still
+	 * deleted when the JVM exits)
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		segments.clear();
+		size = 0;
+		boolean deleted = false;
+		try {
+			channel.close();
+			raf.close();
+		} finally {
+			deleted = file.delete();
+		}
+		if ( ! deleted && file.exists() ) {
+			throw new IOException("Failed to delete "+file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Returns a read-only list view that decodes symbols on the fly.
+	 *
+	 * @param alphabet alphabet used to encode this buffer
+	 * @return
+	 */
+	public List<Token> asList(final TokenAlphabet alphabet)
+	{
+		return new DecodingList( alphabet );
+	}
+
+	protected final class DecodingList extends AbstractList<Token> implements RandomAccess
+	{
+		private final TokenAlphabet alphabet;
+
+		public DecodingList(TokenAlphabet alphabet) {
+			this.alphabet = alphabet;
+		}
+
+		@Override
+		public Token get(int index) {
+			return alphabet.get( MappedSymbolBuffer.this.get( index ) );
+		}
+
+		@Override
+		public int size()
+		{
+			if ( size > Integer.MAX_VALUE ) {
+				throw new IllegalStateException("Buffer holds "+size+" symbols, too many for a list");
+			}
+			return (int) size;
+		}
+	}
+
+	/**
+	 * Returns a token stream that decodes this buffer's symbols.
+	 *
+	 * @param alphabet alphabet used to encode this buffer
+	 * @return
+	 */
+	public TokenStream toTokenStream(TokenAlphabet alphabet) {
+		return new SymbolStream( alphabet );
+	}
+
+	protected final class SymbolStream implements TokenStream
+	{
+		private final TokenAlphabet alphabet;
+		private long index;
+
+		public SymbolStream(TokenAlphabet alphabet) {
+			this.alphabet = alphabet;
+		}
+
+		@Override
+		public boolean eof() {
+			return index >= size;
+		}
+
+		@Override
+		public Token next()
+		{
+			if ( eof() ) {
+				throw new IllegalStateException("Already at EOF");
+			}
+			return alphabet.get( get( index++ ) );
+		}
+
+		@Override
+		public Token peek()
+		{
+			if ( eof() ) {
+				throw new IllegalStateException("Already at EOF");
+			}
+			return alphabet.get( get( index ) );
+		}
+
+		@Override
+		public Iterator<Token> iterator()
+		{
+			return new Iterator<Token>() {
+
+				private long current = 0;
+
+				@Override
+				public boolean hasNext() {
+					return current < size;
+				}
+
+				@Override
+				public Token next()
+				{
+					if ( ! hasNext() ) {
+						throw new NoSuchElementException();
+					}
+					return alphabet.get( get( current++ ) );
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("remove()");
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+/**
+ * A {@link ParameterProvider} that is able to return numeric parameter values
+ * without converting them to strings.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ParameterExpression
+ */
+public interface NumericParameterProvider extends ParameterProvider {
+
+	/**
+	 * Returns the numeric value of a parameter.
+	 *
+	 * @param token
+	 * @param identifier
+	 * @return
+	 */
+	public double getNumericParameter(Token token,String identifier);
+}
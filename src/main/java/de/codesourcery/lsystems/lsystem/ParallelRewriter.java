@@ -0,0 +1,291 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rewrites a generation of symbol codes using multiple threads.
+ *
+ * <p>The input is split into fixed-size chunks. A first parallel pass computes the
+ * output length of each chunk, a prefix sum over these lengths yields the offset at which
+ * each chunk's output starts and a second parallel pass writes all expansions
+ * straight into a single, exactly sized output array.</p>
+ *
+ * <p>The output is identical to rewriting the input sequentially. This also holds for stochastic
+ * rules since their choices only depend on the seed and the location of the rewritten symbol
+ * (see {@link CounterRandom}), both passes pick the same alternative for the same symbol.</p>
+ *
+ * <p>When rewriting on behalf of an {@link LSystem}, every task checks the system's budget and cancellation token 
+ * every few thousand input symbols. The first task to notice that the derivation 
+ * needs to be aborted stops all other tasks.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CompiledRuleSet
+ */
+public final class ParallelRewriter
+{
+	/**
+	 * Default number of input symbols processed by a single task.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64*1024;
+
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+
+	public ParallelRewriter(ForkJoinPool pool) {
+		this(pool,DEFAULT_CHUNK_SIZE);
+	}
+
+	public ParallelRewriter(ForkJoinPool pool,int chunkSize)
+	{
+		if ( pool == null ) {
+			throw new IllegalArgumentException("pool must not be NULL");
+		}
+		if ( chunkSize < 1 ) {
+			throw new IllegalArgumentException("Invalid chunk size: "+chunkSize);
+		}
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Rewrites a generation using deterministic rules.
+	 *
+	 * @param input
+	 * @param rules rules covering all symbols in the input
+	 * @return next generation
+	 * @throws IllegalStateException if the next generation would be too large to fit into an array
+	 */
+	public SymbolBuffer rewrite(SymbolBuffer input,CompiledRuleSet rules) {
+		return rewrite( input , rules , 0 , 0 );
+	}
+
+	/**
+	 * Rewrites a generation.
+	 *
+	 * @param input
+	 * @param rules rules covering all symbols in the input
+	 * @param seed seed used by stochastic rules
+	 * @param generation generation being rewritten, used by stochastic rules
+	 * @return next generation
+	 * @throws IllegalStateException if the next generation would be too large to fit into an array
+	 */
+	public SymbolBuffer rewrite(SymbolBuffer input,CompiledRuleSet rules,long seed,int generation) {
+		return rewrite( input , rules , seed , generation , null , null );
+	}
+
+	/**
+	 * Rewrites a generation, checking a derivation's budget while doing so.
+	 *
+	 * @param input
+	 * @param rules rules covering all symbols in the input
+	 * @param seed seed used by stochastic rules
+	 * @param generation generation being rewritten, used by stochastic rules
+	 * @param monitor monitor to check, may be <code>null</code>
+	 * @param ruleCounts receives the number of times each symbol code has been replaced by a rule (see {@link CompiledRuleSet#getRule(int)}), 
+	 * may be <code>null</code>
+	 * @return next generation
+	 * @throws IllegalStateException if the next generation would be too large to fit into an array
+	 * @throws DerivationAbortedException if the monitor aborted the derivation
+	 */
+	SymbolBuffer rewrite(SymbolBuffer input,CompiledRuleSet rules,long seed,int generation,DerivationMonitor monitor,AtomicLongArray ruleCounts) throws DerivationAbortedException
+	{
+		final int[] in = input.array();
+		final int size = input.size();
+		final int chunkCount = (size + chunkSize - 1) / chunkSize;
+		final Abort abort = new Abort( monitor );
+
+		// pass 1: output length of each chunk
+		final long[] offsets = new long[ chunkCount+1 ];
+		pool.invoke( new ChunkTask( in , size , null , offsets , rules , seed , generation , 0 , chunkCount , abort , null ) );
+		abort.rethrow();
+
+		// prefix sum
+		long total = 0;
+		for ( int i = 0 ; i < chunkCount ; i++ )
+		{
+			final long len = offsets[i];
+			offsets[i] = total;
+			total += len;
+		}
+		offsets[chunkCount] = total;
+		if ( monitor != null ) {
+			monitor.checkLimits( total );
+		}
+		if ( total > Integer.MAX_VALUE - 8 ) {
+			throw new IllegalStateException("Next generation would have "+total+" symbols, too large");
+		}
+
+		// pass 2: write expansions
+		final int[] out = new int[ (int) total ];
+		pool.invoke( new ChunkTask( in , size , out , offsets , rules , seed , generation , 0 , chunkCount , abort , ruleCounts ) );
+		abort.rethrow();
+		return new SymbolBuffer( out );
+	}
+
+	/**
+	 * Shared by all tasks of a rewrite, reports progress and remembers why the derivation was aborted.
+	 */
+	protected static final class Abort
+	{
+		private final DerivationMonitor monitor;
+		// symbols produced by all tasks of pass 1
+		private final AtomicLong produced = new AtomicLong();
+		private volatile DerivationAbortedException reason;
+
+		public Abort(DerivationMonitor monitor) {
+			this.monitor = monitor;
+		}
+
+		/**
+		 * Checks whether the derivation needs to be aborted.
+		 *
+		 * @param newlyProduced number of symbols produced by the calling task since its last check
+		 * @return <code>true</code> if the calling task should stop
+		 */
+		public boolean check(long newlyProduced)
+		{
+			if ( reason != null ) {
+				return true;
+			}
+			if ( monitor != null )
+			{
+				try {
+					monitor.checkConcurrently( produced.addAndGet( newlyProduced ) );
+				} catch(DerivationAbortedException e) {
+					reason = e;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void rethrow() throws DerivationAbortedException
+		{
+			if ( reason != null ) {
+				throw reason;
+			}
+		}
+	}
+
+	protected final class ChunkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int[] in;
+		private final int size;
+		private final int[] out; // NULL during pass 1
+		private final long[] offsets;
+		private final CompiledRuleSet rules;
+		private final long seed;
+		private final int generation;
+		private final int firstChunk;
+		private final int lastChunk; // exclusive
+		private final Abort abort;
+		private final AtomicLongArray ruleCounts; // NULL if not counting
+
+		public ChunkTask(int[] in, int size, int[] out, long[] offsets, CompiledRuleSet rules, long seed, int generation, int firstChunk, int lastChunk, Abort abort, AtomicLongArray ruleCounts)
+		{
+			this.in = in;
+			this.size = size;
+			this.out = out;
+			this.offsets = offsets;
+			this.rules = rules;
+			this.seed = seed;
+			this.generation = generation;
+			this.firstChunk = firstChunk;
+			this.lastChunk = lastChunk;
+			this.abort = abort;
+			this.ruleCounts = ruleCounts;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( lastChunk - firstChunk > 1 )
+			{
+				final int middle = (firstChunk+lastChunk) >>> 1;
+				invokeAll( new ChunkTask( in , size , out , offsets , rules , seed , generation , firstChunk , middle , abort , ruleCounts ),
+						   new ChunkTask( in , size , out , offsets , rules , seed , generation , middle , lastChunk , abort , ruleCounts ) );
+				return;
+			}
+			if ( firstChunk >= lastChunk ) {
+				return;
+			}
+
+			final int start = firstChunk * chunkSize;
+			final int end = Math.min( size , start + chunkSize );
+			if ( out == null )
+			{
+				long len = 0;
+				long reported = 0;
+				for ( int i = start ; i < end ; i++ ) 
+				{
+					if ( ( ( i - start ) & ( DerivationMonitor.CHECK_INTERVAL - 1 ) ) == 0 ) 
+					{
+						if ( abort.check( len - reported ) ) {
+							return;
+						}
+						reported = len;
+					}
+					final int code = in[i];
+					final int codeLen = rules.getExpansionLength( code );
+					len += codeLen >= 0 ? codeLen : rules.getExpansion( code , seed , generation , i ).length;
+				}
+				offsets[firstChunk] = len;
+				return;
+			}
+
+			// counted per task first, merged once the chunk is done
+			final int[] counts = ruleCounts != null ? new int[ rules.size() ] : null;
+			int ptr = (int) offsets[firstChunk];
+			for ( int i = start ; i < end ; i++ )
+			{
+				if ( ( ( i - start ) & ( DerivationMonitor.CHECK_INTERVAL - 1 ) ) == 0 && abort.check( 0 ) ) {
+					return;
+				}
+				final int code = in[i];
+				if ( rules.isIdentity( code ) ) {
+					out[ptr++] = code;
+				} else {
+					final int[] expansion = rules.getExpansion( code , seed , generation , i );
+					System.arraycopy( expansion , 0 , out , ptr , expansion.length );
+					ptr += expansion.length;
+					if ( counts != null ) {
+						counts[code]++;
+					}
+				}
+			}
+			if ( counts != null ) 
+			{
+				for ( int code = 0 ; code < counts.length ; code++ ) 
+				{
+					if ( counts[code] != 0 ) {
+						ruleCounts.addAndGet( code , counts[code] );
+					}
+				}
+			}
+		}
+	}
+}
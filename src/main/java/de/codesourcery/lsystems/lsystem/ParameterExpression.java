@@ -0,0 +1,345 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.List;
+
+/**
+ * A compiled token parameter.
+ *
+ * <p>Supports numeric literals, <code>${name}</code> placeholders, the operators <code>+ - * /</code>, unary minus and
+ * parentheses. Placeholders are resolved through a {@link ParameterProvider} each time the expression is evaluated,
+ * using {@link NumericParameterProvider#getNumericParameter(Token, String)} if available so that no strings need
+ * to be parsed.</p>
+ *
+ * <p>Placeholders may also be bound to argument slots (see {@link #bind(List)}), these are
+ * read from the argument array passed to {@link #evaluate(float[], Token, ParameterProvider)}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public abstract class ParameterExpression
+{
+	protected ParameterExpression() {
+	}
+
+	/**
+	 * Evaluates this expression.
+	 *
+	 * @param token token this expression belongs to, passed to the parameter provider
+	 * @param provider
+	 * @return
+	 */
+	public final double evaluate(Token token,ParameterProvider provider) {
+		return evaluate( null , token , provider );
+	}
+
+	/**
+	 * Evaluates this expression.
+	 *
+	 * @param arguments values of bound argument slots, may be <code>null</code> if this expression has none
+	 * @param token token this expression belongs to, passed to the parameter provider
+	 * @param provider
+	 * @return
+	 */
+	public abstract double evaluate(float[] arguments,Token token,ParameterProvider provider);
+
+	/**
+	 * Returns a copy of this expression with all placeholders that refer to
+	 * one of the given names replaced by argument slots.
+	 *
+	 * @param formals names of the argument slots, the n-th name is bound to slot #n
+	 * @return
+	 */
+	public abstract ParameterExpression bind(List<String> formals);
+
+	/**
+	 * Returns whether this expression does not contain any placeholders.
+	 *
+	 * @return
+	 */
+	public abstract boolean isConstant();
+
+	/**
+	 * Compiles an expression.
+	 *
+	 * @param expression
+	 * @return compiled expression or <code>null</code> if the input is not a valid expression
+	 */
+	public static ParameterExpression compile(String expression)
+	{
+		final Parser parser = new Parser( expression );
+		try
+		{
+			final ParameterExpression result = parser.parseExpression();
+			if ( ! parser.eof() ) {
+				return null;
+			}
+			if ( result.isConstant() && ! ( result instanceof Constant ) ) {
+				return new Constant( result.evaluate( null , null ) );
+			}
+			return result;
+		}
+		catch(IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	protected static final class Constant extends ParameterExpression
+	{
+		private final double value;
+
+		public Constant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double evaluate(float[] arguments,Token token, ParameterProvider provider) {
+			return value;
+		}
+
+		@Override
+		public ParameterExpression bind(List<String> formals) {
+			return this;
+		}
+
+		@Override
+		public boolean isConstant() {
+			return true;
+		}
+	}
+
+	protected static final class Slot extends ParameterExpression
+	{
+		private final int index;
+
+		public Slot(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public double evaluate(float[] arguments,Token token, ParameterProvider provider) {
+			return arguments[index];
+		}
+
+		@Override
+		public ParameterExpression bind(List<String> formals) {
+			return this;
+		}
+
+		@Override
+		public boolean isConstant() {
+			return false;
+		}
+	}
+
+	protected static final class Placeholder extends ParameterExpression
+	{
+		private final String name;
+
+		public Placeholder(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public double evaluate(float[] arguments,Token token, ParameterProvider provider)
+		{
+			if ( provider instanceof NumericParameterProvider ) {
+				return ((NumericParameterProvider) provider).getNumericParameter( token , name );
+			}
+			final String value = provider.getParameter( token , name );
+			if ( value == null ) {
+				throw new RuntimeException("Internal error, got no value to substitute placeholder ${"+name+"}");
+			}
+			return Double.parseDouble( value );
+		}
+
+		@Override
+		public ParameterExpression bind(List<String> formals)
+		{
+			final int index = formals.indexOf( name );
+			return index == -1 ? this : new Slot( index );
+		}
+
+		@Override
+		public boolean isConstant() {
+			return false;
+		}
+	}
+
+	protected static final class Negate extends ParameterExpression
+	{
+		private final ParameterExpression child;
+
+		public Negate(ParameterExpression child) {
+			this.child = child;
+		}
+
+		@Override
+		public double evaluate(float[] arguments,Token token, ParameterProvider provider) {
+			return -child.evaluate( arguments , token , provider );
+		}
+
+		@Override
+		public ParameterExpression bind(List<String> formals) {
+			return new Negate( child.bind( formals ) );
+		}
+
+		@Override
+		public boolean isConstant() {
+			return child.isConstant();
+		}
+	}
+
+	protected static final class BinaryOperation extends ParameterExpression
+	{
+		private final char operator;
+		private final ParameterExpression left;
+		private final ParameterExpression right;
+
+		public BinaryOperation(char operator, ParameterExpression left, ParameterExpression right)
+		{
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public double evaluate(float[] arguments,Token token, ParameterProvider provider)
+		{
+			final double a = left.evaluate( arguments , token , provider );
+			final double b = right.evaluate( arguments , token , provider );
+			switch( operator )
+			{
+				case '+': return a + b;
+				case '-': return a - b;
+				case '*': return a * b;
+				case '/': return a / b;
+				default:
+					throw new RuntimeException("Internal error, unhandled operator: "+operator);
+			}
+		}
+
+		@Override
+		public ParameterExpression bind(List<String> formals) {
+			return new BinaryOperation( operator , left.bind( formals ) , right.bind( formals ) );
+		}
+
+		@Override
+		public boolean isConstant() {
+			return left.isConstant() && right.isConstant();
+		}
+	}
+
+	/**
+	 * Recursive-descent parser, throws {@link IllegalArgumentException} on invalid input.
+	 */
+	protected static final class Parser
+	{
+		private final String input;
+		private int index;
+
+		public Parser(String input) {
+			this.input = input;
+		}
+
+		public boolean eof() {
+			return index >= input.length();
+		}
+
+		private char peek() {
+			return eof() ? 0 : input.charAt( index );
+		}
+
+		private void consume(char expected)
+		{
+			if ( peek() != expected ) {
+				throw new IllegalArgumentException("Expected '"+expected+"' at offset "+index);
+			}
+			index++;
+		}
+
+		// expression := term ( ('+'|'-') term )*
+		public ParameterExpression parseExpression()
+		{
+			ParameterExpression result = parseTerm();
+			while ( peek() == '+' || peek() == '-' )
+			{
+				final char op = input.charAt( index++ );
+				result = new BinaryOperation( op , result , parseTerm() );
+			}
+			return result;
+		}
+
+		// term := unary ( ('*'|'/') unary )*
+		private ParameterExpression parseTerm()
+		{
+			ParameterExpression result = parseUnary();
+			while ( peek() == '*' || peek() == '/' )
+			{
+				final char op = input.charAt( index++ );
+				result = new BinaryOperation( op , result , parseUnary() );
+			}
+			return result;
+		}
+
+		// unary := '-' unary | primary
+		private ParameterExpression parseUnary()
+		{
+			if ( peek() == '-' ) {
+				index++;
+				return new Negate( parseUnary() );
+			}
+			return parsePrimary();
+		}
+
+		// primary := number | '${' name '}' | '(' expression ')'
+		private ParameterExpression parsePrimary()
+		{
+			final char c = peek();
+			if ( c == '(' )
+			{
+				index++;
+				final ParameterExpression result = parseExpression();
+				consume(')');
+				return result;
+			}
+			if ( c == '$' )
+			{
+				index++;
+				consume('{');
+				final int end = input.indexOf( '}' , index );
+				if ( end <= index ) {
+					throw new IllegalArgumentException("Invalid placeholder at offset "+index);
+				}
+				final String name = input.substring( index , end );
+				index = end+1;
+				return new Placeholder( name );
+			}
+			final int start = index;
+			while ( ! eof() && ( Character.isDigit( peek() ) || peek() == '.' ) ) {
+				index++;
+			}
+			if ( start == index ) {
+				throw new IllegalArgumentException("Unexpected character '"+c+"' at offset "+index);
+			}
+			try {
+				return new Constant( Double.parseDouble( input.substring( start , index ) ) );
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid number at offset "+start,e);
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+/**
+ * A {@link RewritingContext} that knows where its cursor is located within the current L-system's state.
+ *
+ * <p>All contexts created by {@link LSystem} implement this interface, rules should check for it
+ * (and fall back to something sensible) before using any of its methods.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface PositionalRewritingContext extends RewritingContext
+{
+	/**
+	 * Returns the position of the symbol at the current cursor
+	 * position within the current L-system's state.
+	 * 
+	 * @return
+	 */
+	public long getPosition();
+	
+	/**
+	 * Returns a random number in [0,1[ for the symbol at the current cursor position.
+	 * 
+	 * <p>The result is a pure function of the L-system's seed, the recursion count, 
+	 * the cursor position and the rule, see {@link CounterRandom}.</p>
+	 * 
+	 * @param rule rule that needs the random number
+	 * @return
+	 */
+	public float random(RewritingRule rule);
+	
+	/**
+	 * Returns the symbol at a given position within the current L-system's state.
+	 * 
+	 * @param position
+	 * @return
+	 * @throws UnsupportedOperationException if this context only provides access to the symbol being rewritten
+	 * @see ContextSensitiveRule
+	 */
+	public Token get(long position) throws UnsupportedOperationException;
+	
+	/**
+	 * Returns the bracket index of the current L-system's state.
+	 * 
+	 * <p>Use with {@link #get(long)} to look up the neighbours of the symbol at the current
+	 * cursor position.</p>
+	 * 
+	 * @return index or <code>null</code> if not available (off-heap state, lazy derivation)
+	 */
+	public BracketIndex getBracketIndex();
+}
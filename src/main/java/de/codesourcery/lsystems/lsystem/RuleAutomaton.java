@@ -0,0 +1,265 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.codesourcery.lsystems.lsystem.rules.SequenceRule;
+
+/**
+ * Aho-Corasick automaton over the predecessors of all {@link SequenceRule}s.
+ *
+ * <p>The automaton is compiled into a deterministic transition table, so feeding a symbol
+ * costs one lookup no matter how many or how long the predecessors are. A {@link Matcher}
+ * runs the automaton at most <code>max. predecessor length</code> symbols ahead of the rewriting
+ * cursor and remembers, for every start position in this window, the sequence rule with the
+ * highest precedence whose predecessor starts there.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class RuleAutomaton
+{
+	private static final int[] NO_OUTPUT = new int[0];
+
+	private final SequenceRule[] rules;
+	private final int[] lengths;
+	private final int maxLength;
+
+	// symbol IDs start at 1, 0 is used for symbols not part of any predecessor
+	private final Map<String,Integer> symbolIds = new HashMap<>();
+	private final Set<String> firstSymbols = new HashSet<>();
+
+	// delta[state][symbolId]
+	private final int[][] delta;
+	// outputs[state] = indices of all rules whose predecessor ends in this state
+	private final int[][] outputs;
+
+	/**
+	 * Source of the symbols the automaton is run over.
+	 */
+	public interface Input
+	{
+		public long size();
+
+		public Token get(long index);
+	}
+
+	/**
+	 * Creates an automaton.
+	 *
+	 * @param rules rules in order of precedence
+	 */
+	public RuleAutomaton(List<SequenceRule> rules)
+	{
+		this.rules = rules.toArray( new SequenceRule[ rules.size() ] );
+		this.lengths = new int[ this.rules.length ];
+
+		int max = 0;
+		for ( int i = 0 ; i < this.rules.length ; i++ )
+		{
+			final List<String> predecessor = this.rules[i].getPredecessor();
+			lengths[i] = predecessor.size();
+			max = Math.max( max , lengths[i] );
+			firstSymbols.add( predecessor.get(0) );
+			for ( String value : predecessor )
+			{
+				if ( ! symbolIds.containsKey( value ) ) {
+					symbolIds.put( value , symbolIds.size()+1 );
+				}
+			}
+		}
+		this.maxLength = max;
+
+		// build trie
+		final int alphabetSize = symbolIds.size()+1;
+		final List<int[]> trie = new ArrayList<>();
+		final List<List<Integer>> trieOutputs = new ArrayList<>();
+		trie.add( newState( alphabetSize ) );
+		trieOutputs.add( new ArrayList<Integer>() );
+		for ( int i = 0 ; i < this.rules.length ; i++ )
+		{
+			int state = 0;
+			for ( String value : this.rules[i].getPredecessor() )
+			{
+				final int id = symbolIds.get( value );
+				if ( trie.get( state )[id] == -1 )
+				{
+					trie.get( state )[id] = trie.size();
+					trie.add( newState( alphabetSize ) );
+					trieOutputs.add( new ArrayList<Integer>() );
+				}
+				state = trie.get( state )[id];
+			}
+			trieOutputs.get( state ).add( i );
+		}
+
+		// compute failure links in BFS order and turn trie into a DFA
+		final int stateCount = trie.size();
+		this.delta = new int[ stateCount ][];
+		this.outputs = new int[ stateCount ][];
+		final int[] fail = new int[ stateCount ];
+		final int[] queue = new int[ stateCount ];
+		int head = 0;
+		int tail = 0;
+
+		delta[0] = trie.get(0);
+		for ( int a = 0 ; a < alphabetSize ; a++ )
+		{
+			final int next = delta[0][a];
+			if ( next == -1 ) {
+				delta[0][a] = 0;
+			} else {
+				fail[next] = 0;
+				queue[tail++] = next;
+			}
+		}
+		outputs[0] = toArray( trieOutputs.get(0) , NO_OUTPUT );
+
+		while ( head < tail )
+		{
+			final int state = queue[head++];
+			final int[] row = trie.get( state );
+			for ( int a = 0 ; a < alphabetSize ; a++ )
+			{
+				final int next = row[a];
+				if ( next == -1 ) {
+					row[a] = delta[ fail[state] ][a];
+				} else {
+					fail[next] = delta[ fail[state] ][a];
+					queue[tail++] = next;
+				}
+			}
+			delta[state] = row;
+			outputs[state] = toArray( trieOutputs.get( state ) , outputs[ fail[state] ] );
+		}
+	}
+
+	private static int[] newState(int alphabetSize)
+	{
+		final int[] result = new int[ alphabetSize ];
+		Arrays.fill( result , -1 );
+		return result;
+	}
+
+	private static int[] toArray(List<Integer> own,int[] inherited)
+	{
+		if ( own.isEmpty() ) {
+			return inherited;
+		}
+		final int[] result = new int[ own.size() + inherited.length ];
+		int i = 0;
+		for ( Integer value : own ) {
+			result[i++] = value;
+		}
+		System.arraycopy( inherited , 0 , result , i , inherited.length );
+		return result;
+	}
+
+	/**
+	 * Returns whether a predecessor starts with a given symbol value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public boolean isFirstSymbol(String value) {
+		return firstSymbols.contains( value );
+	}
+
+	/**
+	 * Returns the length of the longest predecessor.
+	 *
+	 * @return
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Creates a matcher that runs this automaton over some input.
+	 *
+	 * @param input
+	 * @return
+	 */
+	public Matcher matcher(Input input) {
+		return new Matcher( input );
+	}
+
+	/**
+	 * Runs the automaton over an input.
+	 *
+	 * <p>Start positions must be queried in ascending order.</p>
+	 */
+	public final class Matcher
+	{
+		private final Input input;
+		private final long size;
+		private long fed;
+		private int state;
+
+		// ring buffer, best[ start % maxLength ] = index of best rule starting at 'start' or -1
+		private final int[] best;
+
+		protected Matcher(Input input)
+		{
+			this.input = input;
+			this.size = input.size();
+			this.best = new int[ Math.max( 1 , maxLength ) ];
+			Arrays.fill( best , -1 );
+		}
+
+		/**
+		 * Returns the sequence rule with the highest precedence whose predecessor
+		 * starts at a given position.
+		 *
+		 * @param position
+		 * @return rule or <code>null</code>
+		 */
+		public SequenceRule getMatch(long position)
+		{
+			// all matches starting at 'position' end before position+maxLength
+			final long end = Math.min( size , position + maxLength );
+			while ( fed < end ) {
+				feed();
+			}
+			final int idx = best[ (int) (position % best.length) ];
+			return idx == -1 ? null : rules[idx];
+		}
+
+		private void feed()
+		{
+			final long position = fed++;
+			// slot for 'position' was last used for position-maxLength which is behind the cursor now
+			best[ (int) (position % best.length) ] = -1;
+
+			final Integer id = symbolIds.get( input.get( position ).value );
+			state = delta[state][ id == null ? 0 : id.intValue() ];
+			for ( int ruleIdx : outputs[state] )
+			{
+				final long start = position - lengths[ruleIdx] + 1;
+				final int slot = (int) (start % best.length);
+				if ( best[slot] == -1 || ruleIdx < best[slot] ) {
+					best[slot] = ruleIdx;
+				}
+			}
+		}
+	}
+}
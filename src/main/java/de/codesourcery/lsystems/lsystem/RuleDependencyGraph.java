@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Tracks which symbols can be influenced by the rule applied to another symbol.
+ *
+ * <p>Symbol <code>a</code> depends on symbol <code>b</code> if <code>b</code> can be reached
+ * from <code>a</code> by repeatedly expanding symbols, meaning that changing the rule for <code>b</code>
+ * changes the derivation of <code>a</code> (for a sufficient number of generations).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CompiledRuleSet
+ */
+public final class RuleDependencyGraph
+{
+	// dependents[b] = symbols whose replacement contains b
+	private final int[][] dependents;
+
+	public RuleDependencyGraph(CompiledRuleSet rules)
+	{
+		final int size = rules.size();
+		final int[] counts = new int[ size ];
+		final BitSet seen = new BitSet( size );
+		for ( int a = 0 ; a < size ; a++ )
+		{
+			seen.clear();
+			for ( int b : rules.getExpansion( a ) )
+			{
+				if ( ! seen.get( b ) ) {
+					seen.set( b );
+					counts[b]++;
+				}
+			}
+		}
+
+		dependents = new int[ size ][];
+		for ( int b = 0 ; b < size ; b++ ) {
+			dependents[b] = new int[ counts[b] ];
+		}
+		Arrays.fill( counts , 0 );
+		for ( int a = 0 ; a < size ; a++ )
+		{
+			seen.clear();
+			for ( int b : rules.getExpansion( a ) )
+			{
+				if ( ! seen.get( b ) ) {
+					seen.set( b );
+					dependents[b][ counts[b]++ ] = a;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns all symbols whose derivation is influenced by the rules of a given set of symbols.
+	 *
+	 * @param changedSymbols
+	 * @return affected symbols, including the changed symbols themselves
+	 */
+	public BitSet getAffectedSymbols(BitSet changedSymbols)
+	{
+		final BitSet result = new BitSet( dependents.length );
+		final int[] queue = new int[ dependents.length ];
+		int head = 0;
+		int tail = 0;
+		for ( int s = changedSymbols.nextSetBit( 0 ) ; s >= 0 ; s = changedSymbols.nextSetBit( s+1 ) )
+		{
+			result.set( s );
+			if ( s < dependents.length ) {
+				queue[tail++] = s;
+			}
+		}
+		while ( head < tail )
+		{
+			for ( int dependent : dependents[ queue[head++] ] )
+			{
+				if ( ! result.get( dependent ) ) {
+					result.set( dependent );
+					queue[tail++] = dependent;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the symbols whose replacement differs between two rule sets compiled
+	 * for the same alphabet.
+	 *
+	 * @param oldRules
+	 * @param newRules
+	 * @return
+	 */
+	public static BitSet getChangedSymbols(CompiledRuleSet oldRules,CompiledRuleSet newRules)
+	{
+		final BitSet result = new BitSet( newRules.size() );
+		for ( int code = 0 ; code < newRules.size() ; code++ )
+		{
+			if ( code >= oldRules.size() || ! Arrays.equals( oldRules.getExpansion( code ) , newRules.getExpansion( code ) ) ) {
+				result.set( code );
+			}
+		}
+		return result;
+	}
+}
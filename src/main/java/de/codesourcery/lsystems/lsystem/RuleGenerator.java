@@ -15,7 +15,12 @@
  */
 package de.codesourcery.lsystems.lsystem;
 
+import java.util.Collections;
+import java.util.List;
+
 import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.rules.ParametricRule;
+import de.codesourcery.lsystems.lsystem.rules.SequenceRule;
 import de.codesourcery.lsystems.lsystem.rules.SimpleRule;
 
 /**
@@ -54,8 +59,59 @@ public abstract class RuleGenerator {
 		return new SimpleRule( expected , ExpressionLexer.parse( replacement ) );
 	}	
 
+	/**
+	 * Creates a rule that replaces a matching symbol or sequence of symbols
+	 * with some replacement sequence.
+	 * 
+	 * <p>Since every plain character is a symbol of its own, an expected string that 
+	 * consists of more than one symbol yields a {@link SequenceRule}, otherwise a {@link SimpleRule}
+	 * is returned.</p>
+	 *  
+	 * @param expectedString
+	 * @param replacement
+	 * @return
+	 * @throws IllegalArgumentException if the expected string is empty
+	 */
 	public static RewritingRule replaceRule(String expectedString , String replacement) 
 	{
+		if ( expectedString == null || expectedString.isEmpty() ) {
+			throw new IllegalArgumentException("Expected string must contain at least one symbol");
+		}
+		final TokenSeq expected = ExpressionLexer.parse( expectedString );
+		if ( expected.toList().size() > 1 ) {
+			return new SequenceRule( expected , ExpressionLexer.parse( replacement ) );
+		}
 		return new SimpleRule( TokenType.CHARACTERS , expectedString , ExpressionLexer.parse( replacement ) );
 	}		
+
+	/**
+	 * Creates a {@link SequenceRule} instance that replaces a matching
+	 * sequence of symbols with some replacement sequence.
+	 *  
+	 * @param expected
+	 * @param replacement
+	 * @return
+	 */
+	public static RewritingRule replaceSequenceRule(String expected , String replacement) 
+	{
+		return new SequenceRule( ExpressionLexer.parse( expected ) , ExpressionLexer.parse( replacement ) );
+	}
+	
+	/**
+	 * Creates a {@link ParametricRule} instance.
+	 *  
+	 * @param predecessor symbol with formal parameters, e.g. <code>F(l,w)</code>
+	 * @param replacement replacement with parameter expressions, e.g. <code>F(${l}*0.5)[+F(${l}*${w})]</code>
+	 * @return
+	 */
+	public static RewritingRule parametricRule(String predecessor , String replacement) 
+	{
+		final List<Token> tokens = ExpressionLexer.parse( predecessor ).toList();
+		if ( tokens.size() != 1 ) {
+			throw new IllegalArgumentException("Predecessor must be a single symbol: "+predecessor);
+		}
+		final Token tok = tokens.get(0);
+		final List<String> formals = tok.getParameters();
+		return new ParametricRule( tok.value , formals != null ? formals : Collections.<String>emptyList() , ExpressionLexer.parse( replacement ) );
+	}
 }
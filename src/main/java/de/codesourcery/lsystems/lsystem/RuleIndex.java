@@ -0,0 +1,297 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.rules.SequenceRule;
+
+/**
+ * Lookup table that maps symbols to the rewriting rule that should be applied to them.
+ *
+ * <p>{@link SymbolMatchingRule}s are indexed by the token type/value they expect, so finding the
+ * matching rule for a symbol is a single table lookup. Any other rules can't be indexed and
+ * are kept in a fallback list that still gets tested using {@link RewritingRule#matches(RewritingContext, ParameterProvider)}.</p>
+ *
+ * <p>{@link SequenceRule}s are compiled into a {@link RuleAutomaton} that has to be run over the 
+ * input, the rule finally applied is picked using {@link #select(RewritingRule, SequenceRule)}.</p>
+ *
+ * <p>Lookups yield the same rule a linear scan over all rules (in the order they were added) would.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class RuleIndex
+{
+	private static final RewritingRule[] NO_RULES = new RewritingRule[0];
+
+	private static final Dispatch NO_MATCH = new Dispatch( NO_RULES , null );
+
+	// rules keyed by expected token type, in insertion order
+	private final Map<TokenType,List<Integer>> byType = new EnumMap<>(TokenType.class);
+	// rules keyed by expected token value, in insertion order
+	private final Map<String,List<Integer>> byValue = new HashMap<>();
+	// indices of rules that could not be indexed
+	private final List<Integer> fallbacks = new ArrayList<>();
+
+	private final RewritingRule[] rules;
+
+	// sequence rules, NULL if there are none
+	private final RuleAutomaton automaton;
+	// index of the first occurrence of each rule
+	private final Map<RewritingRule,Integer> precedence = new IdentityHashMap<>();
+
+	// cached dispatch entries, keyed by token type and value
+	private final Map<TokenType,Map<String,Dispatch>> dispatchCache = new EnumMap<>(TokenType.class);
+	// cached dispatch entries, keyed by symbol code
+	private Dispatch[] dispatchByCode = new Dispatch[0];
+
+	/**
+	 * Candidate rules for a specific symbol.
+	 */
+	protected static final class Dispatch
+	{
+		// rules that need to be tested before 'definite'
+		public final RewritingRule[] candidates;
+		// rule that is known to match, may be NULL
+		public final RewritingRule definite;
+
+		public Dispatch(RewritingRule[] candidates, RewritingRule definite) {
+			this.candidates = candidates;
+			this.definite = definite;
+		}
+
+		public RewritingRule findMatch(RewritingContext context,ParameterProvider provider)
+		{
+			for ( RewritingRule r : candidates )
+			{
+				if ( r.matches( context , provider ) ) {
+					return r;
+				}
+			}
+			return definite;
+		}
+	}
+
+	public RuleIndex(List<RewritingRule> rules)
+	{
+		this.rules = rules.toArray( new RewritingRule[ rules.size() ] );
+		final List<SequenceRule> sequenceRules = new ArrayList<>();
+		for ( int i = 0 ; i < this.rules.length ; i++ )
+		{
+			final RewritingRule r = this.rules[i];
+			if ( precedence.containsKey( r ) ) {
+				continue; // shadowed by earlier occurrence
+			}
+			precedence.put( r , i );
+			if ( r instanceof SequenceRule )
+			{
+				sequenceRules.add( (SequenceRule) r );
+				continue;
+			}
+			if ( r instanceof SymbolMatchingRule )
+			{
+				final SymbolMatchingRule smr = (SymbolMatchingRule) r;
+				if ( smr.getExpectedValue() != null ) {
+					add( byValue , smr.getExpectedValue() , i );
+					continue;
+				}
+				if ( smr.getExpectedType() != null ) {
+					add( byType , smr.getExpectedType() , i );
+					continue;
+				}
+			}
+			fallbacks.add( i );
+		}
+		this.automaton = sequenceRules.isEmpty() ? null : new RuleAutomaton( sequenceRules );
+	}
+
+	/**
+	 * Returns the automaton matching all {@link SequenceRule}s.
+	 *
+	 * @return automaton or <code>null</code> if there are no sequence rules
+	 */
+	public RuleAutomaton getAutomaton() {
+		return automaton;
+	}
+
+	/**
+	 * Returns the precedence of a rule.
+	 *
+	 * @param rule
+	 * @return index of the rule's first occurrence or -1 if the rule is not part of this index
+	 */
+	public int getPrecedence(RewritingRule rule)
+	{
+		final Integer result = precedence.get( rule );
+		return result != null ? result.intValue() : -1;
+	}
+
+	/**
+	 * Picks the rule with the higher precedence.
+	 *
+	 * @param match rule returned by <code>findMatch()</code>, may be <code>null</code>
+	 * @param sequenceMatch rule returned by the {@link RuleAutomaton}, may be <code>null</code>
+	 * @return
+	 */
+	public RewritingRule select(RewritingRule match,SequenceRule sequenceMatch)
+	{
+		if ( sequenceMatch == null ) {
+			return match;
+		}
+		if ( match == null ) {
+			return sequenceMatch;
+		}
+		return precedence.get( sequenceMatch ) < precedence.get( match ) ? sequenceMatch : match;
+	}
+
+	private static <T> void add(Map<T,List<Integer>> map,T key,int ruleIndex)
+	{
+		List<Integer> existing = map.get( key );
+		if ( existing == null ) {
+			existing = new ArrayList<>();
+			map.put( key , existing );
+		}
+		existing.add( ruleIndex );
+	}
+
+	/**
+	 * Returns the first rule that matches the symbol at the current cursor position.
+	 *
+	 * <p>{@link SequenceRule}s are not considered.</p>
+	 *
+	 * @param context
+	 * @param provider
+	 * @return matching rule or <code>null</code>
+	 */
+	public RewritingRule findMatch(RewritingContext context,ParameterProvider provider)
+	{
+		return getDispatch( context.peek() ).findMatch( context , provider );
+	}
+
+	/**
+	 * Returns the first rule that matches the symbol at the current cursor position.
+	 *
+	 * <p>Faster variant for contexts that operate on symbol codes.</p>
+	 *
+	 * @param code symbol code of the token at the current cursor position
+	 * @param alphabet alphabet the symbol code belongs to
+	 * @param context
+	 * @param provider
+	 * @return matching rule or <code>null</code>
+	 */
+	public RewritingRule findMatch(int code,TokenAlphabet alphabet,RewritingContext context,ParameterProvider provider)
+	{
+		if ( code >= dispatchByCode.length )
+		{
+			final Dispatch[] tmp = new Dispatch[ Math.max( code+1 , alphabet.size() ) ];
+			System.arraycopy( dispatchByCode , 0 , tmp , 0 , dispatchByCode.length );
+			dispatchByCode = tmp;
+		}
+		Dispatch result = dispatchByCode[code];
+		if ( result == null ) {
+			result = getDispatch( alphabet.get( code ) );
+			dispatchByCode[code] = result;
+		}
+		return result.findMatch( context , provider );
+	}
+
+	/**
+	 * Returns whether the matching rule for a token can be determined
+	 * without looking at anything but the token itself.
+	 *
+	 * @param token
+	 * @return
+	 */
+	public boolean isIndexed(Token token) {
+		return getDispatch( token ).candidates.length == 0 && ( automaton == null || ! automaton.isFirstSymbol( token.value ) );
+	}
+
+	/**
+	 * Returns the rule that will be applied to a token, provided
+	 * that it can be determined without looking at anything but the token itself.
+	 *
+	 * @param token
+	 * @return matching rule or <code>null</code> if no rule matches
+	 * @throws IllegalStateException if the token can only be matched by testing a rule that is not a {@link SymbolMatchingRule}
+	 * @see #isIndexed(Token)
+	 */
+	public RewritingRule getIndexedRule(Token token)
+	{
+		final Dispatch dispatch = getDispatch( token );
+		if ( ! isIndexed( token ) ) {
+			throw new IllegalStateException("Token "+token+" can only be matched by non-indexed rules");
+		}
+		return dispatch.definite;
+	}
+
+	/**
+	 * Returns all rules in order of precedence.
+	 *
+	 * @return
+	 */
+	public RewritingRule[] getRules() {
+		return rules.clone();
+	}
+
+	private Dispatch getDispatch(Token token)
+	{
+		Map<String,Dispatch> cache = dispatchCache.get( token.type );
+		if ( cache == null ) {
+			cache = new HashMap<>();
+			dispatchCache.put( token.type , cache );
+		}
+		Dispatch result = cache.get( token.value );
+		if ( result == null ) {
+			result = createDispatch( token );
+			cache.put( token.value , result );
+		}
+		return result;
+	}
+
+	private Dispatch createDispatch(Token token)
+	{
+		int firstDefinite = Integer.MAX_VALUE;
+		final List<Integer> valueMatches = token.value != null ? byValue.get( token.value ) : null;
+		if ( valueMatches != null ) {
+			firstDefinite = valueMatches.get(0);
+		}
+		final List<Integer> typeMatches = byType.get( token.type );
+		if ( typeMatches != null ) {
+			firstDefinite = Math.min( firstDefinite , typeMatches.get(0) );
+		}
+
+		final List<RewritingRule> candidates = new ArrayList<>();
+		for ( Integer idx : fallbacks )
+		{
+			if ( idx >= firstDefinite ) {
+				break;
+			}
+			candidates.add( rules[idx] );
+		}
+
+		final RewritingRule definite = firstDefinite != Integer.MAX_VALUE ? rules[firstDefinite] : null;
+		if ( candidates.isEmpty() && definite == null ) {
+			return NO_MATCH;
+		}
+		return new Dispatch( candidates.isEmpty() ? NO_RULES : candidates.toArray( new RewritingRule[ candidates.size() ] ) , definite );
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable array of symbol codes.
+ *
+ * <p>Used to store an L-system's state as primitive <code>int</code>s instead
+ * of {@link Token} references, see {@link TokenAlphabet}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SymbolBuffer
+{
+	private int[] data;
+	private int size;
+
+	public SymbolBuffer() {
+		this(16);
+	}
+
+	public SymbolBuffer(int initialCapacity) {
+		this.data = new int[ Math.max( initialCapacity , 1 ) ];
+	}
+
+	public SymbolBuffer(int[] symbols)
+	{
+		this.data = symbols.length == 0 ? new int[1] : symbols;
+		this.size = symbols.length;
+	}
+
+	public void add(int symbol)
+	{
+		if ( size == data.length ) {
+			grow( size + 1 );
+		}
+		data[size++] = symbol;
+	}
+
+	public void addAll(int[] symbols)
+	{
+		final int len = symbols.length;
+		if ( size + len > data.length ) {
+			grow( size + len );
+		}
+		System.arraycopy( symbols , 0 , data , size , len );
+		size += len;
+	}
+
+	public int get(int index)
+	{
+		if ( index >= size ) {
+			throw new IndexOutOfBoundsException("Index "+index+" >= size "+size);
+		}
+		return data[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Makes sure this buffer can hold at least <code>minCapacity</code> symbols
+	 * without having to grow.
+	 *
+	 * @param minCapacity
+	 */
+	public void ensureCapacity(int minCapacity)
+	{
+		if ( minCapacity > data.length )
+		{
+			final int[] tmp = new int[ minCapacity ];
+			System.arraycopy( data , 0 , tmp , 0 , size );
+			data = tmp;
+		}
+	}
+
+	private void grow(int minCapacity)
+	{
+		int newCapacity = data.length + ( data.length >> 1 ) + 1;
+		if ( newCapacity < 0 ) { // overflow
+			newCapacity = Integer.MAX_VALUE - 8;
+		}
+		if ( newCapacity < minCapacity ) {
+			newCapacity = minCapacity;
+		}
+		ensureCapacity( newCapacity );
+	}
+
+	/**
+	 * Returns the backing array of this buffer.
+	 *
+	 * <p>Only the first {@link #size()} elements are valid. The returned array
+	 * is <b>not</b> a copy and may be replaced when this buffer needs to grow.</p>
+	 * @return
+	 */
+	public int[] array() {
+		return data;
+	}
+
+	public int[] toArray()
+	{
+		final int[] result = new int[ size ];
+		System.arraycopy( data , 0 , result , 0 , size );
+		return result;
+	}
+
+	/**
+	 * Returns a token stream that decodes this buffer's symbols.
+	 *
+	 * @param alphabet alphabet used to encode this buffer
+	 * @return
+	 */
+	public TokenStream toTokenStream(TokenAlphabet alphabet) {
+		return new SymbolStream( alphabet );
+	}
+
+	protected final class SymbolStream implements TokenStream
+	{
+		private final TokenAlphabet alphabet;
+		private int index;
+
+		public SymbolStream(TokenAlphabet alphabet) {
+			this.alphabet = alphabet;
+		}
+
+		@Override
+		public boolean eof() {
+			return index >= size;
+		}
+
+		@Override
+		public Token next()
+		{
+			if ( eof() ) {
+				throw new IllegalStateException("Already at EOF");
+			}
+			return alphabet.get( data[index++] );
+		}
+
+		@Override
+		public Token peek()
+		{
+			if ( eof() ) {
+				throw new IllegalStateException("Already at EOF");
+			}
+			return alphabet.get( data[index] );
+		}
+
+		@Override
+		public Iterator<Token> iterator()
+		{
+			return new Iterator<Token>() {
+
+				private int current = 0;
+
+				@Override
+				public boolean hasNext() {
+					return current < size;
+				}
+
+				@Override
+				public Token next()
+				{
+					if ( ! hasNext() ) {
+						throw new NoSuchElementException();
+					}
+					return alphabet.get( data[current++] );
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("remove()");
+				}
+			};
+		}
+	}
+}
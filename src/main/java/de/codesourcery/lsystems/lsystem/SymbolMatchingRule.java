@@ -0,0 +1,50 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+
+/**
+ * A {@link RewritingRule} whose {@link #matches(RewritingContext, ParameterProvider)} result
+ * depends on nothing but the type or value of the symbol at the cursor position.
+ *
+ * <p>Rules implementing this interface can be looked up by symbol instead of
+ * having to be tested one-by-one, see {@link RuleIndex}. Implementations <b>must</b>
+ * match a symbol if and only if</p>
+ * <ul>
+ *   <li>{@link #getExpectedValue()} is not <code>null</code> and equal to the symbol's value, or</li>
+ *   <li>{@link #getExpectedValue()} is <code>null</code> and {@link #getExpectedType()} is the symbol's type</li>
+ * </ul>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface SymbolMatchingRule extends RewritingRule
+{
+	/**
+	 * Returns the token type this rule matches.
+	 *
+	 * @return type or <code>null</code> if this rule needs to be tested using {@link #matches(RewritingContext, ParameterProvider)} 
+	 * (only allowed if {@link #getExpectedValue()} returns <code>null</code> as well)
+	 */
+	public TokenType getExpectedType();
+
+	/**
+	 * Returns the token value this rule matches.
+	 *
+	 * @return value or <code>null</code> if this rule matches by token type only
+	 */
+	public String getExpectedValue();
+}
@@ -12,28 +12,91 @@ public final class Token
 	public final String value;
 	public final List<String> params;
 	
+	// compiled parameters, elements are NULL for parameters that need string substitution
+	private final ParameterExpression[] expressions;
+	// numeric parameters, NULL unless this is a numeric token
+	private final float[] values;
+	
+	private static final ParameterExpression[] NO_EXPRESSIONS = new ParameterExpression[0];
+	
 	public Token(TokenType type,String value) {
 		this.type = type;
 		this.params = null;
 		this.value = value;
+		this.expressions = NO_EXPRESSIONS;
+		this.values = null;
+	}
+	
+	/**
+	 * Creates a numeric token.
+	 * 
+	 * <p>Parameters of numeric tokens are plain numbers that never need to be evaluated.</p>
+	 * 
+	 * @param type
+	 * @param value
+	 * @param values parameters, array is not copied and must not be modified afterwards
+	 */
+	public Token(TokenType type,String value , float[] values) {
+		this.type = type;
+		this.params = null;
+		this.value = value;
+		this.expressions = NO_EXPRESSIONS;
+		this.values = values;
 	}
 	
 	public Token(TokenType type,String value , List<String> params) {
 		this.type = type;
 		this.params = params;
 		this.value = value;
+		this.expressions = compile( params );
+		this.values = null;
+	}
+	
+	private static ParameterExpression[] compile(List<String> params) 
+	{
+		if ( params == null || params.isEmpty() ) {
+			return NO_EXPRESSIONS;
+		}
+		final ParameterExpression[] result = new ParameterExpression[ params.size() ];
+		for ( int i = 0 ; i < result.length ; i++ ) {
+			result[i] = ParameterExpression.compile( params.get(i) );
+		}
+		return result;
 	}
 	
 	@Override
 	public String toString() {
 		return getAsString(null, false );
 	}
+	
 	public boolean hasParameters() {
-		return params != null && params.size() > 0;
+		return getParameterCount() > 0;
 	}
 	
 	public int getParameterCount() {
-			return params != null ? params.size() : 0;
+		if ( values != null ) {
+			return values.length;
+		}
+		return params != null ? params.size() : 0;
+	}
+	
+	/**
+	 * Returns whether this token carries plain numeric parameters.
+	 * 
+	 * @return
+	 * @see #getNumericParameters()
+	 */
+	public boolean isNumeric() {
+		return values != null;
+	}
+	
+	/**
+	 * Returns the parameters of a numeric token.
+	 * 
+	 * @return parameters (must not be modified) or <code>null</code> if this is not a numeric token
+	 */
+	public float[] getNumericParameters() {
+		return values;
 	}
 	
 	public List<String> getParameters() {
@@ -42,18 +105,50 @@ public final class Token
 	
 	public int intParameter(int index,ParameterProvider provider) 
 	{
+		if ( values != null ) {
+			return (int) values[index];
+		}
+		final ParameterExpression expr = expressions[index];
+		if ( expr != null ) 
+		{
+			final double result = expr.evaluate( this , provider );
+			if ( result != (int) result ) {
+				throw new NumberFormatException("Parameter "+params.get(index)+" of token "+this+" is not an integer: "+result);
+			}
+			return (int) result;
+		}
 		return Integer.parseInt( substituteParameters( params.get(index) , provider ) );
 	}	
 	
-	public float floatParameter(int index,ParameterProvider provider) {
-		return Float.parseFloat( substituteParameters( params.get(index) , provider ) );		
+	public float floatParameter(int index,ParameterProvider provider) 
+	{
+		if ( values != null ) {
+			return values[index];
+		}
+		return (float) doubleParameter( index , provider );
+	}	
+	
+	public double doubleParameter(int index,ParameterProvider provider) 
+	{
+		if ( values != null ) {
+			return values[index];
+		}
+		final ParameterExpression expr = expressions[index];
+		if ( expr != null ) {
+			return expr.evaluate( this , provider );
+		}
+		return Double.parseDouble( substituteParameters( params.get(index) , provider ) );		
 	}	
 	
-	public String parameter(int index,ParameterProvider provider) {
+	public String parameter(int index,ParameterProvider provider) 
+	{
+		if ( values != null ) {
+			return Float.toString( values[index] );
+		}
 		return substituteParameters( params.get(index) , provider );		
 	}	
 	
-	private final Pattern PARAMETER_EXPR = Pattern.compile( "\\$\\{(.*?)\\}");
+	private static final Pattern PARAMETER_EXPR = Pattern.compile( "\\$\\{(.*?)\\}");
 	
 	private String substituteParameters(String expression,ParameterProvider provider) 
 	{
@@ -79,7 +174,16 @@ public final class Token
 		}
 		final StringBuilder paramString = new StringBuilder();
 		
-		if ( resolvePlaceholders ) 
+		if ( values != null ) 
+		{
+			for ( int i = 0 ; i < values.length ; i++ ) {
+				paramString.append( values[i] );
+				if ( i+1 < values.length ) {
+					paramString.append(",");
+				}
+			}
+		}
+		else if ( resolvePlaceholders ) 
 		{
 			for (Iterator<String> it = params.iterator(); it.hasNext();) {
 				paramString.append( substituteParameters( it.next() , provider ) );
@@ -111,7 +215,7 @@ public final class Token
 		FORWARD_NODRAW(0,1),
 		ROTATE_LEFT(0,1),
 		ROTATE_RIGHT(0,1),
-		CHARACTERS;
+		CHARACTERS(0,Integer.MAX_VALUE);
 		
 		private final int maxParameterCount;
 		private final int minParameterCount;		
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Interns {@link Token}s into dense integer symbol codes.
+ *
+ * <p>Every distinct token is stored exactly once and assigned a code in the range <code>[0,size())</code>, codes
+ * are handed out in order of first appearance and never change. Tokens are distinct if they differ
+ * in type, value or parameters, {@link Token} itself uses identity equality.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see SymbolBuffer
+ */
+public final class TokenAlphabet
+{
+	private final Map<Key,Integer> codes = new HashMap<>();
+	private Token[] tokens = new Token[16];
+	private int size;
+
+	/**
+	 * Compares tokens by type, value and parameters.
+	 */
+	protected static final class Key
+	{
+		private final Token token;
+		private final int hash;
+
+		public Key(Token token)
+		{
+			this.token = token;
+			int result = 31 + token.type.hashCode();
+			result = 31 * result + ( token.value == null ? 0 : token.value.hashCode() );
+			if ( token.isNumeric() ) {
+				result = 31 * result + Arrays.hashCode( token.getNumericParameters() );
+			} else {
+				result = 31 * result + ( token.hasParameters() ? token.params.hashCode() : 0 );
+			}
+			this.hash = result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if ( ! (obj instanceof Key) ) {
+				return false;
+			}
+			final Token other = ((Key) obj).token;
+			if ( token == other ) {
+				return true;
+			}
+			if ( token.type != other.type ) {
+				return false;
+			}
+			if ( token.value == null ? other.value != null : ! token.value.equals( other.value ) ) {
+				return false;
+			}
+			if ( token.isNumeric() || other.isNumeric() ) {
+				return Arrays.equals( token.getNumericParameters() , other.getNumericParameters() );
+			}
+			if ( token.hasParameters() != other.hasParameters() ) {
+				return false;
+			}
+			return ! token.hasParameters() || token.params.equals( other.params );
+		}
+	}
+
+	/**
+	 * Returns the code for a token, adding it to this alphabet
+	 * if it has not been seen before.
+	 *
+	 * @param token
+	 * @return
+	 */
+	public int intern(Token token)
+	{
+		if ( token == null ) {
+			throw new IllegalArgumentException("token must not be NULL");
+		}
+		final Key key = new Key( token );
+		final Integer existing = codes.get( key );
+		if ( existing != null ) {
+			return existing.intValue();
+		}
+		if ( size == tokens.length )
+		{
+			final Token[] tmp = new Token[ tokens.length * 2 ];
+			System.arraycopy( tokens , 0 , tmp , 0 , size );
+			tokens = tmp;
+		}
+		final int code = size++;
+		tokens[code] = token;
+		codes.put( key , code );
+		return code;
+	}
+
+	/**
+	 * Interns a list of tokens.
+	 *
+	 * @param list
+	 * @return symbol codes, in the same order as the input tokens
+	 */
+	public int[] intern(List<Token> list)
+	{
+		final int[] result = new int[ list.size() ];
+		int i = 0;
+		for ( Token tok : list ) {
+			result[i++] = intern( tok );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the code for a token without adding it.
+	 *
+	 * @param token
+	 * @return code or -1 if this token is not part of this alphabet
+	 */
+	public int getCode(Token token)
+	{
+		final Integer existing = token == null ? null : codes.get( new Key( token ) );
+		return existing == null ? -1 : existing.intValue();
+	}
+
+	/**
+	 * Returns the token for a given code.
+	 *
+	 * @param code
+	 * @return
+	 */
+	public Token get(int code)
+	{
+		if ( code < 0 || code >= size ) {
+			throw new IndexOutOfBoundsException("Invalid symbol code "+code+", alphabet has "+size+" symbols");
+		}
+		return tokens[code];
+	}
+
+	/**
+	 * Returns a copy of this alphabet.
+	 * 
+	 * <p>All tokens keep their codes, so symbols encoded with this alphabet can be decoded
+	 * using the copy and vice versa.</p>
+	 * 
+	 * @return
+	 */
+	public TokenAlphabet copy() 
+	{
+		final TokenAlphabet result = new TokenAlphabet();
+		result.codes.putAll( codes );
+		result.tokens = Arrays.copyOf( tokens , tokens.length );
+		result.size = size;
+		return result;
+	}
+	
+	/**
+	 * Returns the number of distinct tokens in this alphabet.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a read-only list view that decodes a symbol buffer on the fly.
+	 *
+	 * <p>The view is backed by the buffer, changes to the buffer are reflected by the view.</p>
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	public List<Token> asList(SymbolBuffer buffer) {
+		return new DecodingList( buffer );
+	}
+
+	protected final class DecodingList extends AbstractList<Token> implements RandomAccess
+	{
+		private final SymbolBuffer buffer;
+
+		public DecodingList(SymbolBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public Token get(int index) {
+			return tokens[ buffer.get( index ) ];
+		}
+
+		@Override
+		public int size() {
+			return buffer.size();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder result = new StringBuilder("{");
+		for ( int i = 0 ; i < size ; i++ )
+		{
+			result.append( i ).append("=").append( tokens[i] );
+			if ( (i+1) < size ) {
+				result.append(",");
+			}
+		}
+		return result.append("}").toString();
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.codesourcery.lsystems.lsystem.ParameterExpression;
+import de.codesourcery.lsystems.lsystem.ParameterProvider;
+import de.codesourcery.lsystems.lsystem.RewritingContext;
+import de.codesourcery.lsystems.lsystem.SymbolMatchingRule;
+import de.codesourcery.lsystems.lsystem.Token;
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.TokenSeq;
+
+/**
+ * A rule that computes the parameters of its successor symbols from the parameters
+ * of the predecessor symbol.
+ *
+ * <p>The predecessor is a symbol value plus a list of formal parameter names, e.g. <code>F(l)</code>. Successor
+ * parameters are expressions (see {@link ParameterExpression}) that may refer to formal parameters using
+ * the <code>${name}</code> syntax, e.g. <code>F(${l}*0.5)[+F(${l}*0.7)]</code>. References to formal parameters are
+ * bound to argument slots when the rule is created, any other placeholder is resolved through the
+ * {@link ParameterProvider} when the rule is applied.</p>
+ *
+ * <p>Successor symbols with parameters are written as numeric tokens (see {@link Token#isNumeric()}), so
+ * parameters are carried through all further generations as plain <code>float</code> values.</p>
+ *
+ * <p>The rule matches by symbol value only, applying it to a symbol that has fewer parameters
+ * than the rule has formal parameters fails with a {@link RuntimeException}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ParametricRule implements SymbolMatchingRule {
+
+	private final String name;
+	private final String expectedValue;
+	private final List<String> formals;
+	private final TokenSeq replacement;
+
+	// successor templates, expressions[i] is NULL if replacement symbol #i has no parameters
+	private final Token[] successors;
+	private final ParameterExpression[][] expressions;
+
+	public ParametricRule(String expectedValue,List<String> formals,TokenSeq replacement)
+	{
+		this(null,expectedValue,formals,replacement);
+	}
+
+	public ParametricRule(String name,String expectedValue,List<String> formals,TokenSeq replacement)
+	{
+		if ( expectedValue == null ) {
+			throw new IllegalArgumentException("expected value must not be NULL");
+		}
+		if ( replacement == null ) {
+			throw new IllegalArgumentException("replacement must not be NULL");
+		}
+		this.name = name;
+		this.expectedValue = expectedValue;
+		this.formals = Collections.unmodifiableList( new ArrayList<>( formals ) );
+		this.replacement = replacement;
+
+		final List<Token> tokens = replacement.toList();
+		this.successors = tokens.toArray( new Token[ tokens.size() ] );
+		this.expressions = new ParameterExpression[ successors.length ][];
+		for ( int i = 0 ; i < successors.length ; i++ )
+		{
+			final Token tok = successors[i];
+			if ( ! tok.hasParameters() || tok.isNumeric() ) {
+				continue;
+			}
+			final ParameterExpression[] exprs = new ParameterExpression[ tok.getParameterCount() ];
+			for ( int j = 0 ; j < exprs.length ; j++ )
+			{
+				final String param = tok.getParameters().get(j);
+				final ParameterExpression expr = ParameterExpression.compile( param );
+				if ( expr == null ) {
+					throw new IllegalArgumentException("Invalid parameter expression '"+param+"' in replacement "+tok);
+				}
+				exprs[j] = expr.bind( this.formals );
+			}
+			expressions[i] = exprs;
+		}
+	}
+
+	/**
+	 * Returns the names of the formal parameters.
+	 *
+	 * @return
+	 */
+	public List<String> getFormals() {
+		return formals;
+	}
+
+	public TokenSeq getReplacement() {
+		return replacement;
+	}
+
+	@Override
+	public boolean matches(RewritingContext context,ParameterProvider provider)
+	{
+		return expectedValue.equals( context.peek().value );
+	}
+
+	@Override
+	public void rewrite(RewritingContext context,ParameterProvider provider)
+	{
+		final Token predecessor = context.next();
+		final int formalCount = formals.size();
+		if ( predecessor.getParameterCount() < formalCount ) {
+			throw new RuntimeException("Rule "+this+" needs "+formalCount+" parameters but symbol "+predecessor+" has "+predecessor.getParameterCount());
+		}
+
+		final float[] arguments;
+		if ( predecessor.isNumeric() ) {
+			arguments = predecessor.getNumericParameters();
+		}
+		else
+		{
+			arguments = new float[ formalCount ];
+			for ( int i = 0 ; i < formalCount ; i++ ) {
+				arguments[i] = predecessor.floatParameter( i , provider );
+			}
+		}
+
+		for ( int i = 0 ; i < successors.length ; i++ )
+		{
+			final ParameterExpression[] exprs = expressions[i];
+			if ( exprs == null ) {
+				context.write( successors[i] );
+				continue;
+			}
+			final float[] values = new float[ exprs.length ];
+			for ( int j = 0 ; j < exprs.length ; j++ ) {
+				values[j] = (float) exprs[j].evaluate( arguments , predecessor , provider );
+			}
+			context.write( new Token( successors[i].type , successors[i].value , values ) );
+		}
+	}
+
+	@Override
+	public TokenType getExpectedType() {
+		return null;
+	}
+
+	@Override
+	public String getExpectedValue() {
+		return expectedValue;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder result = new StringBuilder( expectedValue ).append("(");
+		for ( int i = 0 ; i < formals.size() ; i++ ) {
+			result.append( i > 0 ? "," : "" ).append( formals.get(i) );
+		}
+		return result.append(") -> ").append( replacement.getAsString( null , false ) ).toString();
+	}
+}
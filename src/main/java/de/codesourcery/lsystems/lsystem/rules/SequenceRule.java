@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.lsystem.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.codesourcery.lsystems.lsystem.ParameterProvider;
+import de.codesourcery.lsystems.lsystem.PositionalRewritingContext;
+import de.codesourcery.lsystems.lsystem.RewritingContext;
+import de.codesourcery.lsystems.lsystem.RewritingRule;
+import de.codesourcery.lsystems.lsystem.RuleAutomaton;
+import de.codesourcery.lsystems.lsystem.Token;
+import de.codesourcery.lsystems.lsystem.TokenSeq;
+
+/**
+ * A rule that replaces a sequence of symbols.
+ *
+ * <p>Symbols are compared by value. The rewriting engine matches all sequence rules at once using
+ * a {@link RuleAutomaton}, {@link #matches(RewritingContext, ParameterProvider)} checks a single rule by 
+ * looking ahead of the cursor. Lookahead requires a {@link PositionalRewritingContext} that is also a {@link RuleAutomaton.Input}, 
+ * otherwise only single-symbol predecessors can match.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SequenceRule implements RewritingRule {
+
+	private final String name;
+	private final List<String> predecessor;
+	private final TokenSeq replacement;
+
+	public SequenceRule(TokenSeq predecessor,TokenSeq replacement)
+	{
+		this(null,predecessor,replacement);
+	}
+
+	public SequenceRule(String name,TokenSeq predecessor,TokenSeq replacement)
+	{
+		if ( predecessor == null || predecessor.isEmpty() ) {
+			throw new IllegalArgumentException("predecessor must not be NULL or empty");
+		}
+		if ( replacement == null ) {
+			throw new IllegalArgumentException("replacement must not be NULL");
+		}
+		this.name = name;
+		final List<String> values = new ArrayList<>();
+		for ( Token tok : predecessor.toList() ) {
+			values.add( tok.value );
+		}
+		this.predecessor = Collections.unmodifiableList( values );
+		this.replacement = replacement;
+	}
+
+	/**
+	 * Returns the values of the symbols this rule matches.
+	 *
+	 * @return
+	 */
+	public List<String> getPredecessor() {
+		return predecessor;
+	}
+
+	public TokenSeq getReplacement() {
+		return replacement;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean matches(RewritingContext context, ParameterProvider provider)
+	{
+		if ( ! predecessor.get(0).equals( context.peek().value ) ) {
+			return false;
+		}
+		final int len = predecessor.size();
+		if ( len == 1 ) {
+			return true;
+		}
+		if ( ! ( context instanceof PositionalRewritingContext && context instanceof RuleAutomaton.Input ) ) {
+			return false;
+		}
+		final PositionalRewritingContext ctx = (PositionalRewritingContext) context;
+		final long position = ctx.getPosition();
+		if ( position + len > ((RuleAutomaton.Input) context).size() ) {
+			return false;
+		}
+		for ( int i = 1 ; i < len ; i++ ) 
+		{
+			if ( ! predecessor.get(i).equals( ctx.get( position + i ).value ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void rewrite(RewritingContext context, ParameterProvider provider)
+	{
+		for ( int i = predecessor.size() ; i > 0 ; i-- ) {
+			context.next();
+		}
+		context.write( replacement );
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder result = new StringBuilder();
+		for ( String s : predecessor ) {
+			result.append( s );
+		}
+		return result+" -> "+replacement.getAsString( null , false );
+	}
+}
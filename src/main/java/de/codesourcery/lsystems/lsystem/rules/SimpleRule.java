@@ -17,11 +17,11 @@ package de.codesourcery.lsystems.lsystem.rules;
 
 import de.codesourcery.lsystems.lsystem.ParameterProvider;
 import de.codesourcery.lsystems.lsystem.RewritingContext;
-import de.codesourcery.lsystems.lsystem.RewritingRule;
+import de.codesourcery.lsystems.lsystem.SymbolMatchingRule;
 import de.codesourcery.lsystems.lsystem.Token.TokenType;
 import de.codesourcery.lsystems.lsystem.TokenSeq;
 
-public final class SimpleRule implements RewritingRule {
+public final class SimpleRule implements SymbolMatchingRule {
 
 	private final TokenType expected;
 	private final TokenSeq replacement;
@@ -71,9 +71,28 @@ public final class SimpleRule implements RewritingRule {
 		context.write( replacement );
 	}
 	
+	@Override
+	public TokenType getExpectedType() {
+		return expected;
+	}
+	
+	@Override
+	public String getExpectedValue() {
+		return expectedValue;
+	}
+	
+	/**
+	 * Returns the sequence a matching symbol gets replaced with.
+	 * 
+	 * @return
+	 */
+	public TokenSeq getReplacement() {
+		return replacement;
+	}
+	
 	@Override
 	public String toString() {
-		return expected+" -> "+replacement;
+		return ( expectedValue != null ? expectedValue : expected )+" -> "+replacement.getAsString( null , false );
 	}
 
 	@Override
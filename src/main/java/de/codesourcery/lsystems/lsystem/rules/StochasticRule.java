@@ -15,42 +15,66 @@
  */
 package de.codesourcery.lsystems.lsystem.rules;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 import de.codesourcery.lsystems.lsystem.ParameterProvider;
+import de.codesourcery.lsystems.lsystem.PositionalRewritingContext;
 import de.codesourcery.lsystems.lsystem.RewritingContext;
 import de.codesourcery.lsystems.lsystem.RewritingRule;
+import de.codesourcery.lsystems.lsystem.SymbolMatchingRule;
 import de.codesourcery.lsystems.lsystem.Token.TokenType;
 
-public abstract class StochasticRule implements RewritingRule {
+/**
+ * A rule that randomly picks one of several alternative rules each time it is applied.
+ * 
+ * <p>Probabilities are compiled into an alias table (Vose's method), so picking an alternative
+ * takes one random number and one table lookup no matter how many alternatives there are.</p>
+ * 
+ * <p>Random numbers are obtained from {@link PositionalRewritingContext#random(RewritingRule)} and thus 
+ * only depend on the system's seed and the rewritten symbol's location, not on the order in which symbols
+ * are rewritten.</p>
+ * 
+ * <p>Subclasses written against the former abstract version of this class that override {@link #getRandomNumber()}
+ * keep working, as do subclasses overriding {@link #matches(RewritingContext, ParameterProvider)} (such rules are then
+ * tested one-by-one instead of being looked up by token type).</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class StochasticRule implements SymbolMatchingRule {
 
 	private final TokenType expected;
-	private final List<Interval> rules=new ArrayList<>();
 	private final String name;
 	
-	protected static final class Interval 
+	private RewritingRule[] rules;
+	private float[] probabilities;
+	// alias table: column i picks rules[i] with probability threshold[i] and rules[ alias[i] ] otherwise
+	private float[] threshold;
+	private int[] alias;
+	
+	/**
+	 * Which methods a class overrides, determined once per class.
+	 */
+	private static final class Overrides 
 	{
-		private final float start;
-		private final float end;
-		public final RewritingRule rule;
+		public final boolean legacyRandom;
+		public final boolean customMatches;
 		
-		public Interval(float start, float end,RewritingRule rule) 
+		public Overrides(Class<?> clazz) 
 		{
-			this.rule = rule;
-			this.start = start;
-			this.end = end;
-		}
-		
-		public boolean contains(float v) {
-			return start <= v && v < end;
+			this.legacyRandom = overrides( clazz , "getRandomNumber" );
+			this.customMatches = overrides( clazz , "matches" , RewritingContext.class , ParameterProvider.class );
 		}
-		
+	}
+	
+	private static final ClassValue<Overrides> OVERRIDES = new ClassValue<Overrides>() 
+	{
 		@Override
-		public String toString() {
-			return "["+start+","+end+"[ => "+rule;
+		protected Overrides computeValue(Class<?> type) {
+			return new Overrides( type );
 		}
-	}
+	};
+	
+	private final Overrides overrides = OVERRIDES.get( getClass() );
 	
 	public StochasticRule(TokenType expected,RewritingRule[] rules) 
 	{
@@ -61,6 +85,9 @@ public abstract class StochasticRule implements RewritingRule {
 	{
 		this.name = name;
 		this.expected =expected;
+		if ( rules == null ) {
+			throw new IllegalArgumentException();
+		}
 		final float[] probabilities = new float[rules.length];
 		float prop = 1.0f / rules.length;
 		for ( int i = 0 ; i < rules.length ; i++ ) {
@@ -88,18 +115,100 @@ public abstract class StochasticRule implements RewritingRule {
 	
 	private void setupRules(RewritingRule[] rules,float[] probabilities) {
 		
-		if ( rules == null || rules.length < 1 || rules.length != probabilities.length) {
+		if ( rules == null || rules.length < 1 || probabilities == null || rules.length != probabilities.length) {
 			throw new IllegalArgumentException();
 		}
-		float start = 0.0f;
-		for ( int i = 0 ; i < rules.length ; i++)
+		
+		final int n = rules.length;
+		double sum = 0;
+		for ( int i = 0 ; i < n ; i++ ) 
+		{
+			if ( probabilities[i] < 0 || Float.isNaN( probabilities[i] ) ) {
+				throw new IllegalArgumentException("Invalid probability "+probabilities[i]+" for rule "+rules[i]);
+			}
+			sum += probabilities[i];
+		}
+		if ( sum <= 0 ) {
+			throw new IllegalArgumentException("Probabilities must not all be zero");
+		}
+		
+		this.rules = rules.clone();
+		this.probabilities = new float[ n ];
+		for ( int i = 0 ; i < n ; i++ ) {
+			this.probabilities[i] = (float) ( probabilities[i] / sum );
+		}
+		this.threshold = new float[ n ];
+		this.alias = new int[ n ];
+		
+		// scale probabilities so that the average is 1 , probabilities are normalized as a side-effect
+		final double[] scaled = new double[ n ];
+		final int[] small = new int[ n ];
+		final int[] large = new int[ n ];
+		int smallCount = 0;
+		int largeCount = 0;
+		for ( int i = 0 ; i < n ; i++ ) 
+		{
+			scaled[i] = probabilities[i] * n / sum;
+			if ( scaled[i] < 1.0 ) {
+				small[ smallCount++ ] = i;
+			} else {
+				large[ largeCount++ ] = i;
+			}
+		}
+		
+		while ( smallCount > 0 && largeCount > 0 ) 
+		{
+			final int less = small[ --smallCount ];
+			final int more = large[ --largeCount ];
+			threshold[ less ] = (float) scaled[ less ];
+			alias[ less ] = more;
+			scaled[ more ] = ( scaled[ more ] + scaled[ less ] ) - 1.0;
+			if ( scaled[ more ] < 1.0 ) {
+				small[ smallCount++ ] = more;
+			} else {
+				large[ largeCount++ ] = more;
+			}
+		}
+		// whatever is left is 1 except for rounding errors
+		while ( largeCount > 0 ) {
+			final int i = large[ --largeCount ];
+			threshold[i] = 1.0f;
+			alias[i] = i;
+		}
+		while ( smallCount > 0 ) {
+			final int i = small[ --smallCount ];
+			threshold[i] = 1.0f;
+			alias[i] = i;
+		}
+	}
+	
+	private static boolean overrides(Class<?> clazz,String method,Class<?>... parameterTypes) 
+	{
+		for ( Class<?> current = clazz ; current != StochasticRule.class ; current = current.getSuperclass() ) 
 		{
-			float range = 1.0f * probabilities[i];
-			final Interval interval = new Interval( start , start+range , rules[i] );
-			// System.out.println( "ADD: "+interval);
-			this.rules.add( interval );
-			start += range;
-		}		
+			try {
+				current.getDeclaredMethod( method , parameterTypes );
+				return true;
+			} catch (NoSuchMethodException e) {
+				// check superclass
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the token type this rule matches.
+	 * 
+	 * @return type or <code>null</code> if a subclass overrides {@link #matches(RewritingContext, ParameterProvider)}
+	 */
+	@Override
+	public final TokenType getExpectedType() {
+		return overrides.customMatches ? null : expected;
+	}
+	
+	@Override
+	public final String getExpectedValue() {
+		return null;
 	}
 	
 	@Override
@@ -111,17 +220,92 @@ public abstract class StochasticRule implements RewritingRule {
 	@Override
 	public void rewrite(RewritingContext context,ParameterProvider provider) 
 	{
-		final float value = getRandomNumber();
-		for ( Interval iv : rules ) 
-		{
-			if ( iv.contains( value ) ) 
-			{
-				iv.rule.rewrite( context , provider );
-				return;
-			}
+		choose( getRandomNumber( context ) ).rewrite( context , provider );
+	}
+	
+	/**
+	 * Returns the alternative rules.
+	 * 
+	 * @return
+	 */
+	public final RewritingRule[] getAlternatives() {
+		return rules.clone();
+	}
+	
+	/**
+	 * Returns the alternative picked for a random number.
+	 * 
+	 * <p>The integer part of <code>value * alternatives</code> selects the alias table column , the fractional
+	 * part decides between the column's rule and its alias.</p>
+	 * 
+	 * @param value random number in [0,1[
+	 * @return
+	 */
+	public final RewritingRule choose(float value) {
+		return rules[ chooseIndex( value ) ];
+	}
+	
+	/**
+	 * Returns the index of the alternative picked for a random number.
+	 * 
+	 * @param value random number in [0,1[
+	 * @return
+	 * @see #choose(float)
+	 * @see #getAlternatives()
+	 */
+	public final int chooseIndex(float value) 
+	{
+		final float scaled = value * rules.length;
+		int column = (int) scaled;
+		if ( column >= rules.length ) { // value == 1.0 or rounding
+			column = rules.length-1;
+		} else if ( column < 0 ) {
+			column = 0;
+		}
+		return scaled - column < threshold[column] ? column : alias[column];
+	}
+	
+	/**
+	 * Returns a random number in [0,1[.
+	 * 
+	 * <p>Subclasses overriding this method are not eligible for parallel rewriting.</p>
+	 * 
+	 * @param context context the rule is being applied in
+	 * @return
+	 */
+	protected float getRandomNumber(RewritingContext context) 
+	{
+		if ( overrides.legacyRandom ) {
+			return getRandomNumber();
+		}
+		if ( context instanceof PositionalRewritingContext ) {
+			return ((PositionalRewritingContext) context).random( this );
 		}
-		throw new IllegalStateException("No rule matched?");
+		return ThreadLocalRandom.current().nextFloat();
 	}
 	
-	protected abstract float getRandomNumber();
+	/**
+	 * Returns a random number in [0,1[.
+	 * 
+	 * <p>{@link #getRandomNumber(RewritingContext)} only delegates to this method if a subclass overrides it, 
+	 * the default implementation draws from {@link ThreadLocalRandom}.</p>
+	 * 
+	 * @return
+	 * @deprecated override {@link #getRandomNumber(RewritingContext)} instead, random numbers that do not depend on
+	 * the rewritten symbol's location make derivations irreproducible
+	 */
+	@Deprecated
+	protected float getRandomNumber() {
+		return ThreadLocalRandom.current().nextFloat();
+	}
+	
+	@Override
+	public String toString() 
+	{
+		final StringBuilder result = new StringBuilder( String.valueOf( expected ) ).append(" -> {");
+		for ( int i = 0 ; i < rules.length ; i++ ) {
+			result.append( i > 0 ? " , " : "" ).append( probabilities[i] ).append(": ").append( rules[i] );
+		}
+		return result.append("}").toString();
+	}
 }
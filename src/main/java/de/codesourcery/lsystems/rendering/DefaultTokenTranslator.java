@@ -8,7 +8,7 @@ import de.codesourcery.lsystems.lsystem.Token;
 import de.codesourcery.lsystems.lsystem.Token.TokenType;
 import de.codesourcery.lsystems.lsystem.TokenStream;
 
-public class DefaultTokenTranslator implements TokenTranslator {
+public class DefaultTokenTranslator implements ReusingTokenTranslator {
 
 	protected static final Map<Token.TokenType,PrimitiveType> defaultMapping = new HashMap<>();
 	
@@ -67,23 +67,35 @@ public class DefaultTokenTranslator implements TokenTranslator {
 	
 	@Override
 	public Primitive read(TokenStream stream) 
+	{
+		return read( stream , new Primitive() );
+	}
+	
+	/**
+	 * Reads the next primitive.
+	 * 
+	 * <p>Subclasses that change how tokens are translated must override this method, 
+	 * {@link #read(TokenStream)} delegates to it.</p>
+	 */
+	@Override
+	public Primitive read(TokenStream stream,Primitive reuse) 
 	{
 		final Token tok = stream.next();
 		
 		if ( TokenType.CHARACTERS.equals( tok.type ) ) {
 			PrimitiveType resultType = customMapping.get( tok.value );
 			if ( resultType != null ) {
-				Primitive result = new Primitive(resultType,tok);
+				Primitive result = reuse.set(resultType,tok);
 				if ( Main.DEBUG) {
 					System.out.println("Mapped "+tok+" => "+resultType);
 				}
 				return result;
 			}
 		}
-		Primitive result = new Primitive( defaultMapping.get( tok.type ) , tok );
+		Primitive result = reuse.set( defaultMapping.get( tok.type ) , tok );
 		if ( Main.DEBUG) {
 			System.out.println("Mapped "+tok.type+" ("+tok+") => "+result.type);
 		}
 		return result;
 	}
-}
\ No newline at end of file
+}
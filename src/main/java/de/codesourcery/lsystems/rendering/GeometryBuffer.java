@@ -0,0 +1,366 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.rendering;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.Arrays;
+
+import de.codesourcery.lsystems.rendering.Turtle2D.FloatPolygon;
+
+/**
+ * A {@link RenderingContext2D} that records drawing operations into primitive arrays so 
+ * they can be replayed any number of times.
+ * 
+ * <p>Every drawing operation is stored as one element consisting of a shape kind, a packed ARGB color 
+ * and four coordinates:
+ * <ul>
+ *   <li>{@link #LINE}: start and end point</li>
+ *   <li>{@link #CIRCLE} and {@link #FILLED_CIRCLE}: center, radius and radius</li>
+ *   <li>{@link #POLYGON} and {@link #FILLED_POLYGON}: bounding box (min x, min y, max x, max y), the points are stored
+ *   separately</li>
+ * </ul>
+ * <code>null</code> colors are recorded as fully transparent.</p>
+ * 
+ * <p>Coordinates are recorded as model coordinates with full <code>float</code> precision, so replaying
+ * yields exactly the shapes (and {@link #getBounds(Vec2, Vec2)} exactly the bounding box) a direct
+ * interpretation would have produced. {@link #toScreenCoordinates(float, float, Point)} does not apply any 
+ * transform, it only rounds model coordinates to the nearest pixel.
+ * The bounding box of all shapes is tracked while recording, so rendering an L-system scaled to fit some area only
+ * takes a single interpretation: record it, derive the screen transform from {@link #getBounds(Vec2, Vec2)} and 
+ * replay into a context that applies the transform.</p>
+ * 
+ * <p>This class is not thread-safe.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class GeometryBuffer implements RenderingContext2D 
+{
+	public static final byte LINE = 0;
+	public static final byte CIRCLE = 1;
+	public static final byte FILLED_CIRCLE = 2;
+	public static final byte POLYGON = 3;
+	public static final byte FILLED_POLYGON = 4;
+	
+	private int size;
+	private byte[] kinds;
+	private int[] colors;
+	private float[] x1;
+	private float[] y1;
+	private float[] x2;
+	private float[] y2;
+	
+	// bounding box of all recorded shapes
+	private float minX = Float.MAX_VALUE;
+	private float minY = Float.MAX_VALUE;
+	private float maxX = -Float.MAX_VALUE;
+	private float maxY = -Float.MAX_VALUE;
+	
+	// points of all polygons, polygon #i starts at polygonStarts[i] and ends before polygonStarts[i+1]
+	private int polygonCount;
+	private int[] polygonStarts = new int[ 16 ];
+	private int pointCount;
+	private float[] pointsX = new float[ 64 ];
+	private float[] pointsY = new float[ 64 ];
+	
+	public GeometryBuffer() {
+		this( 1024 );
+	}
+	
+	public GeometryBuffer(int initialCapacity) 
+	{
+		if ( initialCapacity < 1 ) {
+			throw new IllegalArgumentException("Invalid capacity: "+initialCapacity);
+		}
+		kinds = new byte[ initialCapacity ];
+		colors = new int[ initialCapacity ];
+		x1 = new float[ initialCapacity ];
+		y1 = new float[ initialCapacity ];
+		x2 = new float[ initialCapacity ];
+		y2 = new float[ initialCapacity ];
+	}
+	
+	private void add(byte kind,Color color,float ax,float ay,float bx,float by) 
+	{
+		if ( size == kinds.length ) 
+		{
+			final int newCapacity = size * 2;
+			kinds = Arrays.copyOf( kinds , newCapacity );
+			colors = Arrays.copyOf( colors , newCapacity );
+			x1 = Arrays.copyOf( x1 , newCapacity );
+			y1 = Arrays.copyOf( y1 , newCapacity );
+			x2 = Arrays.copyOf( x2 , newCapacity );
+			y2 = Arrays.copyOf( y2 , newCapacity );
+		}
+		kinds[size] = kind;
+		colors[size] = color != null ? color.getRGB() : 0;
+		x1[size] = ax;
+		y1[size] = ay;
+		x2[size] = bx;
+		y2[size] = by;
+		size++;
+		
+		if ( kind == CIRCLE || kind == FILLED_CIRCLE ) 
+		{
+			minX = Math.min( minX , ax - bx );
+			minY = Math.min( minY , ay - by );
+			maxX = Math.max( maxX , ax + bx );
+			maxY = Math.max( maxY , ay + by );
+		} 
+		else 
+		{
+			minX = Math.min( minX , Math.min( ax , bx ) );
+			minY = Math.min( minY , Math.min( ay , by ) );
+			maxX = Math.max( maxX , Math.max( ax , bx ) );
+			maxY = Math.max( maxY , Math.max( ay , by ) );
+		}
+	}
+	
+	@Override
+	public void drawLine(Color color, Vec2 p1, Vec2 p2) {
+		add( LINE , color , p1.x , p1.y , p2.x , p2.y );
+	}
+
+	@Override
+	public void drawCircle(Color color, Vec2 center, float radius) {
+		add( CIRCLE , color , center.x , center.y , radius , radius );
+	}
+
+	@Override
+	public void drawFilledCircle(Color color, Vec2 center, float radius) {
+		add( FILLED_CIRCLE , color , center.x , center.y , radius , radius );
+	}
+
+	/**
+	 * Rounds model coordinates to the nearest pixel.
+	 * 
+	 * <p>The screen transform is not known while recording, callers that need real screen
+	 * coordinates have to ask the context the buffer is replayed into.</p>
+	 */
+	@Override
+	public void toScreenCoordinates(float modelX, float modelY, Point point) {
+		point.x = Math.round( modelX );
+		point.y = Math.round( modelY );
+	}
+
+	@Override
+	public void drawPolygon(Color color, FloatPolygon polygon) {
+		addPolygon( POLYGON , color , polygon );
+	}
+
+	@Override
+	public void drawFilledPolygon(Color color, FloatPolygon polygon) {
+		addPolygon( FILLED_POLYGON , color , polygon );
+	}
+	
+	private void addPolygon(byte kind,Color color,FloatPolygon polygon) 
+	{
+		if ( polygonCount + 1 >= polygonStarts.length ) {
+			polygonStarts = Arrays.copyOf( polygonStarts , polygonStarts.length * 2 );
+		}
+		final int n = polygon.npoints;
+		if ( pointCount + n > pointsX.length ) 
+		{
+			final int newCapacity = Math.max( pointsX.length * 2 , pointCount + n );
+			pointsX = Arrays.copyOf( pointsX , newCapacity );
+			pointsY = Arrays.copyOf( pointsY , newCapacity );
+		}
+		System.arraycopy( polygon.xpoints , 0 , pointsX , pointCount , n );
+		System.arraycopy( polygon.ypoints , 0 , pointsY , pointCount , n );
+		polygonStarts[ polygonCount ] = pointCount;
+		pointCount += n;
+		polygonCount++;
+		polygonStarts[ polygonCount ] = pointCount;
+		
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		for ( int i = 0 ; i < n ; i++ ) 
+		{
+			minX = Math.min( minX , polygon.xpoints[i] );
+			minY = Math.min( minY , polygon.ypoints[i] );
+			maxX = Math.max( maxX , polygon.xpoints[i] );
+			maxY = Math.max( maxY , polygon.ypoints[i] );
+		}
+		add( kind , color , minX , minY , maxX , maxY );
+	}
+	
+	/**
+	 * Replays all recorded drawing operations in the order they were recorded.
+	 * 
+	 * <p>The {@link Vec2} and {@link FloatPolygon} instances passed to the target are reused
+	 * between calls.</p>
+	 *  
+	 * @param target
+	 */
+	public void replay(RenderingContext2D target) 
+	{
+		final Vec2 p1 = new Vec2();
+		final Vec2 p2 = new Vec2();
+		final FloatPolygon polygon = new FloatPolygon();
+		Color color = null;
+		int polygonIndex = 0;
+		for ( int i = 0 ; i < size ; i++ ) 
+		{
+			if ( color == null || color.getRGB() != colors[i] ) {
+				color = new Color( colors[i] , true );
+			}
+			switch( kinds[i] ) 
+			{
+				case LINE:
+					target.drawLine( color , p1.set( x1[i] , y1[i] ) , p2.set( x2[i] , y2[i] ) );
+					break;
+				case CIRCLE:
+					target.drawCircle( color , p1.set( x1[i] , y1[i] ) , x2[i] );
+					break;
+				case FILLED_CIRCLE:
+					target.drawFilledCircle( color , p1.set( x1[i] , y1[i] ) , x2[i] );
+					break;
+				case POLYGON:
+					target.drawPolygon( color , getPolygon( polygonIndex++ , polygon ) );
+					break;
+				case FILLED_POLYGON:
+					target.drawFilledPolygon( color , getPolygon( polygonIndex++ , polygon ) );
+					break;
+				default:
+					throw new RuntimeException("Internal error, unhandled shape kind "+kinds[i]);
+			}
+		}
+	}
+	
+	private FloatPolygon getPolygon(int index,FloatPolygon result) 
+	{
+		final int start = polygonStarts[ index ];
+		final int n = polygonStarts[ index + 1 ] - start;
+		if ( result.xpoints.length < n ) 
+		{
+			result.xpoints = new float[ n ];
+			result.ypoints = new float[ n ];
+		}
+		System.arraycopy( pointsX , start , result.xpoints , 0 , n );
+		System.arraycopy( pointsY , start , result.ypoints , 0 , n );
+		result.npoints = n;
+		return result;
+	}
+	
+	/**
+	 * Returns the bounding box of all recorded shapes.
+	 * 
+	 * <p>The bounding box is maintained while recording, so this method does not 
+	 * need to look at the recorded shapes.</p>
+	 * 
+	 * @param min receives the minimum coordinates
+	 * @param max receives the maximum coordinates
+	 * @return <code>false</code> if nothing has been recorded
+	 */
+	public boolean getBounds(Vec2 min,Vec2 max) 
+	{
+		min.set( minX , minY );
+		max.set( maxX , maxY );
+		return size > 0;
+	}
+	
+	/**
+	 * Returns the index of the last recorded line segment passing within some distance of a point.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param maxDistance
+	 * @return index or -1
+	 */
+	public int findLine(float x,float y,float maxDistance) 
+	{
+		final float maxDistanceSquared = maxDistance * maxDistance;
+		for ( int i = size - 1 ; i >= 0 ; i-- ) 
+		{
+			if ( kinds[i] != LINE ) {
+				continue;
+			}
+			final float dx = x2[i] - x1[i];
+			final float dy = y2[i] - y1[i];
+			final float lenSquared = dx*dx + dy*dy;
+			float t = lenSquared > 0 ? ( (x - x1[i]) * dx + (y - y1[i]) * dy ) / lenSquared : 0;
+			t = Math.max( 0 , Math.min( 1 , t ) );
+			final float ex = x1[i] + t * dx - x;
+			final float ey = y1[i] + t * dy - y;
+			if ( ex*ex + ey*ey <= maxDistanceSquared ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Discards all recorded drawing operations, keeping the allocated arrays.
+	 */
+	public void clear() 
+	{
+		size = 0;
+		polygonCount = 0;
+		pointCount = 0;
+		minX = minY = Float.MAX_VALUE;
+		maxX = maxY = -Float.MAX_VALUE;
+	}
+	
+	/**
+	 * Returns the number of recorded drawing operations.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public byte getKind(int index) {
+		return kinds[ checkIndex( index ) ];
+	}
+	
+	/**
+	 * Returns the color of a drawing operation.
+	 * 
+	 * @param index
+	 * @return ARGB value
+	 * @see Color#getRGB()
+	 */
+	public int getColor(int index) {
+		return colors[ checkIndex( index ) ];
+	}
+	
+	public float getX1(int index) {
+		return x1[ checkIndex( index ) ];
+	}
+	
+	public float getY1(int index) {
+		return y1[ checkIndex( index ) ];
+	}
+	
+	public float getX2(int index) {
+		return x2[ checkIndex( index ) ];
+	}
+	
+	public float getY2(int index) {
+		return y2[ checkIndex( index ) ];
+	}
+	
+	private int checkIndex(int index) 
+	{
+		if ( index < 0 || index >= size ) {
+			throw new IndexOutOfBoundsException("Index "+index+" out of range, size: "+size);
+		}
+		return index;
+	}
+}
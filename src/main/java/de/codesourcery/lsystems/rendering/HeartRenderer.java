@@ -1,6 +1,7 @@
 package de.codesourcery.lsystems.rendering;
 
 import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.rendering.Turtle2D.FloatPolygon;
 
 public class HeartRenderer extends LSystemRenderer2D {
 
@@ -11,6 +12,9 @@ public class HeartRenderer extends LSystemRenderer2D {
 	}
 	
 	protected static final class HeartRenderer2D extends DefaultTokenRenderer {
+		
+		// reused for every heart
+		private final FloatPolygon heart = new FloatPolygon();
 
 		public HeartRenderer2D(RenderingContext2D context, float drawLen,float alphaInDegrees, LSystem lsystem) 
 		{
@@ -65,7 +69,7 @@ public class HeartRenderer extends LSystemRenderer2D {
 					turtle.rotateRight( 80f );
 					turtle.move( drawLen );		
 					
-					context.drawFilledPolygon( turtle.color , turtle.endShape() );
+					context.drawFilledPolygon( turtle.color , turtle.endShape( heart ) );
 					break;
 				default:
 					super.renderPrimitive(primitive);
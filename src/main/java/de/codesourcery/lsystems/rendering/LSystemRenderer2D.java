@@ -16,10 +16,11 @@
 package de.codesourcery.lsystems.rendering;
 
 import java.awt.Color;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
 
 import de.codesourcery.lsystems.lsystem.LSystem;
 import de.codesourcery.lsystems.lsystem.ParameterProvider;
-import de.codesourcery.lsystems.lsystem.TokenSeq;
 import de.codesourcery.lsystems.lsystem.TokenStream;
 
 /**
@@ -85,10 +86,64 @@ public class LSystemRenderer2D implements LSystemRenderer {
 	protected float drawLen = 2f;
 	protected float alphaInDegrees = 15f;
 	protected TokenTranslator tokenTranslator = new DefaultTokenTranslator();
+	protected boolean optimizePrimitives = false;
+	protected ForkJoinPool forkJoinPool;
+	protected int parallelChunkSize = 64*1024;
 	
 	public LSystemRenderer2D() {
 	}
 	
+	/**
+	 * Enables or disables passing primitives through a {@link PeepholeOptimizer}
+	 * before interpreting them (disabled by default).
+	 * 
+	 * <p>The optimizer merges and drops primitives, so the rendering context receives
+	 * fewer (but visually equivalent) lines than without it.</p>
+	 * 
+	 * @param optimizePrimitives
+	 */
+	public void setOptimizePrimitives(boolean optimizePrimitives) {
+		this.optimizePrimitives = optimizePrimitives;
+	}
+	
+	public boolean isOptimizePrimitives() {
+		return optimizePrimitives;
+	}
+	
+	/**
+	 * Sets the pool to use for interpreting large generations in parallel.
+	 * 
+	 * <p>Parallel interpretation is used by {@link #render(LSystem, RenderingContext2D)} if 
+	 * a pool has been set, the system's state is a {@link RandomAccess} list (this includes 
+	 * {@link LSystem#setCompactState(boolean) compact state}, chunks then decode their symbols on the fly) of at least two chunks
+	 * and {@link #createRenderer(LSystem, RenderingContext2D, float)} returns a {@link DefaultTokenRenderer}. 
+	 * The token translator needs to be thread-safe and consume exactly one token per primitive.</p>
+	 * 
+	 * <p>Chunks are recorded before they are passed on to the rendering context, a recording is kept
+	 * until all earlier chunks have been passed on. In the worst case (the first chunk finishing last)
+	 * all drawing operations of a generation are held in memory at the same time.</p>
+	 * 
+	 * @param pool pool to use or <code>null</code> to always interpret sequentially
+	 * @see ParallelTurtleInterpreter
+	 */
+	public void setForkJoinPool(ForkJoinPool pool) {
+		this.forkJoinPool = pool;
+	}
+	
+	/**
+	 * Sets the number of symbols per chunk when interpreting in parallel.
+	 * 
+	 * @param chunkSize
+	 * @see #setForkJoinPool(ForkJoinPool)
+	 */
+	public void setParallelChunkSize(int chunkSize) 
+	{
+		if ( chunkSize < 1 ) {
+			throw new IllegalArgumentException("Invalid chunk size: "+chunkSize);
+		}
+		this.parallelChunkSize = chunkSize;
+	}
+	
 	public void setAlphaInDegrees(float alphaInDegrees) 
 	{
 		this.alphaInDegrees = alphaInDegrees;
@@ -97,14 +152,82 @@ public class LSystemRenderer2D implements LSystemRenderer {
 	@Override
 	public void render(LSystem system, RenderingContext2D context) 
 	{
-		float drawLen = (float) Math.pow( this.drawLen , system.getRecursionCount() ); 
+		final boolean parallel = forkJoinPool != null && ! system.isOffHeapState() && 
+				system.state instanceof RandomAccess && system.getStateSizeAsLong() >= 2*parallelChunkSize;
+		if ( parallel ) 
+		{
+			final float drawLen = (float) Math.pow( this.drawLen , system.getRecursionCount() ); 
+			if ( new ParallelTurtleInterpreter( this , forkJoinPool , parallelChunkSize ).render( system , system.state , drawLen , context ) ) {
+				return;
+			}
+		}
+		render( system , system.toTokenStream() , system.getRecursionCount() , context );
+	}
+	
+	/**
+	 * Renders generation {@link LSystem#getDesiredRecursionCount()} of an L-System
+	 * without materializing it.
+	 * 
+	 * @param system
+	 * @param context
+	 * @see LSystem#createDerivationCursor()
+	 */
+	public void renderLazily(LSystem system, RenderingContext2D context) 
+	{
+		render( system , system.createDerivationCursor() , system.getDesiredRecursionCount() , context );
+	}
+	
+	/**
+	 * Renders a stream of symbols.
+	 * 
+	 * @param system L-system the symbols were derived from
+	 * @param stream
+	 * @param recursionCount generation the symbols belong to
+	 * @param context
+	 */
+	public void render(LSystem system, TokenStream stream , int recursionCount , RenderingContext2D context) 
+	{
+		float drawLen = (float) Math.pow( this.drawLen , recursionCount ); 
 
 		final PrimitiveRenderer renderer = createRenderer(system, context, drawLen);
 
-		final TokenStream stream = TokenSeq.toTokenStream( system.state );
-		final TokenTranslator translator = getTokenTranslator();
-		while( ! stream.eof() ) {
-			renderer.renderPrimitive( translator.read( stream ) );
+		if ( optimizePrimitives ) 
+		{
+			final PeepholeOptimizer optimizer = new PeepholeOptimizer( renderer , alphaInDegrees , system.getParameterProvider() );
+			interpret( stream , getTokenTranslator() , optimizer );
+			optimizer.flush();
+		} 
+		else 
+		{
+			interpret( stream , getTokenTranslator() , renderer );
+		}
+	}
+	
+	/**
+	 * Translates all remaining tokens of a stream and passes the primitives to a renderer.
+	 * 
+	 * <p>If the translator is a {@link ReusingTokenTranslator}, a single {@link Primitive} instance is used
+	 * for all tokens.</p>
+	 * 
+	 * @param stream
+	 * @param translator
+	 * @param renderer
+	 */
+	protected static void interpret(TokenStream stream,TokenTranslator translator,PrimitiveRenderer renderer) 
+	{
+		if ( translator instanceof ReusingTokenTranslator ) 
+		{
+			final ReusingTokenTranslator reusing = (ReusingTokenTranslator) translator;
+			final Primitive primitive = new Primitive();
+			while( ! stream.eof() ) {
+				renderer.renderPrimitive( reusing.read( stream , primitive ) );
+			}
+		} 
+		else 
+		{
+			while( ! stream.eof() ) {
+				renderer.renderPrimitive( translator.read( stream ) );
+			}
 		}
 	}
 	
@@ -139,7 +262,7 @@ public class LSystemRenderer2D implements LSystemRenderer {
 			this.drawLen = drawLen;
 			this.alphaInDegrees = alphaInDegrees;
 			
-			this.turtle = new Turtle2D(context);					
+			this.turtle = new Turtle2D( context , RotationTable.create( system , alphaInDegrees ) );					
 			this.stack = new TurtleStack();
 
 			turtle.setColor(Color.BLACK);
@@ -147,6 +270,24 @@ public class LSystemRenderer2D implements LSystemRenderer {
 			turtle.penDown();
 		}
 		
+		/**
+		 * Returns the amount (draw length factor or angle) of a primitive.
+		 * 
+		 * @param primitive
+		 * @param defaultValue value to use if the primitive has neither a resolved value nor parameters
+		 * @return
+		 */
+		protected final float amount(Primitive primitive,float defaultValue) 
+		{
+			if ( primitive.hasValue ) {
+				return primitive.value;
+			}
+			if ( primitive.token.hasParameters() ) {
+				return primitive.token.floatParameter( 0 , parameterProvider );
+			}
+			return defaultValue;
+		}
+		
 		@Override
 		public void renderPrimitive(Primitive primitive) 
 		{
@@ -175,33 +316,17 @@ public class LSystemRenderer2D implements LSystemRenderer {
 					break;	
 				case FORWARD_NODRAW:
 					turtle.penUp();
-					if ( primitive.token.hasParameters() ) {
-						turtle.move( drawLen*primitive.token.floatParameter(0,parameterProvider ) );
-					} else {
-						turtle.move( drawLen );
-					}					
+					turtle.move( drawLen*amount( primitive , 1 ) );
 					turtle.penDown();
 					break;
 				case FORWARD:
-					if ( primitive.token.hasParameters() ) {
-						turtle.move( drawLen*primitive.token.floatParameter(0,parameterProvider ) );
-					} else {
-						turtle.move( drawLen );
-					}
+					turtle.move( drawLen*amount( primitive , 1 ) );
 					break;
 				case ROTATE_LEFT:
-					if ( primitive.token.hasParameters() ) {
-						turtle.rotateLeft( primitive.token.floatParameter(0,parameterProvider) );
-					} else {
-						turtle.rotateLeft( alphaInDegrees );
-					}
+					turtle.rotateLeft( amount( primitive , alphaInDegrees ) );
 					break;
 				case ROTATE_RIGHT:
-					if ( primitive.token.hasParameters() ) {
-						turtle.rotateRight( primitive.token.floatParameter(0,parameterProvider) );
-					} else {
-						turtle.rotateRight( alphaInDegrees );
-					}					
+					turtle.rotateRight( amount( primitive , alphaInDegrees ) );
 					break;
 				case NOP:
 					System.out.println("*** NOP: "+primitive.token+" ***");
@@ -0,0 +1,345 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.rendering;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.EmptyStackException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.Token;
+import de.codesourcery.lsystems.lsystem.TokenSeq;
+import de.codesourcery.lsystems.lsystem.TokenStream;
+import de.codesourcery.lsystems.rendering.LSystemRenderer2D.DefaultTokenRenderer;
+import de.codesourcery.lsystems.rendering.Turtle2D.FloatPolygon;
+import de.codesourcery.lsystems.rendering.TurtleStack.TurtleStackEntry2D;
+
+/**
+ * Interprets a generation in parallel by splitting it into chunks.
+ * 
+ * <p>Turtle moves and rotations are rigid motions, so the effect of a chunk on the turtle's position and heading 
+ * can be expressed relative to the state the chunk starts with, independent of that state's actual value. 
+ * Interpretation runs in three phases:
+ * <ol>
+ *   <li>Each chunk is interpreted concurrently starting from position (0,0) and heading 0 degrees, with 
+ *   the {@link TurtleStack} in {@link TurtleStack#setRelative(boolean) relative mode}. This yields a summary of the
+ *   chunk's effect: the number of states it pops that were pushed by earlier chunks, its final state and the 
+ *   states it leaves on the stack, each relative to the chunk's initial state or to one of the popped states.</li>
+ *   <li>The summaries are scanned in order, composing them with the actual states to get the initial turtle state
+ *   and stack of every chunk. This only touches brackets that cross chunk boundaries.</li>
+ *   <li>Each chunk is interpreted again concurrently, starting from its actual state, while recording
+ *   all drawing operations into a {@link GeometryBuffer}. Each recording is replayed into the rendering context
+ *   as soon as it and all earlier recordings are done, and released afterwards.</li>
+ * </ol>
+ * Because the same primitives are interpreted using the same {@link PrimitiveRenderer} in phases 1 and 3, 
+ * the output matches sequential interpretation up to floating-point rounding.</p>
+ * 
+ * <p>Requirements: the renderer must be a {@link DefaultTokenRenderer} that changes position and heading only 
+ * through its turtle, the {@link TokenTranslator} must be thread-safe and consume exactly one token per primitive.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see LSystemRenderer2D#setForkJoinPool(ForkJoinPool)
+ */
+final class ParallelTurtleInterpreter 
+{
+	private static final RenderingContext2D NO_OUTPUT = new RenderingContext2D() 
+	{
+		@Override
+		public void drawLine(Color color, Vec2 p1, Vec2 p2) { }
+
+		@Override
+		public void drawCircle(Color color, Vec2 center, float radius) { }
+
+		@Override
+		public void drawFilledCircle(Color color, Vec2 center, float radius) { }
+
+		@Override
+		public void toScreenCoordinates(float modelX, float modelY, Point point) { }
+
+		@Override
+		public void drawPolygon(Color color, FloatPolygon polygon) { }
+
+		@Override
+		public void drawFilledPolygon(Color color, FloatPolygon polygon) { }
+	};
+	
+	private final LSystemRenderer2D owner;
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+	
+	/**
+	 * A turtle state, either absolute or relative to some other state.
+	 */
+	protected static final class State 
+	{
+		public final double x;
+		public final double y;
+		// heading in degrees
+		public final float angle;
+		// NULL means 'same color as the state this one is relative to'
+		public final Color color;
+		// what this state is relative to, see TurtleStack#getBase()
+		public final int base;
+		
+		public State(double x, double y, float angle, Color color,int base) 
+		{
+			this.x = x;
+			this.y = y;
+			this.angle = angle;
+			this.color = color;
+			this.base = base;
+		}
+		
+		public State(Vec2 position,float angle,Color color,int base) {
+			this( position.x , position.y , angle , color , base );
+		}
+		
+		/**
+		 * Returns the absolute state of a relative state.
+		 * 
+		 * <p>The relative position is rotated by this state's heading and added to this state's position, 
+		 * the headings are added.</p>
+		 * 
+		 * @param relative
+		 * @param rotations used to look up the direction of this state's heading the same way {@link Turtle2D} does  
+		 * @param tmp
+		 * @return
+		 */
+		public State apply(State relative,RotationTable rotations,Vec2 tmp) 
+		{
+			rotations.direction( angle , tmp );
+			return new State( x + tmp.x*relative.x - tmp.y*relative.y , y + tmp.x*relative.y + tmp.y*relative.x ,
+					Turtle2D.normalize( angle + relative.angle ) , relative.color != null ? relative.color : color , 0 );
+		}
+		
+		public void applyTo(Turtle2D turtle) 
+		{
+			turtle.position.set( (float) x , (float) y );
+			turtle.setHeading( angle );
+			turtle.setColor( color );
+		}
+	}
+	
+	/**
+	 * Effect of a chunk relative to its initial state.
+	 */
+	protected static final class Summary 
+	{
+		public final int pops;
+		public final State exit;
+		// states left on the stack, bottom first
+		public final List<State> pushed = new ArrayList<>();
+		
+		public Summary(DefaultTokenRenderer renderer) 
+		{
+			final TurtleStack stack = renderer.stack;
+			this.pops = stack.getUnderflowCount();
+			this.exit = new State( renderer.turtle.position , renderer.turtle.getHeading() , renderer.turtle.color , stack.getBase() );
+			for ( int i = 0 ; i < stack.size() ; i++ ) 
+			{
+				final TurtleStackEntry2D entry = stack.get( i );
+				pushed.add( new State( entry.position , entry.angle , entry.color , entry.base ) );
+			}
+		}
+	}
+	
+	public ParallelTurtleInterpreter(LSystemRenderer2D owner,ForkJoinPool pool,int chunkSize) 
+	{
+		if ( chunkSize < 1 ) {
+			throw new IllegalArgumentException("Invalid chunk size: "+chunkSize);
+		}
+		this.owner = owner;
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+	
+	private DefaultTokenRenderer createRenderer(LSystem system,RenderingContext2D context,float drawLen) 
+	{
+		final PrimitiveRenderer result = owner.createRenderer( system , context , drawLen );
+		return result instanceof DefaultTokenRenderer ? (DefaultTokenRenderer) result : null;
+	}
+	
+	private void interpret(LSystem system,List<Token> chunk,DefaultTokenRenderer renderer) 
+	{
+		final TokenTranslator translator = owner.getTokenTranslator();
+		final TokenStream stream = TokenSeq.toTokenStream( chunk );
+		if ( owner.optimizePrimitives ) 
+		{
+			final PeepholeOptimizer optimizer = new PeepholeOptimizer( renderer , owner.alphaInDegrees , system.getParameterProvider() );
+			LSystemRenderer2D.interpret( stream , translator , optimizer );
+			optimizer.flush( false );
+		} 
+		else 
+		{
+			LSystemRenderer2D.interpret( stream , translator , renderer );
+		}
+	}
+	
+	private static <T> List<T> invokeAll(ForkJoinPool pool,List<Callable<T>> tasks) 
+	{
+		final List<T> result = new ArrayList<>( tasks.size() );
+		for ( Future<T> future : pool.invokeAll( tasks ) ) {
+			result.add( get( future ) );
+		}
+		return result;
+	}
+	
+	private static <T> T get(Future<T> future) 
+	{
+		try 
+		{
+			return future.get();
+		} 
+		catch (InterruptedException e) 
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while rendering" , e );
+		} 
+		catch (ExecutionException e) 
+		{
+			if ( e.getCause() instanceof RuntimeException ) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+	
+	/**
+	 * Renders symbols.
+	 * 
+	 * @param system
+	 * @param symbols
+	 * @param drawLen
+	 * @param context
+	 * @return <code>false</code> if the symbols could not be rendered in parallel because the renderer 
+	 * is not a {@link DefaultTokenRenderer}
+	 */
+	public boolean render(final LSystem system,List<Token> symbols,final float drawLen,final RenderingContext2D context) 
+	{
+		final DefaultTokenRenderer initial = createRenderer( system , NO_OUTPUT , drawLen );
+		if ( initial == null ) {
+			return false;
+		}
+		
+		final List<List<Token>> chunks = new ArrayList<>();
+		for ( int start = 0 , size = symbols.size() ; start < size ; start += chunkSize ) {
+			chunks.add( symbols.subList( start , Math.min( size , start + chunkSize ) ) );
+		}
+		
+		// phase 1: summarize chunks
+		final List<Callable<Summary>> summarize = new ArrayList<>();
+		for ( final List<Token> chunk : chunks ) 
+		{
+			summarize.add( new Callable<Summary>() {
+
+				@Override
+				public Summary call() 
+				{
+					final DefaultTokenRenderer renderer = createRenderer( system , NO_OUTPUT , drawLen );
+					new State( 0 , 0 , 0 , null , 0 ).applyTo( renderer.turtle );
+					renderer.stack.setRelative( true );
+					interpret( system , chunk , renderer );
+					return new Summary( renderer );
+				}
+			});
+		}
+		final List<Summary> summaries = invokeAll( pool , summarize );
+		
+		// phase 2: compute actual initial state and stack of each chunk
+		final Turtle2D turtle = initial.turtle;
+		State current = new State( turtle.position , turtle.getHeading() , turtle.color , 0 );
+		final RotationTable rotations = turtle.getRotationTable();
+		final Vec2 tmp = new Vec2();
+		final List<State> stack = new ArrayList<>();
+		final List<State> entryStates = new ArrayList<>();
+		final List<List<State>> entryStacks = new ArrayList<>();
+		for ( Summary summary : summaries ) 
+		{
+			if ( summary.pops > stack.size() ) {
+				throw new EmptyStackException();
+			}
+			final List<State> popped = stack.subList( stack.size() - summary.pops , stack.size() );
+			entryStates.add( current );
+			entryStacks.add( new ArrayList<>( popped ) );
+			
+			// bases[0] is the initial state, bases[n] the state popped by the n-th underflow 
+			final State[] bases = new State[ summary.pops + 1 ];
+			bases[0] = current;
+			for ( int i = 1 ; i <= summary.pops ; i++ ) {
+				bases[i] = popped.get( popped.size() - i );
+			}
+			popped.clear();
+			for ( State relative : summary.pushed ) {
+				stack.add( bases[ relative.base ].apply( relative , rotations , tmp ) );
+			}
+			current = bases[ summary.exit.base ].apply( summary.exit , rotations , tmp );
+		}
+		
+		// phase 3: record chunks concurrently, replay in order
+		final List<Callable<GeometryBuffer>> record = new ArrayList<>();
+		for ( int i = 0 ; i < chunks.size() ; i++ ) 
+		{
+			final List<Token> chunk = chunks.get( i );
+			final State entryState = entryStates.get( i );
+			final List<State> entryStack = entryStacks.get( i );
+			record.add( new Callable<GeometryBuffer>() {
+
+				@Override
+				public GeometryBuffer call() 
+				{
+					final GeometryBuffer recording = new GeometryBuffer();
+					final DefaultTokenRenderer renderer = createRenderer( system , recording , drawLen );
+					for ( State state : entryStack ) 
+					{
+						state.applyTo( renderer.turtle );
+						renderer.stack.pushState( renderer.turtle );
+					}
+					entryState.applyTo( renderer.turtle );
+					interpret( system , chunk , renderer );
+					return recording;
+				}
+			});
+		}
+		final List<Future<GeometryBuffer>> recordings = new ArrayList<>( record.size() );
+		for ( Callable<GeometryBuffer> task : record ) {
+			recordings.add( pool.submit( task ) );
+		}
+		try 
+		{
+			for ( int i = 0 ; i < recordings.size() ; i++ ) 
+			{
+				get( recordings.get( i ) ).replay( context );
+				recordings.set( i , null ); // release the recording as soon as it has been replayed
+			}
+		} 
+		finally 
+		{
+			for ( Future<GeometryBuffer> recording : recordings ) 
+			{
+				if ( recording != null ) {
+					recording.cancel( false );
+				}
+			}
+		}
+		return true;
+	}
+}
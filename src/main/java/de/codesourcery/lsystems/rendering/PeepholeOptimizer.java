@@ -0,0 +1,283 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.rendering;
+
+import java.util.Arrays;
+
+import de.codesourcery.lsystems.lsystem.ParameterProvider;
+import de.codesourcery.lsystems.lsystem.Token;
+
+/**
+ * A {@link PrimitiveRenderer} that optimizes a stream of primitives before passing
+ * it on to another renderer.
+ *
+ * <p>The following optimizations are applied:
+ * <ul>
+ *   <li>consecutive rotations are folded into a single {@link PrimitiveType#ROTATE_RIGHT} with a signed angle, rotations
+ *   that add up to zero are dropped</li>
+ *   <li>consecutive {@link PrimitiveType#FORWARD} (or {@link PrimitiveType#FORWARD_NODRAW}) primitives are merged into one</li>
+ *   <li><code>[ ]</code> blocks that do not draw anything are dropped, as are moves and rotations right before a <code>]</code></li>
+ *   <li>{@link PrimitiveType#NOP}s are dropped</li>
+ * </ul>
+ * All other primitives (including {@link PrimitiveType#CUSTOM_1}) are treated as drawing operations
+ * and passed on unchanged.</p>
+ *
+ * <p>Merged primitives carry their resolved amount (see {@link Primitive#value}), draw lengths
+ * are expressed as multiples of the renderer's base draw length.</p>
+ *
+ * <p>{@link #flush()} must be called after the last primitive has been passed to this renderer.</p>
+ *
+ * <p>Primitives received are never kept, primitives passed on are taken from a pool owned by this
+ * optimizer, so optimizing does not allocate per primitive.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see LSystemRenderer2D#setOptimizePrimitives(boolean)
+ */
+public final class PeepholeOptimizer implements PrimitiveRenderer
+{
+	private final PrimitiveRenderer delegate;
+	private final float alphaInDegrees;
+	private final ParameterProvider parameterProvider;
+
+	// pending rotation
+	private Token rotationToken;
+	private float rotation;
+
+	// pending move
+	private PrimitiveType moveType;
+	private Token moveToken;
+	private float moveLength;
+
+	// primitives held back while inside blocks that did not draw anything (yet), entries are reused
+	private Primitive[] buffer = new Primitive[0];
+	private int bufferSize;
+	// used to pass on primitives that are not held back
+	private final Primitive output = new Primitive();
+	// buffer offsets of the PUSH_STATE primitives of these blocks, innermost last
+	private int[] openBlocks = new int[16];
+	private int openBlockCount;
+
+	private long inputCount;
+	private long outputCount;
+
+	public PeepholeOptimizer(PrimitiveRenderer delegate,float alphaInDegrees,ParameterProvider parameterProvider)
+	{
+		if ( delegate == null ) {
+			throw new IllegalArgumentException("delegate must not be NULL");
+		}
+		this.delegate = delegate;
+		this.alphaInDegrees = alphaInDegrees;
+		this.parameterProvider = parameterProvider;
+	}
+
+	private float amount(Primitive primitive,float defaultValue)
+	{
+		if ( primitive.hasValue ) {
+			return primitive.value;
+		}
+		if ( primitive.token.hasParameters() ) {
+			return primitive.token.floatParameter( 0 , parameterProvider );
+		}
+		return defaultValue;
+	}
+
+	@Override
+	public void renderPrimitive(Primitive primitive)
+	{
+		inputCount++;
+		switch( primitive.type )
+		{
+			case NOP:
+				return;
+			case ROTATE_LEFT:
+			case ROTATE_RIGHT:
+				final float angle = amount( primitive , alphaInDegrees );
+				if ( rotationToken == null ) {
+					rotationToken = primitive.token;
+				}
+				rotation += primitive.type == PrimitiveType.ROTATE_LEFT ? -angle : angle;
+				return;
+			case FORWARD:
+			case FORWARD_NODRAW:
+				final float len = amount( primitive , 1 );
+				if ( rotationToken != null && rotation == 0 ) {
+					// net rotation of zero does not break a run of moves
+					rotationToken = null;
+				}
+				if ( moveType == primitive.type && rotationToken == null ) {
+					moveLength += len;
+					return;
+				}
+				flushPending();
+				moveType = primitive.type;
+				moveToken = primitive.token;
+				moveLength = len;
+				return;
+			case PUSH_STATE:
+				flushPending();
+				if ( openBlockCount == openBlocks.length ) {
+					final int[] tmp = new int[ openBlocks.length * 2 ];
+					System.arraycopy( openBlocks , 0 , tmp , 0 , openBlockCount );
+					openBlocks = tmp;
+				}
+				openBlocks[ openBlockCount++ ] = bufferSize;
+				buffer( primitive );
+				return;
+			case POP_STATE:
+				// turtle state is restored anyway
+				rotationToken = null;
+				rotation = 0;
+				if ( moveType == PrimitiveType.FORWARD_NODRAW ) {
+					moveType = null;
+				}
+				flushPending();
+				if ( openBlockCount > 0 )
+				{
+					bufferSize = openBlocks[ --openBlockCount ];
+					return;
+				}
+				emit( primitive );
+				return;
+			default:
+				flushPending();
+				emit( primitive );
+		}
+	}
+
+	// a pending move always precedes a pending rotation
+	private void flushPending()
+	{
+		if ( moveType != null )
+		{
+			final PrimitiveType type = moveType;
+			moveType = null;
+			emit( output.set( type , moveToken , moveLength ) );
+		}
+		if ( rotationToken != null )
+		{
+			final Token token = rotationToken;
+			rotationToken = null;
+			if ( rotation != 0 ) {
+				emit( output.set( PrimitiveType.ROTATE_RIGHT , token , rotation ) );
+			}
+			rotation = 0;
+		}
+	}
+
+	private void emit(Primitive primitive)
+	{
+		if ( openBlockCount > 0 )
+		{
+			buffer( primitive );
+			/*
+			 * Color changes may be dropped together with the block only because
+			 * TurtleStack#popState() restores the color that was active at the
+			 * matching PUSH_STATE, so they never affect anything drawn after the block.
+			 */
+			if ( primitive.type == PrimitiveType.FORWARD_NODRAW || primitive.type == PrimitiveType.ROTATE_RIGHT ||
+				 primitive.type == PrimitiveType.PUSH_STATE || isColorChange( primitive ) )
+			{
+				return;
+			}
+			// block draws something, pass on everything held back so far
+			openBlockCount = 0;
+			passOnBuffer();
+			return;
+		}
+		outputCount++;
+		if ( primitive != output ) {
+			output.set( primitive );
+		}
+		delegate.renderPrimitive( output );
+	}
+
+	private void buffer(Primitive primitive)
+	{
+		if ( bufferSize == buffer.length )
+		{
+			buffer = Arrays.copyOf( buffer , Math.max( 16 , buffer.length * 2 ) );
+			for ( int i = bufferSize ; i < buffer.length ; i++ ) {
+				buffer[i] = new Primitive();
+			}
+		}
+		buffer[ bufferSize++ ].set( primitive );
+	}
+
+	private void passOnBuffer()
+	{
+		for ( int i = 0 ; i < bufferSize ; i++ ) {
+			outputCount++;
+			delegate.renderPrimitive( buffer[i] );
+		}
+		bufferSize = 0;
+	}
+
+	private static boolean isColorChange(Primitive p)
+	{
+		switch( p.type ) {
+			case COLOR_BLUE:
+			case COLOR_GREEN:
+			case COLOR_RED:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Passes on all pending primitives.
+	 *
+	 * <p>Blocks that are still open and have not drawn anything are discarded.</p>
+	 */
+	public void flush()
+	{
+		flush( true );
+	}
+
+	/**
+	 * Passes on all pending primitives.
+	 *
+	 * @param endOfStream whether no more primitives will follow, if so blocks that are still open
+	 * and have not drawn anything are discarded, otherwise they are passed on as well
+	 */
+	public void flush(boolean endOfStream)
+	{
+		flushPending();
+		openBlockCount = 0;
+		if ( ! endOfStream ) {
+			passOnBuffer();
+		}
+		bufferSize = 0;
+	}
+
+	/**
+	 * Returns the number of primitives received.
+	 *
+	 * @return
+	 */
+	public long getInputCount() {
+		return inputCount;
+	}
+
+	/**
+	 * Returns the number of primitives passed on to the delegate.
+	 *
+	 * @return
+	 */
+	public long getOutputCount() {
+		return outputCount;
+	}
+}
@@ -7,9 +7,74 @@ public class Primitive {
 	public PrimitiveType type;
 	public Token token;
 	
+	/**
+	 * Resolved amount (draw length factor or rotation angle in degrees), only valid if {@link #hasValue} is set.
+	 * 
+	 * @see PeepholeOptimizer
+	 */
+	public float value;
+	public boolean hasValue;
+	
+	public Primitive() {
+	}
+	
 	public Primitive(PrimitiveType type, Token token) {
 		this.type = type;
 		this.token = token;
 	}
 	
+	public Primitive(PrimitiveType type, Token token, float value) {
+		this.type = type;
+		this.token = token;
+		this.value = value;
+		this.hasValue = true;
+	}
+	
+	/**
+	 * Reinitializes this primitive without a resolved amount.
+	 * 
+	 * @param type
+	 * @param token
+	 * @return this instance
+	 */
+	public Primitive set(PrimitiveType type, Token token) 
+	{
+		this.type = type;
+		this.token = token;
+		this.value = 0;
+		this.hasValue = false;
+		return this;
+	}
+	
+	/**
+	 * Reinitializes this primitive with a resolved amount.
+	 * 
+	 * @param type
+	 * @param token
+	 * @param value
+	 * @return this instance
+	 */
+	public Primitive set(PrimitiveType type, Token token, float value) 
+	{
+		this.type = type;
+		this.token = token;
+		this.value = value;
+		this.hasValue = true;
+		return this;
+	}
+	
+	/**
+	 * Copies another primitive.
+	 * 
+	 * @param other
+	 * @return this instance
+	 */
+	public Primitive set(Primitive other) 
+	{
+		this.type = other.type;
+		this.token = other.token;
+		this.value = other.value;
+		this.hasValue = other.hasValue;
+		return this;
+	}
 }
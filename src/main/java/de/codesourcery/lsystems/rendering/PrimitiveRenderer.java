@@ -1,6 +1,14 @@
 package de.codesourcery.lsystems.rendering;
 
-
+/**
+ * Interprets primitives.
+ * 
+ * <p>Callers may reuse a {@link Primitive} instance once {@link #renderPrimitive(Primitive)} returns, 
+ * implementations must copy primitives they want to keep.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ReusingTokenTranslator
+ */
 public interface PrimitiveRenderer {
 
 	public void renderPrimitive(Primitive primitive);
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.rendering;
+
+import de.codesourcery.lsystems.lsystem.TokenStream;
+
+/**
+ * A {@link TokenTranslator} that can write primitives into an existing instance instead
+ * of allocating a new one for each token.
+ * 
+ * <p>Renderers use this interface when available, so interpreting a generation does not allocate 
+ * per token.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see PrimitiveRenderer
+ */
+public interface ReusingTokenTranslator extends TokenTranslator {
+
+	/**
+	 * Reads the next primitive.
+	 * 
+	 * @param stream
+	 * @param reuse instance to store the primitive in
+	 * @return <code>reuse</code>
+	 */
+	public Primitive read(TokenStream stream,Primitive reuse);
+}
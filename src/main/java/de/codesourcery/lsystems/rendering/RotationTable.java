@@ -0,0 +1,352 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.lsystems.rendering;
+
+import java.util.Arrays;
+import java.util.List;
+
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.RewritingRule;
+import de.codesourcery.lsystems.lsystem.Token;
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.rules.ParametricRule;
+import de.codesourcery.lsystems.lsystem.rules.SequenceRule;
+import de.codesourcery.lsystems.lsystem.rules.SimpleRule;
+import de.codesourcery.lsystems.lsystem.rules.StochasticRule;
+
+/**
+ * Precomputed rotations for the angles an L-system rotates its turtle by.
+ * 
+ * <p>The full circle is divided into {@link #getSteps()} equal steps, chosen so that every rotation angle 
+ * of the rule set is a whole number of steps (if that is possible with at most {@link #MAX_STEPS} steps). 
+ * Turtles keep headings on this grid as an integer step count, rotating by such an angle is an integer addition 
+ * followed by a table lookup and never accumulates rounding errors.</p>
+ * 
+ * <p>For every rotation angle of the rule set the sine and cosine are precomputed as well, so rotations 
+ * that leave the grid do not need to evaluate trigonometric functions either. Only angles that are computed 
+ * while rendering (parameter expressions, {@link PeepholeOptimizer folded} rotations that do not fit the grid) 
+ * are calculated on each use.</p>
+ * 
+ * <p>Instances are immutable and may be shared between threads.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see Turtle2D#rotateRight(float)
+ */
+final class RotationTable 
+{
+	/**
+	 * Maximum number of steps, this corresponds to a resolution of 0.1 degrees.
+	 */
+	public static final int MAX_STEPS = 3600;
+	
+	/**
+	 * Table with a one degree grid.
+	 */
+	public static final RotationTable DEFAULT = new RotationTable( new float[] { 1 } );
+	
+	// max. distance (in steps) of an angle from the grid to still be considered on the grid 
+	private static final double EPSILON = 1e-4;
+	
+	private final int steps;
+	// angle, cosine and sine of each step
+	private final float[] angles;
+	private final double[] cos;
+	private final double[] sin;
+	
+	// rotation angles (both signs) in ascending order along with their number of steps
+	// (-1 if not on the grid) and sine/cosine
+	private final float[] rotations;
+	private final int[] rotationSteps;
+	private final double[] rotationCos;
+	private final double[] rotationSin;
+	
+	/**
+	 * Creates a table for some rotation angles.
+	 * 
+	 * @param rotationAngles angles in degrees
+	 */
+	public RotationTable(float[] rotationAngles) 
+	{
+		// axis-aligned headings are always on the grid
+		int n = 4;
+		for ( float angle : rotationAngles ) 
+		{
+			final int required = minSteps( angle );
+			if ( required > 0 ) 
+			{
+				final long lcm = (long) n / gcd( n , required ) * required;
+				if ( lcm <= MAX_STEPS ) {
+					n = (int) lcm;
+				}
+			}
+		}
+		this.steps = n;
+		
+		angles = new float[ n ];
+		cos = new double[ n ];
+		sin = new double[ n ];
+		for ( int i = 0 ; i < n ; i++ ) 
+		{
+			// exact values for the axes
+			final int quadrant = ( i * 4 ) % n == 0 ? ( i * 4 ) / n : -1;
+			if ( quadrant == 0 ) {
+				cos[i] = 1;
+			} else if ( quadrant == 1 ) {
+				sin[i] = 1;
+			} else if ( quadrant == 2 ) {
+				cos[i] = -1;
+			} else if ( quadrant == 3 ) {
+				sin[i] = -1;
+			} else {
+				final double angleInRad = Math.toRadians( i * 360.0 / n );
+				cos[i] = Math.cos( angleInRad );
+				sin[i] = Math.sin( angleInRad );
+			}
+			angles[i] = (float) ( i * 360.0 / n );
+		}
+		
+		final float[] keys = new float[ rotationAngles.length * 2 ];
+		for ( int i = 0 ; i < rotationAngles.length ; i++ ) 
+		{
+			keys[ 2*i ] = rotationAngles[i];
+			keys[ 2*i + 1 ] = -rotationAngles[i];
+		}
+		Arrays.sort( keys );
+		int count = 0;
+		for ( int i = 0 ; i < keys.length ; i++ ) 
+		{
+			if ( count == 0 || keys[i] != keys[count-1] ) {
+				keys[count++] = keys[i];
+			}
+		}
+		rotations = Arrays.copyOf( keys , count );
+		rotationSteps = new int[ count ];
+		rotationCos = new double[ count ];
+		rotationSin = new double[ count ];
+		for ( int i = 0 ; i < count ; i++ ) 
+		{
+			rotationSteps[i] = toSteps( rotations[i] );
+			final double angleInRad = Math.toRadians( rotations[i] );
+			rotationCos[i] = Math.cos( angleInRad );
+			rotationSin[i] = Math.sin( angleInRad );
+		}
+	}
+	
+	/**
+	 * Creates a table for the rotation angles of an L-system.
+	 * 
+	 * <p>Considers the default angle as well as all plain numeric parameters of rotation symbols in the axiom and 
+	 * in the replacements of {@link SimpleRule}s, {@link SequenceRule}s, {@link ParametricRule}s and the alternatives 
+	 * of {@link StochasticRule}s.</p>
+	 * 
+	 * @param system
+	 * @param alphaInDegrees angle to use for rotation symbols without parameters
+	 * @return
+	 */
+	public static RotationTable create(LSystem system,float alphaInDegrees) 
+	{
+		final AngleCollector collector = new AngleCollector();
+		collector.add( alphaInDegrees );
+		collector.add( system.getAxiom().toList() );
+		for ( RewritingRule rule : system.getRules() ) {
+			collector.add( rule );
+		}
+		return new RotationTable( collector.getAngles() );
+	}
+	
+	private static final class AngleCollector 
+	{
+		private float[] angles = new float[ 4 ];
+		private int size;
+		
+		public void add(float angle) 
+		{
+			for ( int i = 0 ; i < size ; i++ ) 
+			{
+				if ( angles[i] == angle ) {
+					return;
+				}
+			}
+			if ( size == angles.length ) {
+				angles = Arrays.copyOf( angles , size * 2 );
+			}
+			angles[size++] = angle;
+		}
+		
+		public void add(List<Token> tokens) 
+		{
+			for ( Token token : tokens ) 
+			{
+				if ( ( token.type == TokenType.ROTATE_LEFT || token.type == TokenType.ROTATE_RIGHT ) && token.hasParameters() ) 
+				{
+					if ( token.isNumeric() ) {
+						add( token.getNumericParameters()[0] );
+					} else {
+						try {
+							add( Float.parseFloat( token.getParameters().get( 0 ).trim() ) );
+						} catch(NumberFormatException e) {
+							// computed angle
+						}
+					}
+				}
+			}
+		}
+		
+		public void add(RewritingRule rule) 
+		{
+			if ( rule instanceof SimpleRule ) {
+				add( ((SimpleRule) rule).getReplacement().toList() );
+			} else if ( rule instanceof SequenceRule ) {
+				add( ((SequenceRule) rule).getReplacement().toList() );
+			} else if ( rule instanceof ParametricRule ) {
+				add( ((ParametricRule) rule).getReplacement().toList() );
+			} else if ( rule instanceof StochasticRule ) 
+			{
+				for ( RewritingRule alternative : ((StochasticRule) rule).getAlternatives() ) {
+					add( alternative );
+				}
+			}
+		}
+		
+		public float[] getAngles() {
+			return Arrays.copyOf( angles , size );
+		}
+	}
+	
+	/**
+	 * Returns the smallest number of steps a full circle needs to be divided into
+	 * for an angle to be a whole number of steps.
+	 * 
+	 * @param angleInDeg
+	 * @return number of steps or -1 if this would take more than {@link #MAX_STEPS} steps
+	 */
+	private static int minSteps(float angleInDeg) 
+	{
+		if ( Float.isNaN( angleInDeg ) || Float.isInfinite( angleInDeg ) ) {
+			return -1;
+		}
+		final double turns = angleInDeg / 360.0;
+		for ( int n = 1 ; n <= MAX_STEPS ; n++ ) 
+		{
+			final double x = turns * n;
+			if ( Math.abs( x - Math.rint( x ) ) <= EPSILON ) {
+				return n;
+			}
+		}
+		return -1;
+	}
+	
+	private static int gcd(int a,int b) 
+	{
+		while ( b != 0 ) 
+		{
+			final int tmp = a % b;
+			a = b;
+			b = tmp;
+		}
+		return a;
+	}
+	
+	/**
+	 * Returns the number of steps a full circle is divided into.
+	 * 
+	 * @return
+	 */
+	public int getSteps() {
+		return steps;
+	}
+	
+	/**
+	 * Converts an angle to a number of steps.
+	 * 
+	 * @param angleInDeg
+	 * @return number of steps in [0,{@link #getSteps()}[ or -1 if the angle is not on the grid
+	 */
+	public int toSteps(float angleInDeg) 
+	{
+		final double x = angleInDeg * (double) steps / 360.0;
+		final double rounded = Math.rint( x );
+		if ( Math.abs( x - rounded ) > EPSILON || Double.isInfinite( x ) ) {
+			return -1;
+		}
+		final int result = (int) ( (long) rounded % steps );
+		return result < 0 ? result + steps : result;
+	}
+	
+	/**
+	 * Returns the angle of a step.
+	 * 
+	 * @param step
+	 * @return angle in degrees, in [0,360[
+	 */
+	public float getAngle(int step) {
+		return angles[step];
+	}
+	
+	public double getCos(int step) {
+		return cos[step];
+	}
+	
+	public double getSin(int step) {
+		return sin[step];
+	}
+	
+	/**
+	 * Looks up a rotation angle.
+	 * 
+	 * @param angleInDeg
+	 * @return index of the rotation or a negative value if this is not one of the rule set's angles
+	 */
+	public int indexOf(float angleInDeg) {
+		return Arrays.binarySearch( rotations , angleInDeg );
+	}
+	
+	/**
+	 * Returns the number of steps of a rotation.
+	 * 
+	 * @param index
+	 * @return number of steps or -1 if the rotation is not on the grid
+	 * @see #indexOf(float)
+	 */
+	public int getRotationSteps(int index) {
+		return rotationSteps[index];
+	}
+	
+	public double getRotationCos(int index) {
+		return rotationCos[index];
+	}
+	
+	public double getRotationSin(int index) {
+		return rotationSin[index];
+	}
+	
+	/**
+	 * Returns the unit vector for an angle.
+	 * 
+	 * @param angleInDeg angle in [0,360[
+	 * @param result
+	 * @return result
+	 */
+	public Vec2 direction(float angleInDeg,Vec2 result) 
+	{
+		final int step = toSteps( angleInDeg );
+		if ( step >= 0 ) {
+			return result.set( (float) cos[step] , (float) sin[step] );
+		}
+		final double angleInRad = Math.toRadians( angleInDeg );
+		return result.set( (float) Math.cos( angleInRad ) , (float) Math.sin( angleInRad ) );
+	}
+}
@@ -20,6 +20,12 @@ import java.awt.Color;
 /**
  * 2D turtle.
  *
+ * <p>The turtle's heading is kept as an integer number of steps on the grid of a {@link RotationTable}, 
+ * {@link #heading} is the corresponding unit vector. Rotating by an angle that is a whole number of steps only adds 
+ * to the step count and looks up the vector, so repeated rotations do not accumulate rounding errors. Headings 
+ * off the grid are rotated using the precomputed sine and cosine of the rule set's rotation angles, other angles 
+ * fall back to evaluating the trigonometric functions.</p>
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public final class Turtle2D {
@@ -27,7 +33,18 @@ public final class Turtle2D {
 	private final Vec2 tmp = new Vec2(0,0);
 	
 	public final Vec2 position = new Vec2(0,0);
+	/**
+	 * Unit vector for the current heading angle, must only be changed through {@link #setHeading(float)}.
+	 */
 	public final Vec2 heading = new Vec2(0,-1);
+	// heading in degrees, [0,360[
+	private float angle;
+	// heading in steps of the rotation table's grid, -1 if the heading is not on the grid
+	private int step;
+	// unit vector of the heading, more precise than the public one
+	private double cos;
+	private double sin;
+	private final RotationTable rotations;
 	public Color color = Color.BLACK;
 	public boolean isPenDown = false;
 	private final RenderingContext2D context;
@@ -36,7 +53,14 @@ public final class Turtle2D {
 	private final FloatPolygon polygon = new FloatPolygon();
 	
 	public Turtle2D(RenderingContext2D context) {
+		this( context , RotationTable.DEFAULT );
+	}
+	
+	Turtle2D(RenderingContext2D context,RotationTable rotations) 
+	{
 		this.context = context;
+		this.rotations = rotations;
+		setHeading( 270 );
 	}
 
 	public static final class FloatPolygon 
@@ -60,6 +84,26 @@ public final class Turtle2D {
 			ypoints = new float[32];
 		}
 		
+		/**
+		 * Replaces this polygon's points with copies of another polygon's points, 
+		 * reusing this polygon's arrays if they are large enough.
+		 * 
+		 * @param polygon
+		 * @return this instance
+		 */
+		public FloatPolygon set(FloatPolygon polygon) 
+		{
+			if ( xpoints.length < polygon.npoints ) 
+			{
+				xpoints = new float[ polygon.npoints ];
+				ypoints = new float[ polygon.npoints ];
+			}
+			System.arraycopy( polygon.xpoints, 0, this.xpoints, 0, polygon.npoints );
+			System.arraycopy( polygon.ypoints, 0, this.ypoints, 0, polygon.npoints );
+			this.npoints = polygon.npoints;
+			return this;
+		}
+		
 		public int size() { return npoints; }
 		
 		public void reset() {
@@ -91,13 +135,24 @@ public final class Turtle2D {
 	}
 	
 	public FloatPolygon endShape() 
+	{
+		return endShape( new FloatPolygon() );
+	}
+	
+	/**
+	 * Stops recording a shape.
+	 * 
+	 * @param result polygon to copy the recorded shape to, may be reused between shapes
+	 * @return result
+	 */
+	public FloatPolygon endShape(FloatPolygon result) 
 	{
 		if ( ! recordingShape ) {
 			throw new IllegalStateException("Not recording a shape ?");
 		}
 		try 
 		{
-			return new FloatPolygon( this.polygon );
+			return result.set( this.polygon );
 		} 
 		finally 
 		{
@@ -115,13 +170,136 @@ public final class Turtle2D {
 	}
 	
 	public void rotateLeft(float angleInDeg) {
-		heading.rotate( -angleInDeg );
+		rotate( -angleInDeg );
 	}
 	
 	public void rotateRight(float angleInDeg) {
-		heading.rotate( angleInDeg );
+		rotate( angleInDeg );
 	}	
 	
+	private void rotate(float angleInDeg) 
+	{
+		final int index = rotations.indexOf( angleInDeg );
+		if ( step >= 0 ) 
+		{
+			final int delta = index >= 0 ? rotations.getRotationSteps( index ) : rotations.toSteps( angleInDeg );
+			if ( delta >= 0 ) 
+			{
+				final int newStep = step + delta;
+				setStep( newStep >= rotations.getSteps() ? newStep - rotations.getSteps() : newStep );
+				return;
+			}
+		}
+		if ( index < 0 ) {
+			setHeading( angle + angleInDeg );
+			return;
+		}
+		
+		final double rotationCos = rotations.getRotationCos( index );
+		final double rotationSin = rotations.getRotationSin( index );
+		final double newCos = cos * rotationCos - sin * rotationSin;
+		sin = sin * rotationCos + cos * rotationSin;
+		cos = newCos;
+		angle = normalize( angle + angleInDeg );
+		
+		final int newStep = rotations.toSteps( angle );
+		if ( newStep >= 0 ) {
+			setStep( newStep );
+		} else {
+			step = -1;
+			heading.set( (float) cos , (float) sin );
+		}
+	}
+	
+	private void setStep(int newStep) 
+	{
+		step = newStep;
+		angle = rotations.getAngle( newStep );
+		cos = rotations.getCos( newStep );
+		sin = rotations.getSin( newStep );
+		heading.set( (float) cos , (float) sin );
+	}
+	
+	/**
+	 * Sets the heading.
+	 * 
+	 * @param angleInDeg angle (counter-clockwise in model coordinates) between the heading and the x axis
+	 */
+	public void setHeading(float angleInDeg) 
+	{
+		final float a = normalize( angleInDeg );
+		final int newStep = rotations.toSteps( a );
+		if ( newStep >= 0 ) {
+			setStep( newStep );
+			return;
+		}
+		step = -1;
+		angle = a;
+		final double angleInRad = Math.toRadians( a );
+		cos = Math.cos( angleInRad );
+		sin = Math.sin( angleInRad );
+		heading.set( (float) cos , (float) sin );
+	}
+	
+	/**
+	 * Maps an angle to [0,360[.
+	 * 
+	 * @param angleInDeg
+	 * @return
+	 */
+	static float normalize(float angleInDeg) 
+	{
+		float a = angleInDeg;
+		if ( a < 0 || a >= 360 ) 
+		{
+			a %= 360;
+			if ( a < 0 ) {
+				a += 360;
+			}
+			if ( a >= 360 ) { // tiny negative angles round to 360
+				a = 0;
+			}
+		}
+		return a;
+	}
+	
+	/**
+	 * Returns the heading.
+	 * 
+	 * @return angle in degrees, in [0,360[
+	 * @see #setHeading(float)
+	 */
+	public float getHeading() {
+		return angle;
+	}
+	
+	/**
+	 * Restores a heading previously returned by {@link #getHeading()} along with its vector.
+	 * 
+	 * <p>Headings on the rotation table's grid are restored as step count, the vector is only used for other headings.</p>
+	 * 
+	 * @param angleInDeg
+	 * @param directionX
+	 * @param directionY
+	 */
+	void restoreHeading(float angleInDeg,float directionX,float directionY) 
+	{
+		final int newStep = rotations.toSteps( angleInDeg );
+		if ( newStep >= 0 ) {
+			setStep( newStep );
+			return;
+		}
+		step = -1;
+		angle = angleInDeg;
+		cos = directionX;
+		sin = directionY;
+		heading.set( directionX , directionY );
+	}
+	
+	RotationTable getRotationTable() {
+		return rotations;
+	}
+	
 	public void setColor(Color color) {
 		this.color = color;
 	}
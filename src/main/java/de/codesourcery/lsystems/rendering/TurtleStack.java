@@ -16,17 +16,32 @@
 package de.codesourcery.lsystems.rendering;
 
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.EmptyStackException;
-import java.util.Stack;
 
 /**
  * A stack to hold turtle state.
  *
+ * <p>States are stored in parallel arrays that are only ever grown, so pushing and popping
+ * does not allocate.</p>
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public final class TurtleStack {
 
-	private final Stack<TurtleStackEntry2D> stack = new Stack<>();
+	private int size;
+	private float[] x = new float[ 16 ];
+	private float[] y = new float[ 16 ];
+	private float[] headingX = new float[ 16 ];
+	private float[] headingY = new float[ 16 ];
+	private float[] angles = new float[ 16 ];
+	private Color[] colors = new Color[ 16 ];
+	private int[] bases = new int[ 16 ];
+	
+	// see setRelative(boolean)
+	private boolean relative;
+	private int base;
+	private int underflowCount;
 	
 	/**
 	 * Pushes the turtle's current state onto the stack.
@@ -35,7 +50,25 @@ public final class TurtleStack {
 	 */
 	public void pushState(Turtle2D turtle) 
 	{
-		stack.push( new TurtleStackEntry2D(turtle));
+		if ( size == x.length ) 
+		{
+			final int newCapacity = size * 2;
+			x = Arrays.copyOf( x , newCapacity );
+			y = Arrays.copyOf( y , newCapacity );
+			headingX = Arrays.copyOf( headingX , newCapacity );
+			headingY = Arrays.copyOf( headingY , newCapacity );
+			angles = Arrays.copyOf( angles , newCapacity );
+			colors = Arrays.copyOf( colors , newCapacity );
+			bases = Arrays.copyOf( bases , newCapacity );
+		}
+		x[size] = turtle.position.x;
+		y[size] = turtle.position.y;
+		headingX[size] = turtle.heading.x;
+		headingY[size] = turtle.heading.y;
+		angles[size] = turtle.getHeading();
+		colors[size] = turtle.color;
+		bases[size] = base;
+		size++;
 	}
 	
 	/**
@@ -43,28 +76,95 @@ public final class TurtleStack {
 	 * 
 	 * @param turtle
 	 */
-	public void popState(Turtle2D turtle) throws EmptyStackException {
-		stack.pop().apply( turtle );
+	public void popState(Turtle2D turtle) throws EmptyStackException 
+	{
+		if ( size == 0 ) 
+		{
+			if ( ! relative ) {
+				throw new EmptyStackException();
+			}
+			underflowCount++;
+			base = underflowCount;
+			turtle.position.set( 0 , 0 );
+			turtle.setHeading( 0 );
+			turtle.setColor( null );
+			return;
+		}
+		size--;
+		turtle.position.set( x[size] , y[size] );
+		turtle.restoreHeading( angles[size] , headingX[size] , headingY[size] );
+		turtle.setColor( colors[size] );
+		colors[size] = null;
+		base = bases[size];
+	}
+	
+	/**
+	 * Enables relative mode.
+	 * 
+	 * <p>In relative mode, popping from an empty stack does not fail but resets the turtle to 
+	 * position (0,0), heading 0 degrees and a <code>null</code> color (meaning "unchanged"). All state
+	 * after the n-th such underflow is relative to the n-th state that would have been popped, 
+	 * see {@link #getBase()}.</p>
+	 * 
+	 * @param relative
+	 * @see ParallelTurtleInterpreter
+	 */
+	public void setRelative(boolean relative) {
+		this.relative = relative;
+	}
+	
+	/**
+	 * Returns what the turtle's current state is relative to.
+	 * 
+	 * @return 0 if relative to the initial state, n if relative to the state of the n-th underflow
+	 */
+	public int getBase() {
+		return base;
 	}
 	
-	protected final class TurtleStackEntry2D {
+	/**
+	 * Returns the number of times a state was popped from the empty stack in relative mode.
+	 * 
+	 * @return
+	 */
+	public int getUnderflowCount() {
+		return underflowCount;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns a copy of a stack entry.
+	 * 
+	 * @param index index, 0 is the bottom of the stack
+	 * @return
+	 */
+	protected TurtleStackEntry2D get(int index) 
+	{
+		if ( index < 0 || index >= size ) {
+			throw new IndexOutOfBoundsException("Index "+index+" out of range, size: "+size);
+		}
+		return new TurtleStackEntry2D( new Vec2( x[index] , y[index] ) , new Vec2( headingX[index] , headingY[index] ) , 
+				angles[index] , colors[index] , bases[index] );
+	}
+	
+	protected static final class TurtleStackEntry2D {
 
 		public final Vec2 position;
 		public final Vec2 heading;
+		public final float angle;
 		public final Color color;
+		public final int base;
 
-		public TurtleStackEntry2D(Turtle2D turtle) 
-		{
-			this.position = new Vec2(turtle.position);
-			this.heading= new Vec2(turtle.heading);
-			this.color = turtle.color;
-		}
-
-		public void apply(Turtle2D t) 
+		public TurtleStackEntry2D(Vec2 position,Vec2 heading,float angle,Color color,int base) 
 		{
-			t.setColor( color );
-			t.position.set(this.position);
-			t.heading.set(this.heading);
+			this.position = position;
+			this.heading = heading;
+			this.angle = angle;
+			this.color = color;
+			this.base = base;
 		}
 	}
 }
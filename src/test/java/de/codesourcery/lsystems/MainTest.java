@@ -0,0 +1,74 @@
+package de.codesourcery.lsystems;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.swing.SwingUtilities;
+
+import de.codesourcery.lsystems.Main.RenderedFrame;
+import de.codesourcery.lsystems.lsystem.ExpressionLexer;
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.RuleGenerator;
+import junit.framework.TestCase;
+
+public class MainTest extends TestCase
+{
+	private static <T> T onEDT(Callable<T> callable) throws Exception
+	{
+		final FutureTask<T> task = new FutureTask<>( callable );
+		SwingUtilities.invokeAndWait( task );
+		return task.get();
+	}
+
+	private static RenderedFrame awaitFrame(final Main.MyPanel panel) throws Exception
+	{
+		final long deadline = System.currentTimeMillis() + 30000;
+		while ( System.currentTimeMillis() < deadline )
+		{
+			final RenderedFrame frame = onEDT( new Callable<RenderedFrame>() {
+
+				@Override
+				public RenderedFrame call() {
+					return panel.isRendering() ? null : panel.getFrame();
+				}
+			});
+			if ( frame != null ) {
+				return frame;
+			}
+			Thread.sleep( 10 );
+		}
+		fail("Timeout while waiting for frame");
+		return null;
+	}
+
+	public void testDeriveAndPublishOffEDT() throws Exception
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		system.addRule( RuleGenerator.replaceRule( "F" , "F[+F]F[-F]F" ) );
+		system.setDesiredRecursionCount( 3 );
+
+		final Main.MyPanel panel = onEDT( new Callable<Main.MyPanel>() {
+
+			@Override
+			public Main.MyPanel call() {
+				final Main.MyPanel result = new Main().new MyPanel( system );
+				result.setSize( 120 , 80 );
+				// a superseded request must not be published
+				result.scheduleRender();
+				result.scheduleRender();
+				return result;
+			}
+		});
+
+		final RenderedFrame frame = awaitFrame( panel );
+		assertEquals( 120 , frame.image.getWidth() );
+		assertEquals( 80 , frame.image.getHeight() );
+		assertEquals( 3 , frame.generation );
+		assertTrue( frame.max.x > frame.min.x );
+
+		synchronized( system ) {
+			assertEquals( 3 , system.getRecursionCount() );
+			assertEquals( 1 + 10*(1+5+25) , system.getStateSize() );
+		}
+	}
+}
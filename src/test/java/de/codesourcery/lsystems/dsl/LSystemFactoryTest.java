@@ -0,0 +1,74 @@
+package de.codesourcery.lsystems.dsl;
+
+import junit.framework.TestCase;
+import de.codesourcery.lsystems.dsl.execution.LSystemFactory;
+import de.codesourcery.lsystems.dsl.nodes.AST;
+import de.codesourcery.lsystems.dsl.parsing.Parser;
+import de.codesourcery.lsystems.lsystem.DerivationBudget;
+import de.codesourcery.lsystems.lsystem.DerivationMetrics;
+import de.codesourcery.lsystems.lsystem.GenerationCache;
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.Token;
+
+/**
+ * @author Tobias.Gierke@code-sourcery.de
+ */
+public class LSystemFactoryTest extends TestCase {
+
+	private static AST parse(String axiom,String... rules)
+	{
+		final StringBuilder dsl = new StringBuilder( "axiom = \""+axiom+"\"\nrecursionCount = 4" );
+		for ( String rule : rules ) {
+			dsl.append( "\nrule: " ).append( rule );
+		}
+		return new Parser().parse( dsl.toString() );
+	}
+
+	private static String toString(LSystem system)
+	{
+		final StringBuilder result = new StringBuilder();
+		for ( Token tok : system.toTokenStream() ) {
+			result.append( tok );
+		}
+		return result.toString();
+	}
+
+	public void testUpdateRederivesEditedRule()
+	{
+		final LSystemFactory factory = new LSystemFactory();
+		final LSystem system = factory.createLSystem( parse( "FX" , "F -> F[+F]F" , "X -> F-X" ) );
+		system.rewriteRecursively();
+
+		final AST edited = parse( "FX" , "F -> F[+F]F" , "X -> FX[-X]" );
+		assertSame( system , factory.updateLSystem( system , edited ) );
+
+		final LSystem expected = factory.createLSystem( edited );
+		expected.rewriteRecursively();
+		assertEquals( 4 , system.getRecursionCount() );
+		assertEquals( toString( expected ) , toString( system ) );
+	}
+
+	public void testUpdateKeepsSettingsWhenCreatingNewSystem()
+	{
+		final LSystemFactory factory = new LSystemFactory();
+		final LSystem system = factory.createLSystem( parse( "F" , "F -> F[+F]F" ) );
+		final GenerationCache cache = new GenerationCache( 1024*1024 );
+		final DerivationMetrics metrics = new DerivationMetrics();
+		final DerivationBudget budget = DerivationBudget.UNLIMITED.withMaxSymbols( 1000000 );
+		system.setCompactState( true );
+		system.setSeed( 42 );
+		system.setGenerationCache( cache );
+		system.setMetrics( metrics );
+		system.setDerivationBudget( budget );
+
+		final LSystem updated = factory.updateLSystem( system , parse( "FF" , "F -> F[+F]F" ) );
+		assertNotSame( system , updated );
+		assertEquals( 0 , updated.getRecursionCount() );
+		assertTrue( updated.isCompactState() );
+		assertEquals( 42 , updated.getSeed() );
+		assertSame( cache , updated.getGenerationCache() );
+		assertSame( metrics , updated.getMetrics() );
+		assertSame( budget , updated.getDerivationBudget() );
+		assertSame( system.getParameterProvider() , updated.getParameterProvider() );
+	}
+}
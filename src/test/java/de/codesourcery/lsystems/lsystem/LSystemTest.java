@@ -0,0 +1,981 @@
+package de.codesourcery.lsystems.lsystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.rules.SequenceRule;
+import de.codesourcery.lsystems.lsystem.rules.StochasticRule;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Tobias.Gierke@code-sourcery.de
+ */
+public class LSystemTest extends TestCase {
+
+	private static LSystem createPlant()
+	{
+		final LSystem result = new LSystem( ExpressionLexer.parse( "F" ) );
+		result.addRule( RuleGenerator.replaceRule( "F" , "F[+F]F[-F]F" ) );
+		result.setDesiredRecursionCount( 4 );
+		return result;
+	}
+
+	private static String toString(LSystem system)
+	{
+		final StringBuilder result = new StringBuilder();
+		for ( Token tok : system.toTokenStream() ) {
+			result.append( tok );
+		}
+		return result.toString();
+	}
+
+	public void testCompactStateMatchesTokenList()
+	{
+		final LSystem expected = createPlant();
+		expected.rewriteRecursively();
+
+		final LSystem actual = createPlant().setCompactState( true );
+		actual.rewriteRecursively();
+
+		assertEquals( expected.getStateSize() , actual.getStateSize() );
+		assertEquals( toString( expected ) , toString( actual ) );
+
+		// F + - [ ]
+		assertEquals( 5 , actual.getAlphabet().size() );
+	}
+
+	public void testTokenAlphabetInternsByValue()
+	{
+		final Token f1 = ExpressionLexer.parse( "F" ).toList().get(0);
+		final Token f2 = ExpressionLexer.parse( "F" ).toList().get(0);
+		// tokens use identity equality
+		assertFalse( f1.equals( f2 ) );
+
+		final TokenAlphabet alphabet = new TokenAlphabet();
+		assertEquals( alphabet.intern( f1 ) , alphabet.intern( f2 ) );
+		assertSame( f1 , alphabet.get( alphabet.getCode( f2 ) ) );
+
+		final int withParam = alphabet.intern( ExpressionLexer.parse( "F(1)" ).toList().get(0) );
+		assertFalse( withParam == alphabet.getCode( f1 ) );
+		assertEquals( withParam , alphabet.getCode( ExpressionLexer.parse( "F(1)" ).toList().get(0) ) );
+
+		final int numeric = alphabet.intern( new Token( TokenType.FORWARD , "F" , new float[] { 1 } ) );
+		assertEquals( numeric , alphabet.getCode( new Token( TokenType.FORWARD , "F" , new float[] { 1 } ) ) );
+		assertEquals( -1 , alphabet.getCode( new Token( TokenType.FORWARD , "F" , new float[] { 2 } ) ) );
+		assertEquals( 3 , alphabet.size() );
+	}
+
+	public void testResetInCompactMode()
+	{
+		final LSystem system = createPlant().setCompactState( true );
+		system.rewriteRecursively();
+		system.reset();
+		assertEquals( 1 , system.getSymbols().size() );
+		assertEquals( "F" , toString( system ) );
+	}
+
+	public void testRuleIndexPreservesRuleOrder()
+	{
+		final RewritingRule custom = new RewritingRule() {
+
+			@Override
+			public String getName() {
+				return "custom";
+			}
+
+			@Override
+			public boolean matches(RewritingContext context, ParameterProvider provider) {
+				return context.peek().value.equals("F") || context.peek().value.equals("X");
+			}
+
+			@Override
+			public void rewrite(RewritingContext context, ParameterProvider provider) {
+				context.next();
+				context.write( ExpressionLexer.parse( "-" ) );
+			}
+		};
+
+		final LSystem system = new LSystem( ExpressionLexer.parse( "FX+" ) );
+		system.addRule( RuleGenerator.replaceRule( "X" , "F" ) );
+		system.addRule( custom );
+		system.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		system.addRule( RuleGenerator.replaceRule( Token.TokenType.ROTATE_LEFT , "[" ) );
+
+		final RuleIndex index = system.getRuleIndex();
+		assertFalse( index.isIndexed( new Token( Token.TokenType.FORWARD , "F" ) ) );
+		assertTrue( index.isIndexed( new Token( Token.TokenType.CHARACTERS , "X" ) ) );
+
+		system.rewrite();
+		assertEquals( "-F[" , toString( system ) );
+	}
+
+	public void testParallelRewriteMatchesSequential()
+	{
+		final LSystem expected = createPlant().setCompactState( true );
+		expected.rewriteRecursively();
+
+		final LSystem actual = createPlant().setCompactState( true );
+		final ParallelRewriter rewriter = new ParallelRewriter( new ForkJoinPool( 4 ) , 7 );
+		for ( int i = 0 ; i < actual.getDesiredRecursionCount() ; i++ ) 
+		{
+			final CompiledRuleSet rules = actual.getCompiledRules();
+			assertNotNull( rules );
+			final SymbolBuffer next = rewriter.rewrite( actual.getSymbols() , rules );
+			actual.rewrite();
+			assertEquals( toString( actual.getSymbols() ) , toString( next ) );
+		}
+		assertEquals( toString( expected.getSymbols() ) , toString( actual.getSymbols() ) );
+	}
+
+	public void testParallelRewriteChecksBudgetInEveryChunk()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) ).setCompactState( true );
+		system.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		system.setDesiredRecursionCount( 17 );
+		system.rewriteRecursively();
+		final CompiledRuleSet rules = system.getCompiledRules();
+
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try 
+		{
+			final ParallelRewriter rewriter = new ParallelRewriter( pool , DerivationMonitor.CHECK_INTERVAL * 2 );
+			final DerivationBudget budget = DerivationBudget.UNLIMITED.withMaxSymbols( 3 * DerivationMonitor.CHECK_INTERVAL );
+			try {
+				rewriter.rewrite( system.getSymbols() , rules , 0 , 17 , new DerivationMonitor( budget , null , null , 18 , 4 ) , null );
+				fail("Should have failed");
+			} catch(DerivationAbortedException e) {
+				assertEquals( DerivationAbortedException.Reason.MAX_SYMBOLS_EXCEEDED , e.getReason() );
+			}
+
+			final CancellationToken token = new CancellationToken();
+			token.cancel();
+			try {
+				rewriter.rewrite( system.getSymbols() , rules , 0 , 17 , new DerivationMonitor( null , token , null , 18 , 4 ) , null );
+				fail("Should have failed");
+			} catch(DerivationAbortedException e) {
+				assertEquals( DerivationAbortedException.Reason.CANCELLED , e.getReason() );
+			}
+
+			final SymbolBuffer next = rewriter.rewrite( system.getSymbols() , rules , 0 , 17 , new DerivationMonitor( null , new CancellationToken() , null , 18 , 4 ) , null );
+			assertEquals( 2 * system.getStateSize() , next.size() );
+		} 
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testParallelRewriteReportsProgress()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) ).setCompactState( true );
+		system.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		system.setDesiredRecursionCount( 17 );
+		system.rewriteRecursively();
+
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicBoolean overlapping = new AtomicBoolean();
+		final AtomicLong lastProduced = new AtomicLong();
+		final DerivationListener listener = new DerivationListener() 
+		{
+			@Override
+			public void progress(int generation, long symbolsProduced, double symbolsPerSecond) 
+			{
+				if ( active.incrementAndGet() > 1 ) {
+					overlapping.set( true );
+				}
+				assertEquals( 18 , generation );
+				calls.incrementAndGet();
+				lastProduced.set( symbolsProduced );
+				active.decrementAndGet();
+			}
+
+			@Override
+			public void generationFinished(int generation, long size, long elapsedNanos) {
+			}
+		};
+
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try 
+		{
+			final ParallelRewriter rewriter = new ParallelRewriter( pool , DerivationMonitor.CHECK_INTERVAL * 2 );
+			rewriter.rewrite( system.getSymbols() , system.getCompiledRules() , 0 , 17 , new DerivationMonitor( null , null , listener , 18 , 4 ) , null );
+		} 
+		finally {
+			pool.shutdown();
+		}
+		// 2^18 symbols, one report per CHECK_INTERVAL symbols at most
+		assertTrue( "Only "+calls.get()+" progress reports" , calls.get() > 4 );
+		assertTrue( calls.get() <= ( 1 << 18 ) / DerivationMonitor.CHECK_INTERVAL );
+		assertTrue( lastProduced.get() <= ( 1 << 18 ) );
+		assertFalse( overlapping.get() );
+	}
+
+	private static String toString(SymbolBuffer buffer) {
+		return Arrays.toString( buffer.toArray() );
+	}
+
+	public void testDerivationCursorMatchesRewriting()
+	{
+		final LSystem system = createPlant();
+		system.addRule( RuleGenerator.replaceRule( Token.TokenType.ROTATE_LEFT , "+X" ) );
+		system.rewriteRecursively();
+
+		final StringBuilder actual = new StringBuilder();
+		for ( Token tok : system.createDerivationCursor() ) {
+			actual.append( tok );
+		}
+		assertEquals( toString( system ) , actual.toString() );
+	}
+
+	public void testGrowthAnalyzerPredictsExactSize()
+	{
+		final LSystem system = createPlant();
+		for ( int i = 0 ; i < 5 ; i++ ) 
+		{
+			assertEquals( system.getStateSize() , system.predictStateSize( i ) );
+			system.rewrite();
+		}
+
+		// F -> F[+F]F[-F]F: #F(n) = 5^n , every F produces 4 brackets and 2 rotations 
+		final GrowthAnalyzer analyzer = system.getGrowthAnalyzer();
+		final Token forward = new Token( Token.TokenType.FORWARD , "F" );
+		assertEquals( BigInteger.valueOf(5).pow( 300 ) , analyzer.getSymbolCount( forward , 300 ) );
+		assertEquals( analyzer.getLength( 300 ) , BigInteger.valueOf(5).pow( 300 ).subtract( BigInteger.ONE ).divide( BigInteger.valueOf(4) ).multiply( BigInteger.valueOf(6) ).add( BigInteger.valueOf(5).pow(300) ) );
+	}
+
+	public void testDerivationDagMatchesRewriting()
+	{
+		final LSystem system = createPlant();
+		system.rewriteRecursively();
+
+		final DerivationDag dag = system.createDerivationDag();
+		assertEquals( system.getStateSize() , dag.length() );
+
+		final StringBuilder actual = new StringBuilder();
+		for ( Token tok : dag.toTokenStream() ) {
+			actual.append( tok );
+		}
+		assertEquals( toString( system ) , actual.toString() );
+
+		for ( int i = 0 ; i < system.getStateSize() ; i++ ) {
+			assertEquals( system.state.get( i ).toString() , dag.get( i ).toString() );
+		}
+	}
+
+	public void testDerivationDagHandlesHugeGenerations()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		system.addRule( RuleGenerator.replaceRule( "F" , "F+F--F+F" ) );
+		system.setDesiredRecursionCount( 30 );
+
+		final DerivationDag dag = system.createDerivationDag();
+		assertEquals( system.predictStateSize( 30 ) , dag.length() );
+		assertEquals( "F" , dag.get( dag.length() - 1 ).toString() );
+		assertEquals( "+" , dag.get( 1 ).toString() );
+	}
+
+	public void testOffHeapStateMatchesTokenList() throws IOException
+	{
+		final LSystem expected = createPlant();
+		expected.rewriteRecursively();
+
+		final LSystem actual = createPlant();
+		actual.setOffHeapStorage( new File( System.getProperty("java.io.tmpdir") ) );
+		try 
+		{
+			actual.rewriteRecursively();
+			assertEquals( expected.getStateSize() , actual.getStateSizeAsLong() );
+			assertEquals( toString( expected ) , toString( actual ) );
+		} finally {
+			actual.setOffHeapStorage( null );
+		}
+	}
+
+	public void testMappedSymbolBufferGrowsWithData() throws IOException
+	{
+		final MappedSymbolBuffer buffer = new MappedSymbolBuffer( new File( System.getProperty("java.io.tmpdir") ) );
+		final File file = buffer.getFile();
+		try 
+		{
+			for ( int i = 0 ; i < 100 ; i++ ) {
+				buffer.add( i );
+			}
+			assertEquals( 4L << 16 , file.length() );
+
+			final int[] symbols = new int[ 200000 ];
+			for ( int i = 0 ; i < symbols.length ; i++ ) {
+				symbols[i] = i+100;
+			}
+			buffer.addAll( symbols );
+			assertEquals( 4L << 18 , file.length() );
+			assertEquals( 200100 , buffer.size() );
+			for ( int i = 0 ; i < buffer.size() ; i++ ) {
+				assertEquals( i , buffer.get( i ) );
+			}
+		} finally {
+			buffer.close();
+		}
+		assertFalse( file.exists() );
+	}
+
+	public void testRederiveReusesUnaffectedExpansions()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "X-Y" ) );
+		final RewritingRule xRule = RuleGenerator.replaceRule( "X" , "F[+X]F" );
+		system.addRule( xRule );
+		system.addRule( RuleGenerator.replaceRule( "Y" , "F-Y" ) );
+		system.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		system.setDesiredRecursionCount( 6 );
+		system.rederive();
+
+		system.replaceRule( xRule , RuleGenerator.replaceRule( "X" , "F[-X][+X]" ) );
+		system.rederive();
+		assertTrue( system.createDerivationDag().getReusedNodeCount() > 0 );
+
+		final LSystem expected = new LSystem( ExpressionLexer.parse( "X-Y" ) );
+		expected.addRule( RuleGenerator.replaceRule( "X" , "F[-X][+X]" ) );
+		expected.addRule( RuleGenerator.replaceRule( "Y" , "F-Y" ) );
+		expected.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		expected.setDesiredRecursionCount( 6 );
+		expected.rewriteRecursively();
+
+		assertEquals( expected.getRecursionCount() , system.getRecursionCount() );
+		assertEquals( toString( expected ) , toString( system ) );
+	}
+
+	public void testRederiveUsesGenerationCacheAndMetrics()
+	{
+		final GenerationCache cache = new GenerationCache( 16*1024*1024 );
+		final DerivationMetrics metrics = new DerivationMetrics();
+		final LSystem system = createPlant();
+		system.setGenerationCache( cache );
+		system.setMetrics( metrics );
+		system.rederive();
+		assertEquals( 1 , cache.size() );
+		assertEquals( 1 , metrics.getGenerationsDerived() );
+		assertEquals( system.getStateSize() , metrics.getLastGenerationSize() );
+
+		final LSystem other = createPlant();
+		other.setGenerationCache( cache );
+		other.jumpToGeneration( 4 );
+		assertEquals( toString( system ) , toString( other ) );
+		assertEquals( 1 , cache.size() );
+	}
+
+	public void testRederiveChecksBudgetAndCancellation()
+	{
+		final LSystem system = createPlant();
+		final RewritingRule rule = system.getRules().get( 0 );
+		system.rederive();
+		final String expected = toString( system );
+
+		system.setDerivationBudget( DerivationBudget.UNLIMITED.withMaxSymbols( 2 * system.getStateSize() ) );
+		final RewritingRule faster = RuleGenerator.replaceRule( "F" , "F[+F]F[-F]FFF" );
+		system.replaceRule( rule , faster );
+		try {
+			system.rederive();
+			fail("Should have failed");
+		} catch(DerivationAbortedException e) {
+			assertEquals( DerivationAbortedException.Reason.MAX_SYMBOLS_EXCEEDED , e.getReason() );
+		}
+		assertEquals( expected , toString( system ) );
+
+		system.setDerivationBudget( null );
+		final CancellationToken token = new CancellationToken();
+		token.cancel();
+		system.setCancellationToken( token );
+		try {
+			system.rederive();
+			fail("Should have failed");
+		} catch(DerivationAbortedException e) {
+			assertEquals( DerivationAbortedException.Reason.CANCELLED , e.getReason() );
+		}
+		assertEquals( expected , toString( system ) );
+
+		system.setCancellationToken( null );
+		system.rederive();
+		assertEquals( 4 , system.getRecursionCount() );
+		assertTrue( system.getStateSize() > 2 * expected.length() );
+	}
+
+	public void testNoSizePredictionForStateOfOtherRules()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		final RewritingRule slow = RuleGenerator.replaceRule( "F" , "FF" );
+		system.addRule( slow );
+		system.setDesiredRecursionCount( 3 );
+		system.rewriteRecursively();
+		assertEquals( 8 , system.getStateSize() );
+
+		// generation 4 of the axiom would have 10^4 symbols, the current state only grows to 80
+		system.replaceRule( slow , RuleGenerator.replaceRule( "F" , "FFFFFFFFFF" ) );
+		system.setDerivationBudget( DerivationBudget.UNLIMITED.withMaxSymbols( 1000 ) );
+		system.rewrite();
+		assertEquals( 80 , system.getStateSize() );
+
+		// continuing without reset() does not start at the axiom either
+		system.setDesiredRecursionCount( 1 );
+		system.rewriteRecursively();
+		assertEquals( 800 , system.getStateSize() );
+	}
+
+	public void testSequenceRules()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F+F-F+F" ) );
+		system.addRule( RuleGenerator.replaceSequenceRule( "F+F" , "G" ) );
+		system.addRule( RuleGenerator.replaceSequenceRule( "F-F+" , "H" ) );
+		system.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		system.rewrite();
+		assertEquals( "G-G" , toString( system ) );
+
+		final LSystem compact = new LSystem( ExpressionLexer.parse( "F-F+F" ) );
+		compact.setCompactState( true );
+		compact.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		compact.addRule( RuleGenerator.replaceSequenceRule( "F-F+" , "H" ) );
+		compact.addRule( RuleGenerator.replaceSequenceRule( "-F+F" , "G" ) );
+		compact.rewrite();
+		assertEquals( "FFG" , toString( compact ) );
+	}
+
+	public void testReplaceRuleWithSeveralSymbols()
+	{
+		final RewritingRule rule = RuleGenerator.replaceRule( "AB" , "XAB" );
+		assertTrue( rule instanceof SequenceRule );
+
+		final LSystem system = new LSystem( ExpressionLexer.parse( "ABAAB" ) );
+		system.addRule( rule );
+		system.setDesiredRecursionCount( 2 );
+		system.rewriteRecursively();
+		assertEquals( "XXABAXXAB" , toString( system ) );
+
+		try {
+			RuleGenerator.replaceRule( "" , "X" );
+			fail("Should've failed");
+		} catch(IllegalArgumentException e) {
+			// ok
+		}
+	}
+
+	public void testSequenceRuleMatchesInsideRunOfPlainSymbols()
+	{
+		assertEquals( 3 , ExpressionLexer.parse( "AAB" ).toList().size() );
+
+		final LSystem system = new LSystem( ExpressionLexer.parse( "AAB" ) );
+		system.addRule( RuleGenerator.replaceSequenceRule( "AB" , "X" ) );
+		system.rewrite();
+		assertEquals( "AX" , toString( system ) );
+
+		// not a SequenceRule, so the engine has to rely on SequenceRule#matches() looking ahead
+		final RewritingRule sequence = RuleGenerator.replaceSequenceRule( "AB" , "X" );
+		final RewritingRule wrapper = new RewritingRule() {
+
+			@Override
+			public boolean matches(RewritingContext context, ParameterProvider provider) {
+				return sequence.matches( context , provider );
+			}
+
+			@Override
+			public void rewrite(RewritingContext context, ParameterProvider provider) {
+				sequence.rewrite( context , provider );
+			}
+
+			@Override
+			public String getName() {
+				return null;
+			}
+		};
+		final LSystem wrapped = new LSystem( ExpressionLexer.parse( "AABA" ) );
+		wrapped.addRule( wrapper );
+		wrapped.rewrite();
+		assertEquals( "AXA" , toString( wrapped ) );
+
+		final LSystem compact = new LSystem( ExpressionLexer.parse( "AABA" ) ).setCompactState( true );
+		compact.addRule( wrapper );
+		compact.rewrite();
+		assertEquals( "AXA" , toString( compact ) );
+	}
+
+	public void testCompiledParameterExpressions()
+	{
+		final Token token = ExpressionLexer.parse( "F(${len}*2+(1-0.5)/-2)" ).toList().get(0);
+		assertEquals( TokenType.FORWARD , token.type );
+		assertEquals( 1 , token.getParameterCount() );
+
+		final ParameterProvider provider = new ParameterProvider() {
+
+			@Override
+			public String getParameter(Token tok, String identifier) {
+				return "len".equals( identifier ) ? "3" : null;
+			}
+		};
+		assertEquals( 5.75f , token.floatParameter( 0 , provider ) , 0.0001f );
+
+		final NumericParameterProvider numericProvider = new NumericParameterProvider() {
+
+			@Override
+			public String getParameter(Token tok, String identifier) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public double getNumericParameter(Token tok, String identifier) {
+				return 4;
+			}
+		};
+		assertEquals( 7.75 , token.doubleParameter( 0 , numericProvider ) , 0.0001 );
+		assertEquals( 3 , ExpressionLexer.parse( "+(1+2)" ).toList().get(0).intParameter( 0 , provider ) );
+	}
+
+	public void testParametricRules()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "A(8)" ) );
+		system.addRule( RuleGenerator.parametricRule( "A(l)" , "F(${l})[+A(${l}*0.5)]-A(${l}-1)" ) );
+		system.setDesiredRecursionCount( 2 );
+		system.rewriteRecursively();
+
+		assertEquals( "F(8.0)[+F(4.0)[+A(2.0)]-A(3.0)]-F(7.0)[+A(3.5)]-A(6.0)" , toString( system ) );
+		final Token first = system.toTokenStream().next();
+		assertTrue( first.isNumeric() );
+		assertEquals( 8f , first.floatParameter( 0 , system.getParameterProvider() ) );
+	}
+
+	public void testParametricRulesKeepListState() throws IOException
+	{
+		final LSystem compact = new LSystem( ExpressionLexer.parse( "A(8)" ) );
+		compact.setCompactState( true );
+		compact.addRule( RuleGenerator.replaceRule( "B" , "BB" ) );
+		compact.rewrite();
+		assertTrue( compact.isCompactState() );
+
+		compact.addRule( RuleGenerator.parametricRule( "A(l)" , "F(${l})[+A(${l}*0.5)]-A(${l}-1)" ) );
+		assertFalse( compact.isCompactState() );
+		assertNull( compact.getAlphabet() );
+		assertEquals( 1 , compact.getRecursionCount() );
+		assertEquals( "A(8)" , toString( compact ) );
+
+		final LSystem expected = new LSystem( ExpressionLexer.parse( "A(8)" ) );
+		expected.addRule( RuleGenerator.parametricRule( "A(l)" , "F(${l})[+A(${l}*0.5)]-A(${l}-1)" ) );
+		expected.setCompactState( true );
+		expected.setOffHeapStorage( new File( System.getProperty( "java.io.tmpdir" ) ) );
+		assertFalse( expected.isCompactState() );
+		assertFalse( expected.isOffHeapState() );
+
+		expected.setDesiredRecursionCount( 2 );
+		expected.rewriteRecursively();
+		compact.rewrite();
+		assertEquals( "F(8.0)[+F(4.0)[+A(2.0)]-A(3.0)]-F(7.0)[+A(3.5)]-A(6.0)" , toString( expected ) );
+		assertEquals( "F(8.0)[+A(4.0)]-A(7.0)" , toString( compact ) );
+	}
+
+	public void testStochasticRuleHonorsProbabilities()
+	{
+		final int count = 3000;
+		final RewritingRule[] alternatives = {
+			RuleGenerator.replaceRule( TokenType.FORWARD , "W" ),
+			RuleGenerator.replaceRule( TokenType.FORWARD , "X" ),
+			RuleGenerator.replaceRule( TokenType.FORWARD , "Y" ),
+			RuleGenerator.replaceRule( TokenType.FORWARD , "Z" ) };
+
+		final RewritingRule rule = new StochasticRule( TokenType.FORWARD , alternatives , new float[] { 0.1f , 0.2f , 0.7f , 0f } ) {
+
+			private int draws;
+
+			@Override
+			protected float getRandomNumber(RewritingContext context) {
+				return ( draws++ + 0.5f ) / count;
+			}
+		};
+
+		final StringBuilder axiom = new StringBuilder();
+		for ( int i = 0 ; i < count ; i++ ) {
+			axiom.append( i > 0 ? "-F" : "F" );
+		}
+		final LSystem system = new LSystem( ExpressionLexer.parse( axiom.toString() ) );
+		system.addRule( rule );
+		system.rewrite();
+
+		final int[] histogram = new int[4];
+		for ( Token tok : system.toTokenStream() )
+		{
+			if ( tok.type == TokenType.CHARACTERS ) {
+				histogram[ tok.value.charAt(0) - 'W' ]++;
+			}
+		}
+		assertEquals( 300 , histogram[0] , 2 );
+		assertEquals( 600 , histogram[1] , 2 );
+		assertEquals( 2100 , histogram[2] , 2 );
+		assertEquals( 0 , histogram[3] );
+	}
+
+	@SuppressWarnings("deprecation")
+	public void testStochasticRuleSupportsLegacySubclasses()
+	{
+		final RewritingRule[] alternatives = {
+			RuleGenerator.replaceRule( TokenType.FORWARD , "W" ),
+			RuleGenerator.replaceRule( TokenType.FORWARD , "X" ) };
+
+		final StochasticRule legacyRandom = new StochasticRule( TokenType.FORWARD , alternatives ) {
+
+			@Override
+			protected float getRandomNumber() {
+				return 0.75f;
+			}
+		};
+		assertEquals( TokenType.FORWARD , legacyRandom.getExpectedType() );
+
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F-F" ) );
+		system.addRule( legacyRandom );
+		system.rewrite();
+		assertEquals( "X-X" , toString( system ) );
+
+		final StochasticRule legacyMatches = new StochasticRule( TokenType.FORWARD , alternatives ) {
+
+			@Override
+			public boolean matches(RewritingContext context, ParameterProvider provider) {
+				return context.peek().type == TokenType.ROTATE_RIGHT;
+			}
+		};
+		assertNull( legacyMatches.getExpectedType() );
+
+		final LSystem other = new LSystem( ExpressionLexer.parse( "F-F" ) );
+		other.addRule( legacyMatches );
+		other.rewrite();
+		assertEquals( 'F' , toString( other ).charAt(0) );
+		assertEquals( 'F' , toString( other ).charAt(2) );
+		assertEquals( 3 , toString( other ).length() );
+
+		// the legacy hook has a working default for subclasses calling super
+		final StochasticRule legacySuper = new StochasticRule( TokenType.FORWARD , alternatives ) {
+
+			@Override
+			protected float getRandomNumber() {
+				final float result = super.getRandomNumber();
+				assertTrue( result >= 0 && result < 1 );
+				return result;
+			}
+		};
+		final LSystem third = new LSystem( ExpressionLexer.parse( "F-F" ) );
+		third.addRule( legacySuper );
+		third.rewrite();
+		assertEquals( 3 , toString( third ).length() );
+	}
+
+	private static LSystem createStochasticPlant()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		system.addRule( new StochasticRule( TokenType.FORWARD , new RewritingRule[] {
+				RuleGenerator.replaceRule( TokenType.FORWARD , "F[+F]F" ),
+				RuleGenerator.replaceRule( TokenType.FORWARD , "F[-F]F" ),
+				RuleGenerator.replaceRule( TokenType.FORWARD , "FF" ) } ) );
+		system.setSeed( 4711 );
+		system.setDesiredRecursionCount( 11 );
+		return system;
+	}
+
+	public void testStochasticRewritingIsReproducible()
+	{
+		final LSystem sequential = createStochasticPlant();
+		sequential.rewriteRecursively();
+
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try
+		{
+			final LSystem parallel = createStochasticPlant();
+			parallel.setCompactState( true );
+			parallel.setForkJoinPool( pool );
+			parallel.rewriteRecursively();
+			assertTrue( parallel.getStateSize() > ParallelRewriter.DEFAULT_CHUNK_SIZE );
+			assertEquals( toString( sequential ) , toString( parallel ) );
+		} finally {
+			pool.shutdown();
+		}
+
+		final StringBuilder lazy = new StringBuilder();
+		for ( Token tok : createStochasticPlant().createDerivationCursor() ) {
+			lazy.append( tok );
+		}
+		assertEquals( toString( sequential ) , lazy.toString() );
+
+		final LSystem otherSeed = createStochasticPlant();
+		otherSeed.setSeed( 42 );
+		otherSeed.rewriteRecursively();
+		assertFalse( toString( sequential ).equals( toString( otherSeed ) ) );
+	}
+
+	public void testJumpToCachedGeneration()
+	{
+		final int[] applied = new int[1];
+		final RewritingRule delegate = RuleGenerator.replaceRule( "F" , "F[+F]F[-F]F" );
+		final RewritingRule countingRule = new RewritingRule() {
+
+			@Override
+			public boolean matches(RewritingContext context, ParameterProvider provider) {
+				return delegate.matches( context , provider );
+			}
+
+			@Override
+			public void rewrite(RewritingContext context, ParameterProvider provider) {
+				applied[0]++;
+				delegate.rewrite( context , provider );
+			}
+
+			@Override
+			public String getName() {
+				return null;
+			}
+
+			@Override
+			public String toString() {
+				return delegate.toString();
+			}
+		};
+
+		final LSystem expected = createPlant();
+		expected.rewriteRecursively();
+
+		final GenerationCache cache = new GenerationCache( 16*1024*1024 );
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		system.addRule( countingRule );
+		system.setCompactState( true );
+		system.setGenerationCache( cache );
+		system.jumpToGeneration( 4 );
+		assertEquals( toString( expected ) , toString( system ) );
+		assertEquals( 4 , cache.size() );
+
+		final int appliedAfterFirstPass = applied[0];
+		system.jumpToGeneration( 1 );
+		assertEquals( "F[+F]F[-F]F" , toString( system ) );
+		system.jumpToGeneration( 4 );
+		assertEquals( toString( expected ) , toString( system ) );
+
+		// second system with same grammar re-uses cached generations
+		final LSystem other = new LSystem( ExpressionLexer.parse( "F" ) );
+		other.addRule( countingRule );
+		other.setGenerationCache( cache );
+		other.jumpToGeneration( 3 );
+		other.rewrite();
+		assertEquals( toString( expected ) , toString( other ) );
+		assertEquals( appliedAfterFirstPass + 125 , applied[0] );
+
+		// different seed is a different lineage
+		other.setSeed( 1 );
+		other.jumpToGeneration( 2 );
+		assertEquals( appliedAfterFirstPass + 125 + 6 , applied[0] );
+	}
+
+	public void testRepeatedRewriteRecursivelyDoesNotPolluteSharedCache()
+	{
+		final GenerationCache cache = new GenerationCache( 16*1024*1024 );
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) ).setCompactState( true );
+		system.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		system.setDesiredRecursionCount( 2 );
+		system.setGenerationCache( cache );
+		system.rewriteRecursively();
+		system.rewriteRecursively();
+		assertEquals( 16 , system.getStateSize() );
+
+		final LSystem other = new LSystem( ExpressionLexer.parse( "F" ) ).setCompactState( true );
+		other.addRule( RuleGenerator.replaceRule( "F" , "FF" ) );
+		other.setGenerationCache( cache );
+		other.jumpToGeneration( 1 );
+		assertEquals( 2 , other.getStateSize() );
+		other.jumpToGeneration( 2 );
+		assertEquals( 4 , other.getStateSize() );
+
+		// restored generations do not share the cache's alphabet
+		assertNotSame( cache.getAlphabet( other.getFingerprint() , other.getSeed() ) , other.getAlphabet() );
+		other.rewrite();
+		assertEquals( "FFFFFFFF" , toString( other ) );
+		assertEquals( 8 , cache.get( other.getFingerprint() , other.getSeed() , 3 ).size() );
+	}
+
+	public void testDerivationBudget()
+	{
+		// size of the plant is known in advance, nothing is derived at all
+		final LSystem plant = createPlant();
+		plant.setDerivationBudget( DerivationBudget.UNLIMITED.withMaxSymbols( 1000 ) );
+		try {
+			plant.rewriteRecursively();
+			fail("Should have failed");
+		} 
+		catch(DerivationAbortedException e) {
+			assertEquals( DerivationAbortedException.Reason.MAX_SYMBOLS_EXCEEDED , e.getReason() );
+			assertEquals( 4 , e.getGeneration() );
+		}
+		assertEquals( 0 , plant.getRecursionCount() );
+
+		// size of stochastic plant is only known while rewriting
+		final int[] finished = { -1 };
+		final CancellationToken token = new CancellationToken();
+		final LSystem system = createStochasticPlant();
+		system.setDerivationListener( new DerivationListener() {
+
+			@Override
+			public void progress(int generation, long symbolsProduced, double symbolsPerSecond) {
+				if ( generation == 10 ) {
+					token.cancel();
+				}
+			}
+
+			@Override
+			public void generationFinished(int generation, long size, long elapsedNanos) {
+				finished[0] = generation;
+			}
+		});
+		system.setCancellationToken( token );
+		try {
+			system.rewriteRecursively();
+			fail("Should have failed");
+		} 
+		catch(DerivationAbortedException e) {
+			assertEquals( DerivationAbortedException.Reason.CANCELLED , e.getReason() );
+			assertEquals( 10 , e.getGeneration() );
+		}
+		assertEquals( 9 , system.getRecursionCount() );
+
+		system.reset();
+		system.setCancellationToken( null );
+		system.setDerivationBudget( DerivationBudget.UNLIMITED.withMaxSymbols( 20000 ) );
+		try {
+			system.rewriteRecursively();
+			fail("Should have failed");
+		} 
+		catch(DerivationAbortedException e) {
+			assertEquals( DerivationAbortedException.Reason.MAX_SYMBOLS_EXCEEDED , e.getReason() );
+			assertEquals( system.getRecursionCount()+1 , e.getGeneration() );
+		}
+		assertEquals( finished[0] , system.getRecursionCount() );
+		assertTrue( system.getStateSize() <= 20000 );
+	}
+
+	public void testMetrics()
+	{
+		final DerivationMetrics metrics = new DerivationMetrics();
+		final LSystem system = createPlant();
+		system.setMetrics( metrics );
+		system.rewriteRecursively();
+
+		final DerivationMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals( 4 , snapshot.generationsDerived );
+		assertEquals( 4 , snapshot.generations.size() );
+		assertEquals( system.getStateSize() , snapshot.getLastGeneration().size );
+		assertEquals( system.getStateSize() / (double) snapshot.generations.get(2).size , snapshot.getLastGeneration().growthFactor , 1e-9 );
+		assertEquals( Long.valueOf( 1+5+25+125 ) , snapshot.ruleMatches.get( system.getRules().get(0) ) );
+		assertEquals( 1+5+25+125 , metrics.getTotalRuleMatches() );
+		assertEquals( 1 , metrics.getRuleMatchCounts().length );
+
+		metrics.reset();
+		assertEquals( 0 , metrics.snapshot().generations.size() );
+	}
+
+	public void testMetricsCountCompiledRewriting() throws IOException
+	{
+		final DerivationMetrics expected = new DerivationMetrics();
+		final LSystem sequential = createPlant().setCompactState( true );
+		sequential.setDesiredRecursionCount( 8 );
+		sequential.setMetrics( expected );
+		sequential.rewriteRecursively();
+		assertEquals( (long) ( Math.pow( 5 , 8 ) - 1 ) / 4 , expected.getTotalRuleMatches() );
+
+		final DerivationMetrics parallelMetrics = new DerivationMetrics();
+		final LSystem parallel = createPlant().setCompactState( true );
+		parallel.setDesiredRecursionCount( 8 );
+		parallel.setMetrics( parallelMetrics );
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		parallel.setForkJoinPool( pool );
+		try {
+			parallel.rewriteRecursively();
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue( parallel.getStateSize() / 5 >= ParallelRewriter.DEFAULT_CHUNK_SIZE );
+		assertEquals( expected.getTotalRuleMatches() , parallelMetrics.getTotalRuleMatches() );
+		assertEquals( Long.valueOf( expected.getTotalRuleMatches() ) , parallelMetrics.snapshot().ruleMatches.get( parallel.getRules().get(0) ) );
+
+		final DerivationMetrics offHeapMetrics = new DerivationMetrics();
+		final LSystem offHeap = createPlant();
+		offHeap.setDesiredRecursionCount( 8 );
+		offHeap.setMetrics( offHeapMetrics );
+		offHeap.setOffHeapStorage( new File( System.getProperty("java.io.tmpdir") ) );
+		try {
+			offHeap.rewriteRecursively();
+		} finally {
+			offHeap.setOffHeapStorage( null );
+		}
+		assertEquals( expected.getTotalRuleMatches() , offHeapMetrics.getTotalRuleMatches() );
+		assertEquals( Arrays.asList( expected.getRuleMatchCounts() ) , Arrays.asList( offHeapMetrics.getRuleMatchCounts() ) );
+	}
+
+	public void testBracketIndex()
+	{
+		// positions:                                       0123456789012
+		final LSystem system = new LSystem( ExpressionLexer.parse( "W[X[Y]Z]W[X]Y" ) );
+		final BracketIndex index = system.getBracketIndex();
+		assertEquals( 13 , index.size() );
+		assertEquals( 7 , index.getMatch( 1 ) );
+		assertEquals( 1 , index.getMatch( 7 ) );
+		assertEquals( 5 , index.getMatch( 3 ) );
+		assertEquals( BracketIndex.NONE , index.getMatch( 0 ) );
+		assertTrue( index.isPush( 9 ) );
+		assertTrue( index.isPop( 11 ) );
+
+		assertEquals( 8 , index.getRightNeighbour( 0 ) );
+		assertEquals( 12 , index.getRightNeighbour( 8 ) );
+		assertEquals( 6 , index.getRightNeighbour( 2 ) );
+		assertEquals( BracketIndex.NONE , index.getRightNeighbour( 6 ) );
+		assertEquals( BracketIndex.NONE , index.getRightNeighbour( 12 ) );
+		assertEquals( 8 , index.getLeftNeighbour( 12 ) );
+		assertEquals( 2 , index.getLeftNeighbour( 6 ) );
+		assertEquals( 2 , index.getLeftNeighbour( 4 ) );
+		assertEquals( 0 , index.getLeftNeighbour( 2 ) );
+		assertEquals( BracketIndex.NONE , index.getLeftNeighbour( 0 ) );
+
+		// rules may use the index to look at neighbours
+		final RewritingRule rule = new ContextSensitiveRule() {
+
+			@Override
+			public boolean matches(RewritingContext context, ParameterProvider provider)
+			{
+				final PositionalRewritingContext ctx = (PositionalRewritingContext) context;
+				final int left = ctx.getBracketIndex().getLeftNeighbour( (int) ctx.getPosition() );
+				return "Y".equals( context.peek().value ) && left != BracketIndex.NONE && "X".equals( ctx.get( left ).value );
+			}
+
+			@Override
+			public void rewrite(RewritingContext context, ParameterProvider provider) {
+				context.next();
+				context.write( ExpressionLexer.parse( "X" ) );
+			}
+
+			@Override
+			public String getName() {
+				return null;
+			}
+		};
+		system.addRule( rule );
+		system.rewrite();
+		assertEquals( "W[X[X]Z]W[X]Y" , toString( system ) );
+
+		final LSystem compact = new LSystem( ExpressionLexer.parse( "W[X[Y]Z]W[X]Y" ) ).setCompactState( true );
+		compact.addRule( rule );
+		compact.rewrite();
+		assertEquals( "W[X[X]Z]W[X]Y" , toString( compact ) );
+		assertEquals( 7 , compact.getBracketIndex().getMatch( 1 ) );
+
+		// lazy derivation cannot provide neighbours
+		try {
+			compact.createDerivationCursor();
+			fail("Should've failed");
+		} catch(IllegalArgumentException e) {
+			// ok
+		}
+	}
+}
@@ -0,0 +1,474 @@
+package de.codesourcery.lsystems.rendering;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EmptyStackException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import de.codesourcery.lsystems.lsystem.ExpressionLexer;
+import de.codesourcery.lsystems.lsystem.LSystem;
+import de.codesourcery.lsystems.lsystem.RuleGenerator;
+import de.codesourcery.lsystems.lsystem.Token;
+import de.codesourcery.lsystems.lsystem.Token.TokenType;
+import de.codesourcery.lsystems.lsystem.TokenSeq;
+import de.codesourcery.lsystems.lsystem.TokenStream;
+import de.codesourcery.lsystems.lsystem.rules.SimpleRule;
+import de.codesourcery.lsystems.rendering.Turtle2D.FloatPolygon;
+
+/**
+ * @author Tobias.Gierke@code-sourcery.de
+ */
+public class LSystemRenderer2DTest extends TestCase {
+
+	protected static final class LineRecorder implements RenderingContext2D
+	{
+		public final MinMaxRenderingContext2D bounds = new MinMaxRenderingContext2D();
+		public int lineCount;
+		public double totalLength;
+
+		@Override
+		public void drawLine(Color color, Vec2 p1, Vec2 p2)
+		{
+			bounds.drawLine( color , p1 , p2 );
+			lineCount++;
+			totalLength += new Vec2( p2 ).minus( p1 ).len();
+		}
+
+		@Override
+		public void drawCircle(Color color, Vec2 center, float radius) {
+			bounds.drawCircle( color , center , radius );
+		}
+
+		@Override
+		public void drawFilledCircle(Color color, Vec2 center, float radius) {
+			bounds.drawFilledCircle( color , center , radius );
+		}
+
+		@Override
+		public void toScreenCoordinates(float modelX, float modelY, Point point) {
+			bounds.toScreenCoordinates( modelX , modelY , point );
+		}
+
+		@Override
+		public void drawPolygon(Color color, FloatPolygon polygon) {
+			bounds.drawPolygon( color , polygon );
+		}
+
+		@Override
+		public void drawFilledPolygon(Color color, FloatPolygon polygon) {
+			bounds.drawFilledPolygon( color , polygon );
+		}
+	}
+
+	protected static final class OperationLog implements RenderingContext2D
+	{
+		public final List<String> operations = new ArrayList<>();
+
+		private static String toString(Color color) {
+			return color == null ? "0" : Integer.toHexString( color.getRGB() );
+		}
+
+		@Override
+		public void drawLine(Color color, Vec2 p1, Vec2 p2) {
+			operations.add( "line "+toString( color )+" "+p1.x+","+p1.y+" "+p2.x+","+p2.y );
+		}
+
+		@Override
+		public void drawCircle(Color color, Vec2 center, float radius) {
+			operations.add( "circle "+toString( color )+" "+center.x+","+center.y+" "+radius );
+		}
+
+		@Override
+		public void drawFilledCircle(Color color, Vec2 center, float radius) {
+			operations.add( "filledCircle "+toString( color )+" "+center.x+","+center.y+" "+radius );
+		}
+
+		@Override
+		public void toScreenCoordinates(float modelX, float modelY, Point point) {
+			throw new UnsupportedOperationException("toScreenCoordinates()");
+		}
+
+		@Override
+		public void drawPolygon(Color color, FloatPolygon polygon) {
+			operations.add( "polygon "+toString( color )+" "+toString( polygon ) );
+		}
+
+		@Override
+		public void drawFilledPolygon(Color color, FloatPolygon polygon) {
+			operations.add( "filledPolygon "+toString( color )+" "+toString( polygon ) );
+		}
+
+		private static String toString(FloatPolygon polygon)
+		{
+			final StringBuilder result = new StringBuilder();
+			for ( int i = 0 ; i < polygon.npoints ; i++ ) {
+				result.append( polygon.xpoints[i] ).append( ',' ).append( polygon.ypoints[i] ).append( ' ' );
+			}
+			return result.toString();
+		}
+	}
+
+	private static LSystem createPlant()
+	{
+		final LSystem result = new LSystem( ExpressionLexer.parse( "F" ) );
+		result.addRule( RuleGenerator.replaceRule( "F" , "F[+F]F[-F][+f-]FF" ) );
+		result.setDesiredRecursionCount( 4 );
+		return result;
+	}
+
+	private static LineRecorder render(LSystem system,boolean optimize)
+	{
+		return render( system , optimize , null );
+	}
+
+	private static LineRecorder render(LSystem system,boolean optimize,ForkJoinPool pool)
+	{
+		final LSystemRenderer2D renderer = new LSystemRenderer2D();
+		renderer.setOptimizePrimitives( optimize );
+		renderer.setForkJoinPool( pool );
+		renderer.setParallelChunkSize( 37 );
+		final LineRecorder result = new LineRecorder();
+		renderer.render( system , result );
+		return result;
+	}
+
+	public void testPeepholeOptimizer()
+	{
+		final List<String> output = new ArrayList<>();
+		final PeepholeOptimizer optimizer = new PeepholeOptimizer( new PrimitiveRenderer() {
+
+			@Override
+			public void renderPrimitive(Primitive primitive) {
+				output.add( primitive.type+( primitive.hasValue ? "("+primitive.value+")" : "" ) );
+			}
+		}, 15 , null );
+
+		final TokenStream stream = new LSystem( ExpressionLexer.parse( "F+-FF[+f-]XF[+F]++-" ) ).toTokenStream();
+		final TokenTranslator translator = new DefaultTokenTranslator();
+		while ( ! stream.eof() ) {
+			optimizer.renderPrimitive( translator.read( stream ) );
+		}
+		optimizer.flush();
+
+		assertEquals( "[FORWARD(3.0), FORWARD(1.0), PUSH_STATE, ROTATE_RIGHT(-15.0), FORWARD(1.0), POP_STATE, ROTATE_RIGHT(-15.0)]" , output.toString() );
+		assertEquals( 19 , optimizer.getInputCount() );
+		assertEquals( 7 , optimizer.getOutputCount() );
+	}
+
+	public void testOptimizedRenderingMatchesLiteralInterpretation()
+	{
+		final LSystem system = createPlant();
+		system.rewriteRecursively();
+
+		final LineRecorder expected = render( system , false );
+		final LineRecorder actual = render( system , true );
+
+		final float epsilon = 1e-3f * ( expected.bounds.max.x - expected.bounds.min.x );
+		assertEquals( expected.bounds.min.x , actual.bounds.min.x , epsilon );
+		assertEquals( expected.bounds.min.y , actual.bounds.min.y , epsilon );
+		assertEquals( expected.bounds.max.x , actual.bounds.max.x , epsilon );
+		assertEquals( expected.bounds.max.y , actual.bounds.max.y , epsilon );
+		assertEquals( expected.totalLength , actual.totalLength , expected.totalLength * 1e-4 );
+		assertTrue( actual.lineCount < expected.lineCount );
+	}
+
+	public void testOptimizerKeepsColorOfNonDrawingBlocks()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "rF[g+f]F[-b]F[+[g]f]F" ) );
+
+		final List<Set<String>> colors = new ArrayList<>();
+		for ( boolean optimize : new boolean[] { false , true } )
+		{
+			final LSystemRenderer2D renderer = new LSystemRenderer2D();
+			renderer.setOptimizePrimitives( optimize );
+			final OperationLog log = new OperationLog();
+			renderer.render( system , log );
+
+			final Set<String> lineColors = new HashSet<>();
+			for ( String operation : log.operations ) {
+				lineColors.add( operation.split(" ")[1] );
+			}
+			colors.add( lineColors );
+		}
+		assertEquals( Collections.singleton( Integer.toHexString( Color.RED.getRGB() ) ) , colors.get(0) );
+		assertEquals( colors.get(0) , colors.get(1) );
+	}
+
+	public void testParallelRenderingMatchesSequentialRendering()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		system.addRule( RuleGenerator.replaceRule( "F" , "F[+F[-gF]F]F[-F][+f-]FF" ) );
+		system.setDesiredRecursionCount( 4 );
+		system.rewriteRecursively();
+
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		try 
+		{
+			for ( boolean optimize : new boolean[] { false , true } )
+			{
+				final LineRecorder expected = render( system , optimize );
+				final LineRecorder actual = render( system , optimize , pool );
+
+				final float epsilon = 1e-3f * ( expected.bounds.max.x - expected.bounds.min.x );
+				assertEquals( expected.bounds.min.x , actual.bounds.min.x , epsilon );
+				assertEquals( expected.bounds.min.y , actual.bounds.min.y , epsilon );
+				assertEquals( expected.bounds.max.x , actual.bounds.max.x , epsilon );
+				assertEquals( expected.bounds.max.y , actual.bounds.max.y , epsilon );
+				assertEquals( expected.totalLength , actual.totalLength , expected.totalLength * 1e-4 );
+				if ( ! optimize ) {
+					assertEquals( expected.lineCount , actual.lineCount );
+				}
+			}
+		} 
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testParallelRenderingOfCompactState()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) ).setCompactState( true );
+		system.addRule( RuleGenerator.replaceRule( "F" , "F[+F[-gF]F]F[-F][+f-]FF" ) );
+		system.setDesiredRecursionCount( 4 );
+		system.rewriteRecursively();
+
+		final LineRecorder expected = render( system , false );
+
+		final AtomicBoolean readByWorker = new AtomicBoolean();
+		final LSystemRenderer2D renderer = new LSystemRenderer2D();
+		renderer.setTokenTranslator( new DefaultTokenTranslator() 
+		{
+			@Override
+			public Primitive read(TokenStream stream, Primitive reuse) 
+			{
+				if ( Thread.currentThread() instanceof ForkJoinWorkerThread ) {
+					readByWorker.set( true );
+				}
+				return super.read( stream , reuse );
+			}
+		});
+		renderer.setParallelChunkSize( 37 );
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+		renderer.setForkJoinPool( pool );
+		final LineRecorder actual = new LineRecorder();
+		try {
+			renderer.render( system , actual );
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue( readByWorker.get() );
+		assertEquals( expected.lineCount , actual.lineCount );
+		assertEquals( expected.totalLength , actual.totalLength , expected.totalLength * 1e-4 );
+		assertEquals( expected.bounds.max.x , actual.bounds.max.x , 1e-3f * ( expected.bounds.max.x - expected.bounds.min.x ) );
+	}
+
+	public void testGeometryBuffer()
+	{
+		final LSystem system = createPlant();
+		system.rewriteRecursively();
+
+		final LineRecorder expected = render( system , true );
+
+		final GeometryBuffer buffer = new GeometryBuffer( 1 );
+		final LSystemRenderer2D renderer = new LSystemRenderer2D();
+		renderer.setOptimizePrimitives( true );
+		renderer.render( system , buffer );
+		buffer.drawFilledCircle( Color.RED , new Vec2( 10 , 20 ) , 5 );
+		final FloatPolygon polygon = new FloatPolygon();
+		polygon.addPoint( new Vec2( 1 , 2 ) );
+		polygon.addPoint( new Vec2( 3 , 4 ) );
+		buffer.drawPolygon( Color.BLUE , polygon );
+		assertEquals( expected.lineCount + 2 , buffer.size() );
+
+		final LineRecorder actual = new LineRecorder();
+		buffer.replay( actual );
+		buffer.replay( actual );
+		assertEquals( 2 * expected.lineCount , actual.lineCount );
+		assertEquals( 2 * expected.totalLength , actual.totalLength , expected.totalLength * 1e-6 );
+
+		final int last = buffer.size() - 1;
+		assertEquals( GeometryBuffer.POLYGON , buffer.getKind( last ) );
+		assertEquals( Color.BLUE.getRGB() , buffer.getColor( last ) );
+		assertEquals( 3f , buffer.getX2( last ) );
+		assertEquals( GeometryBuffer.FILLED_CIRCLE , buffer.getKind( last - 1 ) );
+
+		final Vec2 min = new Vec2();
+		final Vec2 max = new Vec2();
+		assertTrue( buffer.getBounds( min , max ) );
+		expected.bounds.drawFilledCircle( Color.RED , new Vec2( 10 , 20 ) , 5 );
+		expected.bounds.drawPolygon( Color.BLUE , polygon );
+		assertEquals( expected.bounds.min.x , min.x );
+		assertEquals( expected.bounds.max.y , max.y );
+
+		assertEquals( GeometryBuffer.LINE , buffer.getKind( buffer.findLine( buffer.getX1( 0 ) , buffer.getY1( 0 ) , 0.1f ) ) );
+		assertEquals( -1 , buffer.findLine( 1e6f , 1e6f , 1 ) );
+
+		buffer.clear();
+		assertEquals( 0 , buffer.size() );
+		assertFalse( buffer.getBounds( min , max ) );
+	}
+
+	public void testSinglePassMatchesTwoPassRendering()
+	{
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		system.addRule( RuleGenerator.replaceRule( "F" , "F[+Fc]F[-gFC]F[+f-]rFF" ) );
+		system.setDesiredRecursionCount( 3 );
+		system.rewriteRecursively();
+
+		for ( LSystemRenderer2D renderer : new LSystemRenderer2D[] { new LSystemRenderer2D() , new HeartRenderer() } )
+		{
+			for ( boolean optimize : new boolean[] { false , true } )
+			{
+				renderer.setOptimizePrimitives( optimize );
+
+				// two passes: bounds first, then render
+				final MinMaxRenderingContext2D bounds = new MinMaxRenderingContext2D();
+				renderer.render( system , bounds );
+				final OperationLog expected = new OperationLog();
+				renderer.render( system , expected );
+
+				// single pass: record, then replay
+				final GeometryBuffer buffer = new GeometryBuffer();
+				renderer.render( system , buffer );
+				final Vec2 min = new Vec2();
+				final Vec2 max = new Vec2();
+				assertTrue( buffer.getBounds( min , max ) );
+				final OperationLog actual = new OperationLog();
+				buffer.replay( actual );
+
+				assertEquals( bounds.min.x , min.x );
+				assertEquals( bounds.min.y , min.y );
+				assertEquals( bounds.max.x , max.x );
+				assertEquals( bounds.max.y , max.y );
+				assertTrue( expected.operations.size() > 0 );
+				assertEquals( expected.operations , actual.operations );
+			}
+		}
+
+		final Point point = new Point();
+		new GeometryBuffer().toScreenCoordinates( 2.6f , -2.6f , point );
+		assertEquals( new Point( 3 , -3 ) , point );
+	}
+
+	public void testTurtleHeading()
+	{
+		final Turtle2D turtle = new Turtle2D( new GeometryBuffer() );
+		assertEquals( 270f , turtle.getHeading() );
+		for ( int i = 0 ; i < 24 * 1000 ; i++ ) {
+			turtle.rotateRight( 15 );
+		}
+		// no drift
+		assertEquals( 270f , turtle.getHeading() );
+		assertEquals( 0f , turtle.heading.x );
+		assertEquals( -1f , turtle.heading.y );
+
+		turtle.rotateLeft( 25 );
+		assertEquals( 245f , turtle.getHeading() );
+		assertEquals( (float) Math.cos( Math.toRadians( 245 ) ) , turtle.heading.x , 1e-6f );
+		assertEquals( (float) Math.sin( Math.toRadians( 245 ) ) , turtle.heading.y , 1e-6f );
+
+		turtle.setHeading( -90 );
+		assertEquals( 270f , turtle.getHeading() );
+		turtle.setHeading( 720 + 45 );
+		assertEquals( 45f , turtle.getHeading() );
+		assertEquals( turtle.heading.x , turtle.heading.y , 1e-6f );
+
+		// computed angles beyond cache capacity
+		for ( int i = 0 ; i < 2000 ; i++ )
+		{
+			turtle.setHeading( i * 0.1f );
+			assertEquals( (float) Math.cos( Math.toRadians( turtle.getHeading() ) ) , turtle.heading.x , 1e-6f );
+		}
+	}
+
+	public void testRotationTable()
+	{
+		final List<Token> replacement = new ArrayList<>( ExpressionLexer.parse( "F+F" ).toList() );
+		replacement.add( new Token( TokenType.ROTATE_LEFT , "-" , new float[] { 22.5f } ) );
+		replacement.add( new Token( TokenType.ROTATE_RIGHT , "+" , Arrays.asList( "a*2" ) ) );
+		final LSystem system = new LSystem( ExpressionLexer.parse( "F" ) );
+		system.addRule( new SimpleRule( TokenType.FORWARD , TokenSeq.create( replacement ) ) );
+
+		final RotationTable table = RotationTable.create( system , 15 );
+		assertEquals( 48 , table.getSteps() );
+		assertEquals( 2 , table.getRotationSteps( table.indexOf( 15 ) ) );
+		assertEquals( 46 , table.getRotationSteps( table.indexOf( -15 ) ) );
+		assertEquals( 3 , table.getRotationSteps( table.indexOf( 22.5f ) ) );
+		assertTrue( table.indexOf( 30 ) < 0 );
+		assertEquals( 4 , table.toSteps( 30 ) );
+		assertEquals( -1 , table.toSteps( 1 ) );
+
+		// the golden angle does not fit any grid
+		final float golden = 137.50776f;
+		final RotationTable rotations = new RotationTable( new float[] { golden , 15 } );
+		assertEquals( 24 , rotations.getSteps() );
+		assertEquals( -1 , rotations.getRotationSteps( rotations.indexOf( golden ) ) );
+
+		final Turtle2D turtle = new Turtle2D( new GeometryBuffer() , rotations );
+		for ( int i = 0 ; i < 1000 ; i++ ) 
+		{
+			turtle.rotateRight( golden );
+			turtle.rotateRight( 15 );
+			turtle.rotateLeft( golden );
+		}
+		// back on the grid
+		assertEquals( 150f , turtle.getHeading() );
+		assertEquals( (float) Math.cos( Math.toRadians( 150 ) ) , turtle.heading.x );
+		assertEquals( 0.5f , turtle.heading.y );
+
+		for ( int i = 0 ; i < 1000 ; i++ ) {
+			turtle.rotateRight( golden );
+		}
+		final double expected = Math.toRadians( 150 + 1000.0 * golden );
+		assertEquals( (float) Math.cos( expected ) , turtle.heading.x , 1e-5f );
+		assertEquals( (float) Math.sin( expected ) , turtle.heading.y , 1e-5f );
+	}
+
+	public void testTurtleStack()
+	{
+		final Turtle2D turtle = new Turtle2D( new GeometryBuffer() );
+		final TurtleStack stack = new TurtleStack();
+		for ( int i = 0 ; i < 100 ; i++ )
+		{
+			turtle.position.set( i , -i );
+			turtle.setHeading( i * 5 );
+			turtle.setColor( i % 2 == 0 ? Color.RED : null );
+			stack.pushState( turtle );
+		}
+		assertEquals( 100 , stack.size() );
+		for ( int i = 99 ; i >= 0 ; i-- )
+		{
+			stack.popState( turtle );
+			assertEquals( (float) i , turtle.position.x );
+			assertEquals( (float) -i , turtle.position.y );
+			assertEquals( ( i * 5 ) % 360f , turtle.getHeading() );
+			assertEquals( (float) Math.cos( Math.toRadians( i * 5 ) ) , turtle.heading.x , 1e-6f );
+			assertEquals( i % 2 == 0 ? Color.RED : null , turtle.color );
+		}
+		try {
+			stack.popState( turtle );
+			fail("Should've failed");
+		} catch(EmptyStackException e) {
+			// ok
+		}
+
+		stack.setRelative( true );
+		stack.pushState( turtle );
+		stack.popState( turtle );
+		assertEquals( 0 , stack.getBase() );
+		stack.popState( turtle );
+		assertEquals( 1 , stack.getUnderflowCount() );
+		assertEquals( 1 , stack.getBase() );
+		assertEquals( 0f , turtle.getHeading() );
+		assertNull( turtle.color );
+	}
+}